@@ -0,0 +1,59 @@
+import isml.bench.Fixtures;
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Catalog pages and purchase items through InventoryCodec, string or binary.
+ */
+public class CodecFixture implements Fixtures.Codec {
+    private final InventoryCodec codec = new InventoryCodec();
+    private final InventoryCodec.Reader reader = new InventoryCodec.Reader();
+    private final InventoryCodec.Item item = new InventoryCodec.Item();
+    private List<Product> catalog;
+    private Map<String, Product> decoded;
+    private ACLMessage built;
+    private ACLMessage reply;
+    private ACLMessage request;
+    private String[] productIds;
+    private boolean binary;
+
+    public void prepare(int products, boolean binary) {
+        this.binary = binary;
+        catalog = new ArrayList<>(products);
+        for (int i = 0; i < products; i++) {
+            catalog.add(new Product("SKU" + i, "Product, model " + i, i % 50, 5, 9.99 + i));
+        }
+        decoded = new HashMap<>(products * 2);
+
+        built = new ACLMessage(ACLMessage.INFORM);
+        reply = new ACLMessage(ACLMessage.INFORM);
+        codec.writeCatalog(reply, catalog, binary);
+        request = new ACLMessage(ACLMessage.REQUEST);
+
+        productIds = new String[1024];
+        for (int i = 0; i < productIds.length; i++) {
+            productIds[i] = "SKU" + i;
+        }
+    }
+
+    public int buildCatalog() {
+        codec.writeCatalog(built, catalog, binary);
+        return binary ? built.getByteSequenceContent().length : built.getContent().length();
+    }
+
+    public int parseCatalog() {
+        decoded.clear();
+        InventoryCodec.readCatalog(reply, reader, decoded);
+        return decoded.size();
+    }
+
+    public int itemRoundTrip(int i) {
+        codec.writeItem(request, InventoryCodec.PURCHASE, productIds[i & 1023], i & 7, binary);
+        InventoryCodec.readItem(request, reader, item);
+        return item.quantity;
+    }
+}
@@ -0,0 +1,101 @@
+import isml.bench.Fixtures;
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives an InventoryAgent's inventory code without a JADE platform.
+ */
+public class InventoryFixture implements Fixtures.Inventory {
+    private final InventoryCodec codec = new InventoryCodec();
+    private final List<ACLMessage> batch = new ArrayList<>();
+    private final List<ACLMessage> replies = new ArrayList<>();
+    private String storeFile;
+    private String logFile;
+    private InventoryAgent agent;
+    private int count;
+    private int next;
+
+    public void create(String dir, int count, int quantity, int threshold) throws Exception {
+        quiet();
+        storeFile = new File(dir, "inventory.store").getPath();
+        logFile = new File(dir, "inventory.log").getPath();
+        new File(logFile).delete();
+        try (ProductStore store = ProductStore.create(storeFile, count)) {
+            for (int i = 0; i < count; i++) {
+                store.add("SKU" + i, "Product, model " + i, quantity, threshold, 9.99 + i % 1000);
+            }
+            store.checkpoint(0);
+        }
+    }
+
+    public int load() {
+        agent = new InventoryAgent();
+        agent.openInventory(storeFile, logFile);
+        count = agent.getProductCount();
+        next = 0;
+        return count;
+    }
+
+    public void prepareBatch(int batchSize, boolean binary, long seed) {
+        Random random = new Random(seed);
+        AID buyer = new AID("BuyerAgent@bench", AID.ISGUID);
+        batch.clear();
+        for (int i = 0; i < batchSize; i++) {
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.setSender(buyer);
+            request.setConversationId("purchase-request");
+            codec.writeItem(request, InventoryCodec.PURCHASE, "SKU" + random.nextInt(count), 1, binary);
+            batch.add(request);
+        }
+    }
+
+    public int processBatch() {
+        replies.clear();
+        return agent.processPurchases(batch, replies);
+    }
+
+    public void save() {
+        agent.saveInventory();
+    }
+
+    public void checkRestock() {
+        int slot = next;
+        next = next + 1 == count ? 0 : next + 1;
+        if (agent.needsRestock(slot)) {
+            agent.requestRestock(slot);
+        }
+    }
+
+    public void close() {
+        if (agent != null) {
+            agent.closeInventory();
+            agent = null;
+        }
+    }
+
+    /**
+     * The agent reports checkpoints and the like on stdout and in its event
+     * log; keep that out of the benchmark output.
+     */
+    private static void quiet() {
+        if (System.getProperty("log.console") == null) {
+            System.setProperty("log.console", "false");
+        }
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
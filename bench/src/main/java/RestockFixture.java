@@ -0,0 +1,34 @@
+import isml.bench.Fixtures;
+
+/**
+ * The in-flight restock table on its own.
+ */
+public class RestockFixture implements Fixtures.Restocks {
+    private final RestockTracker tracker = new RestockTracker();
+    private String[] productIds;
+    private final String[] newIds = new String[1024];
+
+    public void prepare(int products) {
+        productIds = new String[products];
+        for (int i = 0; i < products; i++) {
+            productIds[i] = "SKU" + i;
+            // Every product in flight, for requestCoalesced
+            tracker.request(productIds[i], 10);
+        }
+        tracker.sent("restock-0", Long.MAX_VALUE);
+        for (int i = 0; i < newIds.length; i++) {
+            newIds[i] = "NEW" + i;
+        }
+    }
+
+    public boolean requestSendConfirm(int i) {
+        String productId = newIds[i & 1023];
+        tracker.request(productId, 10);
+        tracker.sent("restock-1", Long.MAX_VALUE);
+        return tracker.confirmed(productId, "restock-1");
+    }
+
+    public boolean requestCoalesced(int i) {
+        return tracker.request(productIds[i % productIds.length], 10);
+    }
+}
@@ -0,0 +1,62 @@
+package isml.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the string catalog/item protocol with InventoryCodec's binary
+ * form: building a catalog page as ProductListServer does, parsing it as
+ * the buyer does before updating its product list, and a PURCHASE item
+ * round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CodecBenchmark {
+
+    @Param({"100", "500", "10000"})
+    public int products;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private Fixtures.Codec codec;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = Fixtures.load("CodecFixture", Fixtures.Codec.class);
+        codec.prepare(products, binary);
+    }
+
+    @Benchmark
+    public int buildCatalog() {
+        return codec.buildCatalog();
+    }
+
+    @Benchmark
+    public int parseCatalog() {
+        return codec.parseCatalog();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int itemRoundTrip() {
+        return codec.itemRoundTrip(i++);
+    }
+}
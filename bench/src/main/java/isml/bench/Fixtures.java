@@ -0,0 +1,111 @@
+package isml.bench;
+
+/**
+ * Loads the benchmark fixtures.
+ *
+ * The application lives in the default package, which classes in a named
+ * package cannot refer to, and JMH refuses benchmarks in the default
+ * package. So each benchmark talks to an interface declared here and the
+ * implementation, a default-package class next to the application code,
+ * is looked up by name once per trial. Calls in the measured loop are
+ * plain interface calls.
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    public static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load fixture " + className, e);
+        }
+    }
+
+    /**
+     * Operations of the InventoryAgent the benchmarks drive, run without a
+     * JADE platform against an inventory in a scratch directory.
+     */
+    public interface Inventory {
+        /**
+         * Writes a product store holding the given number of products.
+         * quantity and threshold apply to every product.
+         */
+        void create(String dir, int products, int quantity, int threshold) throws Exception;
+
+        /**
+         * Opens the store written by create() in a new agent, like agent
+         * setup does. Returns the number of products loaded.
+         */
+        int load();
+
+        /**
+         * Prepares batchSize PURCHASE requests for random products, in the
+         * string or binary encoding.
+         */
+        void prepareBatch(int batchSize, boolean binary, long seed);
+
+        /**
+         * Runs the prepared batch through the purchase path. Returns the
+         * number of purchases that succeeded.
+         */
+        int processBatch();
+
+        /**
+         * Checkpoints the store and truncates the log.
+         */
+        void save();
+
+        /**
+         * Runs the restock decision for the next product in the catalog.
+         */
+        void checkRestock();
+
+        /**
+         * Saves and closes the inventory.
+         */
+        void close();
+    }
+
+    /**
+     * The catalog and item encodings of InventoryCodec, over ACL messages.
+     */
+    public interface Codec {
+        void prepare(int products, boolean binary);
+
+        /**
+         * Builds a catalog reply the way ProductListServer does. Returns the
+         * content length.
+         */
+        int buildCatalog();
+
+        /**
+         * Parses the catalog reply the way the buyer does. Returns the
+         * number of products read.
+         */
+        int parseCatalog();
+
+        /**
+         * Writes and reads back one PURCHASE item. Returns its quantity.
+         */
+        int itemRoundTrip(int i);
+    }
+
+    /**
+     * RestockTracker, the per-product in-flight table.
+     */
+    public interface Restocks {
+        void prepare(int products);
+
+        /**
+         * A restock that is queued, sent and confirmed.
+         */
+        boolean requestSendConfirm(int i);
+
+        /**
+         * A restock requested while one is already in flight.
+         */
+        boolean requestCoalesced(int i);
+    }
+}
@@ -0,0 +1,93 @@
+package isml.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InventoryAgent's loadInventory (map the store, build the product table,
+ * replay the log) and saveInventory (checkpoint the store after a batch of
+ * purchases) at 1k, 100k and 1M products.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class PersistenceBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int products;
+
+    private Fixtures.Inventory inventory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        inventory = Fixtures.load("InventoryFixture", Fixtures.Inventory.class);
+        inventory.create(Files.createTempDirectory("persistence-bench").toString(), products, 1_000_000_000, 5);
+    }
+
+    /**
+     * Load benchmark state: the inventory is closed again after every load.
+     */
+    @State(Scope.Thread)
+    public static class Loaded {
+        Fixtures.Inventory inventory;
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            inventory.close();
+        }
+    }
+
+    /**
+     * Save benchmark state: an open inventory with a batch of purchases
+     * applied since the last checkpoint.
+     */
+    @State(Scope.Thread)
+    public static class Dirty {
+        Fixtures.Inventory inventory;
+
+        @Setup(Level.Trial)
+        public void open(PersistenceBenchmark bench) {
+            inventory = bench.inventory;
+            inventory.load();
+            inventory.prepareBatch(64, false, 42);
+        }
+
+        @Setup(Level.Invocation)
+        public void purchase() {
+            inventory.processBatch();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            inventory.close();
+        }
+    }
+
+    @Benchmark
+    public int load(Loaded state) {
+        state.inventory = inventory;
+        return inventory.load();
+    }
+
+    @Benchmark
+    public void save(Dirty state) {
+        state.inventory.save();
+    }
+}
@@ -0,0 +1,62 @@
+package isml.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One batch of PURCHASE requests through InventoryAgent.processPurchases,
+ * the work PurchaseRequestServer does per tick: decode, apply to the
+ * in-memory inventory, write the store and the log, one log sync, and the
+ * restock decision. Stock never runs out, so every purchase succeeds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class PurchaseBenchmark {
+
+    @Param({"1000", "100000"})
+    public int products;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private Fixtures.Inventory inventory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        inventory = Fixtures.load("InventoryFixture", Fixtures.Inventory.class);
+        inventory.create(Files.createTempDirectory("purchase-bench").toString(), products, 1_000_000_000, 5);
+        inventory.load();
+        inventory.prepareBatch(batchSize, binary, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        inventory.close();
+    }
+
+    @Benchmark
+    public int processBatch() {
+        return inventory.processBatch();
+    }
+}
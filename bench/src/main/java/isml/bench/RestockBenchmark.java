@@ -0,0 +1,70 @@
+package isml.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The restock decision made for every product a purchase leaves below its
+ * threshold: InventoryAgent.requestRestock with every product already
+ * queued (the steady state under load), and the in-flight table's full
+ * request / send / confirm cycle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class RestockBenchmark {
+
+    @Param({"1000", "100000"})
+    public int products;
+
+    private Fixtures.Inventory inventory;
+    private Fixtures.Restocks restocks;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // Every product below its threshold
+        inventory = Fixtures.load("InventoryFixture", Fixtures.Inventory.class);
+        inventory.create(Files.createTempDirectory("restock-bench").toString(), products, 0, 5);
+        inventory.load();
+        restocks = Fixtures.load("RestockFixture", Fixtures.Restocks.class);
+        restocks.prepare(products);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        inventory.close();
+    }
+
+    @Benchmark
+    public void agentDecision() {
+        inventory.checkRestock();
+    }
+
+    @Benchmark
+    public boolean requestSendConfirm() {
+        return restocks.requestSendConfirm(i++);
+    }
+
+    @Benchmark
+    public boolean requestCoalesced() {
+        return restocks.requestCoalesced(i++);
+    }
+}
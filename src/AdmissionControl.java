@@ -0,0 +1,95 @@
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Admission control for an InventoryAgent's purchase requests.
+ *
+ * A request is admitted while the work queued ahead of it can be done
+ * within inventory.admission.maxQueueDelayMs: the messages waiting in the
+ * mailbox plus the requests of the batch being gathered, times an EWMA of
+ * the service time per request (measured per batch, so it follows the
+ * batch size and fsync cost of the moment). Past that, or past
+ * inventory.admission.maxQueue waiting messages whatever their cost, the
+ * request is refused at once: a REFUSE with content OVERLOADED and a
+ * "retry-after-ms" parameter, the time the queue ahead needs to drain.
+ * Refusing costs a reply and no log write, so an overloaded agent still
+ * applies purchases at its capacity, and the requests it does take wait
+ * at most about the target delay instead of an ever longer queue.
+ *
+ * A refused request was not applied and may be sent again once the retry
+ * time has passed (see CongestionWindow). Agent thread only.
+ */
+public class AdmissionControl {
+    public static final String OVERLOADED = "OVERLOADED";
+    public static final String RETRY_AFTER = "retry-after-ms";
+
+    // 0 disables the limit
+    private static final long MAX_QUEUE_DELAY_MS = Long.getLong("inventory.admission.maxQueueDelayMs", 500L);
+    private static final int MAX_QUEUE = Integer.getInteger("inventory.admission.maxQueue", 5000);
+    private static final double SERVICE_TIME_ALPHA = 0.2;
+    private static final long MIN_RETRY_AFTER_MS = 10;
+
+    private double serviceNanosPerRequest;
+
+    /**
+     * Records that a batch of requests took nanos to apply and persist.
+     */
+    public void recordService(int requests, long nanos) {
+        if (requests == 0) {
+            return;
+        }
+        double perRequest = (double) nanos / requests;
+        double previous = serviceNanosPerRequest;
+        serviceNanosPerRequest = previous == 0 ? perRequest : previous + SERVICE_TIME_ALPHA * (perRequest - previous);
+    }
+
+    /**
+     * Decides on a request with queued messages and requests ahead of it.
+     * Returns 0 if it is admitted, otherwise the time in ms after which the
+     * client may send it again.
+     */
+    public long admit(int queued) {
+        long delayMs = estimatedDelayMs(queued);
+        if ((MAX_QUEUE_DELAY_MS > 0 && delayMs > MAX_QUEUE_DELAY_MS) || (MAX_QUEUE > 0 && queued > MAX_QUEUE)) {
+            return Math.max(MIN_RETRY_AFTER_MS, delayMs);
+        }
+        return 0;
+    }
+
+    /**
+     * Time in ms the agent needs for queued requests at the current service time.
+     */
+    public long estimatedDelayMs(int queued) {
+        return (long) (queued * serviceNanosPerRequest / 1_000_000);
+    }
+
+    /**
+     * The reply refusing msg, to be retried after retryAfterMs.
+     */
+    public static ACLMessage refusal(ACLMessage msg, long retryAfterMs) {
+        ACLMessage reply = msg.createReply();
+        reply.setLanguage(null);
+        reply.setOntology(null);
+        reply.setPerformative(ACLMessage.REFUSE);
+        reply.setContent(OVERLOADED);
+        reply.addUserDefinedParameter(RETRY_AFTER, String.valueOf(retryAfterMs));
+        return reply;
+    }
+
+    /**
+     * The retry time of a refusal in ms, or -1 if reply is not one.
+     */
+    public static long retryAfterMs(ACLMessage reply) {
+        if (reply.getPerformative() != ACLMessage.REFUSE || !OVERLOADED.equals(reply.getContent())) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(reply.getUserDefinedParameter(RETRY_AFTER)));
+        } catch (NumberFormatException e) {
+            return MIN_RETRY_AFTER_MS;
+        }
+    }
+
+    public long getServiceMicrosPerRequest() {
+        return (long) (serviceNanosPerRequest / 1000);
+    }
+}
@@ -0,0 +1,242 @@
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime metrics of one agent: counters, gauges and latency timers.
+ *
+ * They are readable over JMX, as the MBean isml:type=Agent,name=<local
+ * name> (one read-only attribute per value), and over ACL: a QUERY_REF
+ * with content "METRICS" is answered by QueryServer with an INFORM of
+ * "name=value" lines. Timers show up as name.count, name.p50Ms,
+ * name.p99Ms, name.maxMs and name.meanMs.
+ *
+ * Metrics are registered in setup(); updates come from the agent's thread
+ * and reads from JMX threads, so counters are atomic and timers lock.
+ */
+public class AgentMetrics implements DynamicMBean {
+    public static final String QUERY = "METRICS";
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    public interface Gauge {
+        long get();
+    }
+
+    /**
+     * Latency distribution, kept in microseconds.
+     */
+    public static class Timer {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        public synchronized void record(long nanos) {
+            histogram.record(nanos / 1000);
+        }
+
+        synchronized void addTo(String name, Map<String, Object> values) {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".p50Ms", histogram.getValueAtPercentile(50) / 1000.0);
+            values.put(name + ".p99Ms", histogram.getValueAtPercentile(99) / 1000.0);
+            values.put(name + ".maxMs", histogram.getMax() / 1000.0);
+            values.put(name + ".meanMs", histogram.getMean() / 1000.0);
+        }
+    }
+
+    private final Agent agent;
+    private final Map<String, Counter> counters = new LinkedHashMap<>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private final Map<String, Timer> timers = new LinkedHashMap<>();
+    private ObjectName objectName;
+
+    public AgentMetrics(Agent agent) {
+        this.agent = agent;
+        gauge("mailbox.depth", agent::getCurQueueSize);
+    }
+
+    public synchronized Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    /**
+     * Counter of the messages a behaviour has handled.
+     */
+    public Counter handled(String behaviour) {
+        return counter("messages." + behaviour);
+    }
+
+    public synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public synchronized Timer timer(String name) {
+        return timers.computeIfAbsent(name, k -> new Timer());
+    }
+
+    /**
+     * Current value of every metric, in registration order.
+     */
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            e.getValue().addTo(e.getKey(), values);
+        }
+        return values;
+    }
+
+    /**
+     * The snapshot as "name=value" lines, the content of a METRICS reply.
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : snapshot().entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Registers the platform MBean. A failure is logged and otherwise
+     * ignored; the ACL query keeps working.
+     */
+    public void register() {
+        try {
+            objectName = new ObjectName("isml:type=Agent,name=" + ObjectName.quote(agent.getLocalName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            System.err.println("[METRICS] Cannot register MBean for " + agent.getLocalName() + ": " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            System.err.println("[METRICS] Cannot unregister MBean " + objectName + ": " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            if (values.containsKey(name)) {
+                list.add(new Attribute(name, values.get(name)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> e : snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                    e.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics of agent " + agent.getLocalName(),
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    /**
+     * Answers QUERY_REF "METRICS" with the agent's current metrics. Runs as
+     * its own behaviour, or is registered with the agent's
+     * MessageDispatcher as the handler of QUERY_REF METRICS.
+     */
+    public static class QueryServer extends CyclicBehaviour {
+        private final MessageTemplate mt = MessageTemplate.and(
+            MessageTemplate.MatchPerformative(ACLMessage.QUERY_REF),
+            MessageTemplate.MatchContent(QUERY)
+        );
+        private final AgentMetrics metrics;
+        private final Counter handled;
+
+        public QueryServer(Agent agent, AgentMetrics metrics) {
+            super(agent);
+            this.metrics = metrics;
+            this.handled = metrics.handled("metrics");
+        }
+
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            handle(msg);
+        }
+
+        public void handle(ACLMessage msg) {
+            handled.inc();
+            ACLMessage reply = msg.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            reply.setContent(metrics.format());
+            myAgent.send(reply);
+        }
+    }
+}
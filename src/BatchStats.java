@@ -0,0 +1,71 @@
+/**
+ * Size and latency statistics for requests processed in batches.
+ */
+public class BatchStats {
+    private long batches;
+    private long requests;
+    private int maxSize;
+    private long totalWaitNanos;
+    private long totalServiceNanos;
+    private long maxServiceNanos;
+    private int lastSize;
+    private long lastServiceNanos;
+
+    /**
+     * Records one batch: how many requests it held, how long the first of
+     * them waited for the batch to close, and how long processing took.
+     */
+    public synchronized void record(int size, long waitNanos, long serviceNanos) {
+        batches++;
+        requests += size;
+        maxSize = Math.max(maxSize, size);
+        totalWaitNanos += waitNanos;
+        totalServiceNanos += serviceNanos;
+        maxServiceNanos = Math.max(maxServiceNanos, serviceNanos);
+        lastSize = size;
+        lastServiceNanos = serviceNanos;
+    }
+
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+
+    public synchronized long getRequestCount() {
+        return requests;
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int getLastSize() {
+        return lastSize;
+    }
+
+    public synchronized double getAverageSize() {
+        return batches == 0 ? 0 : (double) requests / batches;
+    }
+
+    public synchronized double getAverageWaitMillis() {
+        return batches == 0 ? 0 : totalWaitNanos / 1e6 / batches;
+    }
+
+    public synchronized double getAverageServiceMillis() {
+        return batches == 0 ? 0 : totalServiceNanos / 1e6 / batches;
+    }
+
+    public synchronized double getMaxServiceMillis() {
+        return maxServiceNanos / 1e6;
+    }
+
+    public synchronized double getLastServiceMillis() {
+        return lastServiceNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BatchStats[batches=%d, requests=%d, avgSize=%.1f, maxSize=%d, avgWait=%.3fms, avgService=%.3fms, maxService=%.3fms]",
+                batches, requests, getAverageSize(), maxSize, getAverageWaitMillis(),
+                getAverageServiceMillis(), getMaxServiceMillis());
+    }
+}
@@ -0,0 +1,191 @@
+import jade.core.Agent;
+import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an agent's blocking work (file I/O) off the agent thread, so the
+ * agent keeps handling messages meanwhile.
+ *
+ * submit() hands a task to the agent's own executor: a virtual thread per
+ * task on Java 21 and later, up to blocking.threads daemon threads before
+ * (or with -Dblocking.virtualThreads=false), so one agent's tasks never
+ * hold up another's. When the task is done its result is posted to the
+ * agent's own mailbox as an INFORM in conversation CONVERSATION_ID, and
+ * this behaviour, on the agent thread, calls the task's callback and
+ * restarts the behaviour that submitted it. So callbacks may touch the
+ * agent's state like any behaviour; the task itself may not.
+ *
+ * Work that finishes by itself on another thread, such as a dialog on
+ * the Swing event thread, needs no task: completion() returns a handle
+ * that thread calls when it is done, with the same effect.
+ *
+ * An agent that reads its mailbox through a MessageDispatcher registers
+ * handle() for CONVERSATION_ID instead of adding the bridge as a
+ * behaviour.
+ */
+public class BlockingBridge extends CyclicBehaviour {
+    public static final String CONVERSATION_ID = "blocking-task";
+
+    private static final int THREADS = Math.max(1, Integer.getInteger("blocking.threads", 8));
+    // Idle pool threads exit after this long, so agents that rarely block keep no threads
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public interface Task<T> {
+        T call() throws Exception;
+    }
+
+    public interface Callback<T> {
+        /**
+         * Called on the agent thread with the task's result, or what it
+         * threw (result is then null).
+         */
+        void done(T result, Throwable error);
+    }
+
+    private final MessageTemplate mt = MessageTemplate.MatchConversationId(CONVERSATION_ID);
+    private final ExecutorService executor;
+    // Finished tasks by id, put by the task's thread and taken by the agent thread
+    private final Map<String, Completion<?>> completed = new ConcurrentHashMap<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private long submitted;
+
+    public BlockingBridge(Agent agent) {
+        super(agent);
+        executor = createExecutor(agent.getLocalName() != null ? agent.getLocalName() : "agent");
+    }
+
+    /**
+     * Runs task off the agent thread, then callback (if any) on it, then
+     * restarts owner (if any). The returned Future lets the agent wait for
+     * the task where it has to, e.g. before closing what the task uses.
+     */
+    public <T> Future<?> submit(Behaviour owner, Task<T> task, Callback<T> callback) {
+        String id = nextId();
+        running.incrementAndGet();
+        return executor.submit(() -> {
+            T result = null;
+            Throwable error = null;
+            try {
+                result = task.call();
+            } catch (Throwable t) {
+                // Errors too, or the owner would never be resumed
+                error = t;
+            }
+            running.decrementAndGet();
+            complete(id, new Completion<>(owner, callback, result, error));
+        });
+    }
+
+    /**
+     * A handle for work done elsewhere: when any thread runs it, callback
+     * (if any) runs on the agent thread and owner (if any) is restarted.
+     * Run it once.
+     */
+    public Runnable completion(Behaviour owner, Runnable callback) {
+        String id = nextId();
+        Completion<Object> completion = new Completion<>(owner,
+                callback != null ? (none, error) -> callback.run() : null, null, null);
+        return () -> complete(id, completion);
+    }
+
+    private String nextId() {
+        return myAgent.getLocalName() + "-" + (++submitted);
+    }
+
+    /**
+     * Hands a finished task to the agent thread. Any thread.
+     */
+    private void complete(String id, Completion<?> completion) {
+        completed.put(id, completion);
+        ACLMessage done = new ACLMessage(ACLMessage.INFORM);
+        done.setSender(myAgent.getAID());
+        done.setConversationId(CONVERSATION_ID);
+        done.setInReplyTo(id);
+        myAgent.postMessage(done);
+    }
+
+    public void action() {
+        ACLMessage msg = myAgent.receive(mt);
+        if (msg == null) {
+            block();
+            return;
+        }
+        handle(msg);
+    }
+
+    /**
+     * Resumes the submitter of the task the message reports as done.
+     */
+    public void handle(ACLMessage msg) {
+        Completion<?> completion = msg.getInReplyTo() != null ? completed.remove(msg.getInReplyTo()) : null;
+        if (completion != null) {
+            completion.resume();
+        }
+    }
+
+    /**
+     * Tasks that have been submitted and not finished yet.
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    private static ExecutorService createExecutor(String agentName) {
+        if (Boolean.parseBoolean(System.getProperty("blocking.virtualThreads", "true"))) {
+            try {
+                // Java 21+, looked up so the code still builds and runs on older JDKs
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // Fall back to the bounded pool
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, agentName + "-blocking-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static class Completion<T> {
+        private final Behaviour owner;
+        private final Callback<T> callback;
+        private final T result;
+        private final Throwable error;
+
+        Completion(Behaviour owner, Callback<T> callback, T result, Throwable error) {
+            this.owner = owner;
+            this.callback = callback;
+            this.result = result;
+            this.error = error;
+        }
+
+        void resume() {
+            if (callback != null) {
+                callback.done(result, error);
+            }
+            if (owner != null) {
+                owner.restart();
+            }
+        }
+    }
+}
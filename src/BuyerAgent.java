@@ -3,20 +3,86 @@ import jade.core.AID;
 import jade.core.behaviours.*;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
-import jade.domain.DFService;
-import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 public class BuyerAgent extends Agent {
-    private AID inventoryAgent;
+    // Inventory shards, each owning a hash range of product ids
+    private ShardMap inventoryShards;
+    // Followers of each shard; catalog reads go to one of them when there are any
+    private final Map<AID, List<AID>> shardReplicas = new HashMap<>();
+    private final Random random = new Random();
+    // DF subscriptions to the shards and their followers (see DirectoryWatch), and the shards
+    // subscribed to for stock updates
+    private DirectoryWatch shardWatch;
+    private DirectoryWatch replicaWatch;
+    private final Set<AID> subscribedShards = new HashSet<>();
     private BuyerGUI myGui;
 
+    // Local copy of the catalog and the version synced from each shard
+    private final Map<String, Product> catalog = new LinkedHashMap<>();
+    private final Map<AID, Long> shardVersions = new HashMap<>();
+
+    private final InventoryCodec codec = new InventoryCodec(256);
+    private final InventoryCodec.Reader reader = new InventoryCodec.Reader();
+
+    // How long to wait for every shard to answer a catalog request
+    private static final long PRODUCT_LIST_TIMEOUT_MS = 5000;
+
+    // Purchases and orders: how long to wait for a reply, how many may wait at once (the most the
+    // CongestionWindow opens to), and how often one refused as OVERLOADED is sent again
+    private static final long PURCHASE_TIMEOUT_MS = Long.getLong("buyer.purchase.timeoutMs", 5000L);
+    private static final int PURCHASE_MAX_IN_FLIGHT = Math.max(1, Integer.getInteger("buyer.purchase.maxInFlight", 4));
+    private static final int PURCHASE_MAX_RETRIES = Integer.getInteger("buyer.purchase.maxRetries", 3);
+    private final CongestionWindow purchaseWindow =
+            new CongestionWindow(PURCHASE_MAX_IN_FLIGHT, PURCHASE_MAX_IN_FLIGHT, random);
+    private int purchasesInFlight;
+    private final ArrayDeque<Behaviour> waitingForSlot = new ArrayDeque<>();
+    // reply-with ids of the purchases, orders and catalog syncs still waiting for replies
+    private final Set<String> awaitedReplies = new HashSet<>();
+    // Waits for result dialogs to be dismissed off the agent thread
+    private BlockingBridge blocking;
+
+    // Runtime metrics, over JMX and QUERY_REF "METRICS"
+    private final AgentMetrics metrics = new AgentMetrics(this);
+    private final AgentMetrics.Counter stockUpdateMessages = metrics.handled("stockUpdate");
+    private final AgentMetrics.Counter catalogMessages = metrics.handled("catalog");
+    private final AgentMetrics.Counter purchaseMessages = metrics.handled("purchase");
+    private final AgentMetrics.Counter purchasesSucceeded = metrics.counter("purchase.succeeded");
+    private final AgentMetrics.Counter purchasesFailed = metrics.counter("purchase.failed");
+    private final AgentMetrics.Counter purchasesRefused = metrics.counter("purchase.refused");
+    private final AgentMetrics.Counter purchasesTimedOut = metrics.counter("purchase.timedOut");
+    private final AgentMetrics.Counter lateReplies = metrics.counter("replies.late");
+    private final AgentMetrics.Timer purchaseLatency = metrics.timer("purchase.latency");
+    private final AgentMetrics.Timer catalogSyncTime = metrics.timer("catalog.syncTime");
+
+    // Event log channels (see EventLog)
+    private final EventLog.Channel purchaseLog = new EventLog.Channel(this, "BUYER", "purchase");
+    private final EventLog.Channel orderLog = new EventLog.Channel(this, "BUYER", "order");
+
+    private static final java.time.format.DateTimeFormatter LOG_TIME_FORMAT =
+            java.time.format.DateTimeFormatter.ofPattern("HH:mm:ss");
+
     protected void setup() {
         System.out.println("BuyerAgent " + getAID().getName() + " is ready.");
 
@@ -24,69 +90,561 @@ public class BuyerAgent extends Agent {
         myGui = new BuyerGUI(this);
         myGui.setVisible(true);
 
-        // Search for inventory agent
-        addBehaviour(new OneShotBehaviour() {
-            public void action() {
-                DFAgentDescription template = new DFAgentDescription();
-                ServiceDescription sd = new ServiceDescription();
-                sd.setType("inventory-management");
-                template.addServices(sd);
-
-                try {
-                    DFAgentDescription[] result = DFService.search(myAgent, template);
-                    if (result.length > 0) {
-                        inventoryAgent = result[0].getName();
-                        System.out.println("Found Inventory Agent: " + inventoryAgent.getName());
-                        myGui.logMessage("✓ Connected to Inventory System");
-
-                        // Request product list
-                        requestProductList();
-                    } else {
-                        System.out.println("Inventory Agent not found!");
-                        myGui.logMessage("✗ Inventory Agent not found!");
-                    }
-                } catch (FIPAException fe) {
-                    fe.printStackTrace();
+        blocking = new BlockingBridge(this);
+        addBehaviour(blocking);
+        metrics.gauge("log.eventsDropped", EventLog::getDropped);
+        metrics.gauge("log.eventsFailed", EventLog::getFailed);
+        metrics.gauge("purchase.inFlight", () -> purchasesInFlight);
+        metrics.gauge("purchase.window", purchaseWindow::getLimit);
+        addBehaviour(new AgentMetrics.QueryServer(this, metrics));
+        metrics.register();
+
+        // Bind the inventory shards and their followers as soon as they are ready
+        myGui.logMessage("Waiting for the Inventory System...");
+        addBehaviour(new StockUpdateReceiver());
+        addBehaviour(new LateReplyReceiver());
+        shardWatch = new DirectoryWatch(this, "inventory-management", w -> bindShards());
+        replicaWatch = new DirectoryWatch(this, InventoryAgent.REPLICA_SERVICE, w -> findReplicas());
+        addBehaviour(shardWatch);
+        addBehaviour(replicaWatch);
+    }
+
+    /**
+     * Rebuilds the shard map from the ready shards. Shards that are new
+     * (started, restarted or a promoted follower) are subscribed to for
+     * stock updates, shards that went away are forgotten, and once the
+     * shards cover every product id the catalog is brought up to date.
+     */
+    private void bindShards() {
+        ShardMap found = ShardMap.fromSearch(shardWatch.getReady(), "inventory-management");
+        subscribedShards.retainAll(found.getShards());
+        shardVersions.keySet().retainAll(found.getShards());
+        if (found.isEmpty()) {
+            inventoryShards = null;
+            myGui.logMessage("✗ No Inventory Agent is ready, waiting...");
+            return;
+        }
+        inventoryShards = found;
+        findReplicas();
+
+        // Subscribe to stock changes first so nothing is missed, then load the catalog
+        List<AID> added = new ArrayList<>();
+        for (AID shard : found.getShards()) {
+            if (subscribedShards.add(shard)) {
+                added.add(shard);
+            }
+        }
+        subscribeToStockUpdates(added);
+        if (!found.isComplete()) {
+            myGui.logMessage("✗ Some inventory shards are not ready yet");
+            return;
+        }
+        System.out.println("Found " + found.size() + " Inventory Agent shard(s)");
+        myGui.logMessage("✓ Connected to Inventory System (" + found.size() + " shards)");
+        requestProductList();
+    }
+
+    /**
+     * Maps the ready followers to the shards they follow.
+     */
+    private void findReplicas() {
+        shardReplicas.clear();
+        if (inventoryShards == null) {
+            return;
+        }
+        Map<String, AID> shardsByName = new HashMap<>();
+        for (AID shard : inventoryShards.getShards()) {
+            shardsByName.put(shard.getName(), shard);
+        }
+        for (DFAgentDescription dfd : replicaWatch.getReady()) {
+            Iterator<?> services = dfd.getAllServices();
+            while (services.hasNext()) {
+                AID shard = shardsByName.get(ReplicaSet.leaderOf((ServiceDescription) services.next()));
+                if (shard != null) {
+                    shardReplicas.computeIfAbsent(shard, s -> new ArrayList<>()).add(dfd.getName());
                 }
             }
-        });
+        }
+        if (!shardReplicas.isEmpty()) {
+            myGui.logMessage("✓ Reading the catalog from " + shardReplicas.size() + " replicated shard(s)");
+        }
+    }
+
+    /**
+     * Agent to read a shard's catalog from: a random follower, or the shard itself.
+     */
+    private AID pickReader(AID shard) {
+        List<AID> replicas = shardReplicas.get(shard);
+        return replicas == null || replicas.isEmpty() ? shard : replicas.get(random.nextInt(replicas.size()));
     }
 
+    /**
+     * Brings the local catalog up to date with every shard. Shards synced
+     * before only send what changed since their last version.
+     */
     public void requestProductList() {
-        addBehaviour(new OneShotBehaviour() {
-            public void action() {
-                ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
-                request.addReceiver(inventoryAgent);
-                request.setContent("GET_PRODUCTS");
-                request.setConversationId("product-list");
-                request.setReplyWith("list-" + System.currentTimeMillis());
-                myAgent.send(request);
+        if (inventoryShards == null) {
+            myGui.logMessage("✗ Not connected to the Inventory System");
+            return;
+        }
+        addBehaviour(new CatalogSyncBehaviour());
+    }
+
+    /**
+     * Subscribes to stock changes of all products on the shards.
+     */
+    private void subscribeToStockUpdates(List<AID> shards) {
+        if (shards.isEmpty()) {
+            return;
+        }
+        ACLMessage subscribe = new ACLMessage(ACLMessage.SUBSCRIBE);
+        for (AID shard : shards) {
+            subscribe.addReceiver(shard);
+        }
+        subscribe.setContent("ALL");
+        subscribe.setConversationId(StockSubscriptions.CONVERSATION_ID);
+        preferEncoding(subscribe);
+        subscribe.setReplyWith("subscribe-" + System.currentTimeMillis());
+        send(subscribe);
+    }
+
+    /**
+     * Applies pushed stock change notifications to the local catalog, and
+     * takes the shards' answers to subscribeToStockUpdates() (AGREE, or
+     * REFUSE, which is shown in the GUI log) off the mailbox.
+     */
+    private class StockUpdateReceiver extends CyclicBehaviour {
+        private final MessageTemplate mt = MessageTemplate.and(
+            MessageTemplate.MatchConversationId(StockSubscriptions.CONVERSATION_ID),
+            MessageTemplate.or(MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.or(MessageTemplate.MatchPerformative(ACLMessage.AGREE),
+                    MessageTemplate.MatchPerformative(ACLMessage.REFUSE)))
+        );
+        private final Map<String, Product> changed = new LinkedHashMap<>();
+
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
 
-                // Wait for response
-                addBehaviour(new ReceiveProductListBehaviour());
+            if (msg != null && msg.getPerformative() == ACLMessage.REFUSE) {
+                myGui.logMessage("✗ " + msg.getSender().getLocalName() + " refused stock updates: " + msg.getContent());
+            } else if (msg != null && msg.getPerformative() == ACLMessage.INFORM) {
+                stockUpdateMessages.inc();
+                changed.clear();
+                InventoryCodec.readCatalog(msg, reader, changed);
+                catalog.putAll(changed);
+                // Only the pushed products go to the GUI
+                myGui.updateProductList(changed.values());
+            } else if (msg == null) {
+                block();
             }
-        });
+        }
+    }
+
+    /**
+     * Asks for replies in the binary encoding when it is preferred. The
+     * request itself keeps its string content.
+     */
+    private static void preferEncoding(ACLMessage request) {
+        if (InventoryCodec.PREFER_BINARY) {
+            request.setLanguage(InventoryCodec.LANGUAGE);
+            request.setOntology(InventoryCodec.ONTOLOGY);
+        }
     }
 
     public void makePurchase(String productId, int quantity) {
         addBehaviour(new PurchaseRequestBehaviour(productId, quantity));
     }
 
-    private class ReceiveProductListBehaviour extends Behaviour {
+    /**
+     * Shows a message dialog without holding up the agent: it is shown on
+     * the Swing event thread, and once the user has dismissed it the
+     * BlockingBridge runs dismissed and restarts owner on the agent thread.
+     * No thread waits for the user meanwhile, and stock updates and other
+     * replies are handled.
+     */
+    private void showDialog(Behaviour owner, String message, String title, int messageType, Runnable dismissed) {
+        Runnable done = blocking.completion(owner, dismissed);
+        SwingUtilities.invokeLater(() -> {
+            try {
+                JOptionPane.showMessageDialog(myGui, message, title, messageType);
+            } finally {
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Takes one of the purchase window's slots for b. If none is free, or
+     * the window holds off after a refusal, blocks b until it may try
+     * again and returns false.
+     */
+    private boolean takePurchaseSlot(Behaviour b) {
+        long now = System.nanoTime();
+        if (purchaseWindow.allows(purchasesInFlight, now)) {
+            purchasesInFlight++;
+            waitingForSlot.remove(b);
+            return true;
+        }
+        long pauseNanos = purchaseWindow.pauseNanos(now);
+        if (pauseNanos > 0) {
+            b.block(Math.max(1, pauseNanos / 1_000_000));
+        } else {
+            if (!waitingForSlot.contains(b)) {
+                waitingForSlot.add(b);
+            }
+            b.block();
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a slot and wakes the behaviour that has waited longest for one.
+     */
+    private void releasePurchaseSlot() {
+        purchasesInFlight--;
+        Behaviour next = waitingForSlot.poll();
+        if (next != null) {
+            next.restart();
+        }
+    }
+
+    /**
+     * Takes the replies that arrive after their purchase, order or catalog
+     * sync stopped waiting (timed out or finished), which no other template
+     * matches, and counts them in replies.late.
+     */
+    private class LateReplyReceiver extends CyclicBehaviour {
+        private final MessageTemplate mt = MessageTemplate.and(
+            MessageTemplate.or(
+                MessageTemplate.MatchConversationId("purchase-request"),
+                MessageTemplate.MatchConversationId("product-list")),
+            new MessageTemplate((MessageTemplate.MatchExpression) msg ->
+                msg.getInReplyTo() != null && !awaitedReplies.contains(msg.getInReplyTo()))
+        );
+
+        public void action() {
+            ACLMessage reply = myAgent.receive(mt);
+            if (reply == null) {
+                block();
+                return;
+            }
+            // Already counted as timed out
+            lateReplies.inc();
+        }
+    }
+
+    /**
+     * Scatter-gathers catalog pages from all shards: GET_PRODUCTS_SINCE for
+     * shards with a known version, paged GET_PRODUCTS for the rest (or when
+     * a shard asks for a resync). Merges the replies into the local catalog
+     * and refreshes the GUI once every shard is done. A shard with
+     * followers is read from one of them; a follower that refuses as stale
+     * is replaced by the shard itself for the rest of the sync.
+     */
+    private class CatalogSyncBehaviour extends Behaviour {
         private boolean finished = false;
+        private final String syncId = "list-" + System.nanoTime();
+        private final MessageTemplate mt = MessageTemplate.and(
+            MessageTemplate.MatchConversationId("product-list"),
+            MessageTemplate.MatchInReplyTo(syncId)
+        );
+        private final Set<AID> pending = new HashSet<>();
+        // Version of the first page of a full load, adopted once the load completes
+        private final Map<AID, Long> loadVersions = new HashMap<>();
+        // Agent each shard is read from in this sync, and back
+        private final Map<AID, AID> readers = new HashMap<>();
+        private final Map<AID, AID> shardOfReader = new HashMap<>();
+        private long deadline;
+        private long startedAt;
+
+        public void onStart() {
+            startedAt = System.nanoTime();
+            deadline = System.currentTimeMillis() + PRODUCT_LIST_TIMEOUT_MS;
+            awaitedReplies.add(syncId);
+            for (AID shard : inventoryShards.getShards()) {
+                pending.add(shard);
+                Long version = shardVersions.get(shard);
+                if (version != null) {
+                    send(shard, "GET_PRODUCTS_SINCE:" + version);
+                } else {
+                    send(shard, "GET_PRODUCTS");
+                }
+            }
+        }
 
         public void action() {
-            MessageTemplate mt = MessageTemplate.MatchConversationId("product-list");
             ACLMessage reply = myAgent.receive(mt);
 
             if (reply != null) {
+                catalogMessages.inc();
+                AID shard = shardOfReader.getOrDefault(reply.getSender(), reply.getSender());
                 if (reply.getPerformative() == ACLMessage.INFORM) {
-                    String content = reply.getContent();
-                    myGui.updateProductList(content);
+                    handleCatalogReply(shard, reply);
+                } else if (reply.getPerformative() == ACLMessage.REFUSE && !reply.getSender().equals(shard)) {
+                    // A stale follower: start this shard over from the shard itself
+                    readers.put(shard, shard);
+                    loadVersions.remove(shard);
+                    Long version = shardVersions.get(shard);
+                    send(shard, version != null ? "GET_PRODUCTS_SINCE:" + version : "GET_PRODUCTS");
+                } else {
+                    pending.remove(shard);
                 }
-                finished = true;
             } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0) {
+                    block(remaining);
+                    return;
+                }
+                myGui.logMessage("✗ " + pending.size() + " inventory shard(s) did not answer, showing partial catalog");
+                pending.clear();
+            }
+
+            if (pending.isEmpty()) {
+                myGui.updateProductList(catalog.values());
+                catalogSyncTime.record(System.nanoTime() - startedAt);
+                awaitedReplies.remove(syncId);
+                finished = true;
+            }
+        }
+
+        private void handleCatalogReply(AID shard, ACLMessage reply) {
+            long version = Long.parseLong(reply.getUserDefinedParameter("inventory-version"));
+
+            if ("true".equals(reply.getUserDefinedParameter("resync"))) {
+                shardVersions.remove(shard);
+                send(shard, "GET_PRODUCTS");
+                return;
+            }
+
+            InventoryCodec.readCatalog(reply, reader, catalog);
+
+            String nextCursor = reply.getUserDefinedParameter("next-cursor");
+            if (!shardVersions.containsKey(shard) || loadVersions.containsKey(shard)) {
+                // Full load: changes made while paging are picked up by the next delta
+                loadVersions.putIfAbsent(shard, version);
+                if (nextCursor != null) {
+                    send(shard, "GET_PRODUCTS:" + nextCursor);
+                    return;
+                }
+                version = loadVersions.remove(shard);
+            } else if ("true".equals(reply.getUserDefinedParameter("more"))) {
+                shardVersions.put(shard, version);
+                send(shard, "GET_PRODUCTS_SINCE:" + version);
+                return;
+            }
+
+            shardVersions.merge(shard, version, Math::max);
+            pending.remove(shard);
+        }
+
+        private void send(AID shard, String content) {
+            AID reader = readers.computeIfAbsent(shard, BuyerAgent.this::pickReader);
+            shardOfReader.put(reader, shard);
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.addReceiver(reader);
+            request.setContent(content);
+            request.setConversationId("product-list");
+            preferEncoding(request);
+            request.setReplyWith(syncId);
+            myAgent.send(request);
+        }
+
+        public boolean done() {
+            return finished;
+        }
+    }
+
+    /**
+     * Places a multi-item order. Lines owned by the same shard go out as one
+     * PURCHASE_BATCH that the shard applies all-or-nothing.
+     */
+    public void placeOrder(Map<String, Integer> lines) {
+        addBehaviour(new OrderRequestBehaviour(lines));
+    }
+
+    /**
+     * Sends an order's parts once the purchase window has a slot, and
+     * gathers the shards' replies. Parts refused as OVERLOADED were not
+     * applied and are sent again, up to PURCHASE_MAX_RETRIES times, once
+     * the window lets them; a part without a reply within
+     * PURCHASE_TIMEOUT_MS is given up on, and may or may not have been
+     * applied.
+     */
+    private class OrderRequestBehaviour extends Behaviour {
+        private final Map<String, Integer> lines;
+        private final String requestId = "order-" + System.nanoTime();
+        private final MessageTemplate mt = MessageTemplate.and(
+            MessageTemplate.MatchConversationId("purchase-request"),
+            MessageTemplate.MatchInReplyTo(requestId)
+        );
+        private final StringBuilder summary = new StringBuilder();
+        private final Map<AID, Map<String, Integer>> parts = new LinkedHashMap<>();
+        // Parts to send (again), and the shards whose reply is awaited
+        private final Set<AID> toSend = new HashSet<>();
+        private final Set<AID> awaiting = new HashSet<>();
+        private long sentAt;
+        private int retries;
+        private boolean allApplied = true;
+        private boolean reported;
+        private boolean finished;
+
+        public OrderRequestBehaviour(Map<String, Integer> lines) {
+            this.lines = lines;
+        }
+
+        public void onStart() {
+            for (Map.Entry<String, Integer> line : lines.entrySet()) {
+                AID shard = inventoryShards != null ? inventoryShards.ownerOf(line.getKey()) : null;
+                if (shard == null) {
+                    myGui.logMessage("✗ No inventory shard owns " + line.getKey() + ", order not sent");
+                    finished = true;
+                    return;
+                }
+                parts.computeIfAbsent(shard, k -> new LinkedHashMap<>()).put(line.getKey(), line.getValue());
+            }
+            if (parts.size() > 1) {
+                myGui.logMessage("Order spans " + parts.size() + " shards, each part is applied on its own");
+            }
+            toSend.addAll(parts.keySet());
+            myGui.logMessage("Sending order with " + lines.size() + " line(s)");
+        }
+
+        public void action() {
+            if (finished) {
+                return;
+            }
+            if (reported) {
+                // Until the summary dialog is dismissed
                 block();
+                return;
+            }
+            if (awaiting.isEmpty()) {
+                if (takePurchaseSlot(this)) {
+                    send();
+                }
+                return;
+            }
+
+            ACLMessage reply = myAgent.receive(mt);
+            if (reply == null) {
+                long waitedMs = (System.nanoTime() - sentAt) / 1_000_000;
+                if (waitedMs < PURCHASE_TIMEOUT_MS) {
+                    block(PURCHASE_TIMEOUT_MS - waitedMs);
+                    return;
+                }
+                purchaseWindow.onTimeout(sentAt, System.nanoTime());
+                for (AID shard : awaiting) {
+                    purchasesTimedOut.inc();
+                    purchasesFailed.inc();
+                    summary.append("? ").append(shard.getLocalName()).append(": no reply within ")
+                            .append(PURCHASE_TIMEOUT_MS).append(" ms, may or may not have been applied\n");
+                }
+                myGui.logMessage("✗ Order timed out waiting for " + awaiting.size() + " shard(s)");
+                allApplied = false;
+                awaiting.clear();
+                settle();
+                return;
+            }
+            if (!awaiting.remove(reply.getSender())) {
+                return;
+            }
+
+            purchaseMessages.inc();
+            long now = System.nanoTime();
+            long latency = now - sentAt;
+            purchaseLatency.record(latency);
+            long retryAfterMs = AdmissionControl.retryAfterMs(reply);
+            if (retryAfterMs >= 0) {
+                purchaseWindow.onRefused(sentAt, now, retryAfterMs);
+                purchasesRefused.inc();
+                logOutcome(reply, "refused", latency);
+                if (retries < PURCHASE_MAX_RETRIES) {
+                    toSend.add(reply.getSender());
+                } else {
+                    purchasesFailed.inc();
+                    allApplied = false;
+                    summary.append("✗ ").append(reply.getSender().getLocalName())
+                            .append(": inventory busy, part not applied\n");
+                }
+            } else {
+                purchaseWindow.onReply();
+                boolean applied = reply.getPerformative() == ACLMessage.INFORM;
+                (applied ? purchasesSucceeded : purchasesFailed).inc();
+                logOutcome(reply, applied ? "applied" : "rejected", latency);
+                allApplied &= applied;
+                summarize(reply.getContent());
+                myGui.logMessage((applied ? "✓ Order part applied: " : "✗ Order part rejected: ") + reply.getContent());
+            }
+            if (awaiting.isEmpty()) {
+                settle();
+            }
+        }
+
+        private void send() {
+            for (AID shard : toSend) {
+                ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+                request.addReceiver(shard);
+                codec.writeLines(request, InventoryCodec.ORDER, parts.get(shard), InventoryCodec.PREFER_BINARY);
+                request.setConversationId("purchase-request");
+                request.setReplyWith(requestId);
+                myAgent.send(request);
+            }
+            awaitedReplies.add(requestId);
+            awaiting.addAll(toSend);
+            toSend.clear();
+            sentAt = System.nanoTime();
+        }
+
+        /**
+         * Called once every part sent has been answered or timed out.
+         */
+        private void settle() {
+            releasePurchaseSlot();
+            if (!toSend.isEmpty()) {
+                retries++;
+                myGui.logMessage("Inventory busy, sending " + toSend.size() + " order part(s) again shortly");
+                return;
+            }
+            awaitedReplies.remove(requestId);
+            reported = true;
+            showDialog(this,
+                summary.toString(),
+                allApplied ? "Order Successful" : "Order Failed",
+                allApplied ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE,
+                () -> finished = true);
+        }
+
+        private void logOutcome(ACLMessage reply, String outcome, long latency) {
+            EventLog.Event e = orderLog.begin(EventLog.INFO);
+            if (e != null) {
+                e.str("request", requestId).str("shard", reply.getSender().getLocalName())
+                        .str("outcome", outcome).num("us", latency / 1000).commit();
+            }
+        }
+
+        private void summarize(String content) {
+            for (String result : content.split(";")) {
+                String[] parts = result.split(":");
+                if (parts.length < 3) {
+                    continue;
+                }
+                String line = parts[1] + "x " + parts[0];
+                switch (parts[2]) {
+                    case "OK":
+                        summary.append("✓ ").append(line).append(" (remaining ").append(parts[3]).append(")\n");
+                        break;
+                    case "INSUFFICIENT":
+                        summary.append("✗ ").append(line).append(": insufficient stock, available ").append(parts[3]).append("\n");
+                        break;
+                    case "NOT_FOUND":
+                        summary.append("✗ ").append(line).append(": product not found\n");
+                        break;
+                    case "INVALID":
+                        summary.append("✗ ").append(line).append(": invalid quantity\n");
+                        break;
+                    default:
+                        summary.append("- ").append(line).append(": not applied\n");
+                }
             }
         }
 
@@ -95,10 +653,20 @@ public class BuyerAgent extends Agent {
         }
     }
 
+    /**
+     * Sends a purchase once the purchase window has a slot and waits up to
+     * PURCHASE_TIMEOUT_MS for the reply. A purchase refused as OVERLOADED
+     * was not applied and is sent again, up to PURCHASE_MAX_RETRIES times,
+     * once the window lets it; one that timed out is not, as it may have
+     * been applied. The outcome is shown in a dialog (see showDialog), and
+     * the behaviour ends once it is dismissed.
+     */
     private class PurchaseRequestBehaviour extends Behaviour {
         private int step = 0;
         private MessageTemplate mt;
         private String requestId;
+        private long sentAt;
+        private int retries;
         private String productId;
         private int quantity;
 
@@ -110,13 +678,25 @@ public class BuyerAgent extends Agent {
         public void action() {
             switch (step) {
                 case 0:
+                    AID shard = inventoryShards != null ? inventoryShards.ownerOf(productId) : null;
+                    if (shard == null) {
+                        myGui.logMessage("✗ No inventory shard owns " + productId);
+                        step = 2;
+                        break;
+                    }
+                    if (!takePurchaseSlot(this)) {
+                        break;
+                    }
                     ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
-                    request.addReceiver(inventoryAgent);
-                    request.setContent("PURCHASE:" + productId + ":" + quantity);
+                    request.addReceiver(shard);
+                    codec.writeItem(request, InventoryCodec.PURCHASE, productId, quantity,
+                            InventoryCodec.PREFER_BINARY);
                     request.setConversationId("purchase-request");
-                    requestId = "purchase-" + System.currentTimeMillis();
+                    requestId = "purchase-" + System.nanoTime();
                     request.setReplyWith(requestId);
                     myAgent.send(request);
+                    awaitedReplies.add(requestId);
+                    sentAt = System.nanoTime();
 
                     myGui.logMessage("Sending purchase request: " + quantity + "x " + productId);
 
@@ -129,27 +709,85 @@ public class BuyerAgent extends Agent {
 
                 case 1:
                     ACLMessage reply = myAgent.receive(mt);
-                    if (reply != null) {
-                        if (reply.getPerformative() == ACLMessage.INFORM) {
-                            myGui.logMessage("✓ " + reply.getContent());
-                            JOptionPane.showMessageDialog(myGui,
-                                reply.getContent(),
-                                "Purchase Successful",
-                                JOptionPane.INFORMATION_MESSAGE);
-                        } else if (reply.getPerformative() == ACLMessage.FAILURE) {
-                            myGui.logMessage("✗ " + reply.getContent());
-                            JOptionPane.showMessageDialog(myGui,
-                                reply.getContent(),
-                                "Purchase Failed",
-                                JOptionPane.ERROR_MESSAGE);
+                    long now = System.nanoTime();
+                    if (reply == null) {
+                        long waitedMs = (now - sentAt) / 1_000_000;
+                        if (waitedMs < PURCHASE_TIMEOUT_MS) {
+                            block(PURCHASE_TIMEOUT_MS - waitedMs);
+                            break;
                         }
-                        // Refresh product list
-                        requestProductList();
-                        step = 2;
+                        releasePurchaseSlot();
+                        awaitedReplies.remove(requestId);
+                        purchaseWindow.onTimeout(sentAt, now);
+                        purchasesTimedOut.inc();
+                        purchasesFailed.inc();
+                        logOutcome("timedOut", now - sentAt);
+                        myGui.logMessage("✗ No reply to purchase of " + quantity + "x " + productId
+                                + " within " + PURCHASE_TIMEOUT_MS + " ms");
+                        report("No reply from the inventory. The purchase may or may not have been applied;\n"
+                                + "the catalog shows the current stock.",
+                            "Purchase Timed Out",
+                            JOptionPane.WARNING_MESSAGE);
+                        break;
+                    }
+
+                    releasePurchaseSlot();
+                    awaitedReplies.remove(requestId);
+                    purchaseMessages.inc();
+                    long latency = now - sentAt;
+                    purchaseLatency.record(latency);
+                    long retryAfterMs = AdmissionControl.retryAfterMs(reply);
+                    if (retryAfterMs >= 0) {
+                        purchaseWindow.onRefused(sentAt, now, retryAfterMs);
+                        purchasesRefused.inc();
+                        logOutcome("refused", latency);
+                        if (retries++ < PURCHASE_MAX_RETRIES) {
+                            myGui.logMessage("Inventory busy, sending purchase of " + productId
+                                    + " again in " + retryAfterMs + " ms");
+                            step = 0;
+                            break;
+                        }
+                        purchasesFailed.inc();
+                        myGui.logMessage("✗ Inventory busy, purchase of " + productId + " not applied");
+                        report("The inventory is busy, please try again later.",
+                            "Purchase Failed",
+                            JOptionPane.ERROR_MESSAGE);
+                        break;
+                    }
+
+                    purchaseWindow.onReply();
+                    boolean succeeded = reply.getPerformative() == ACLMessage.INFORM;
+                    (succeeded ? purchasesSucceeded : purchasesFailed).inc();
+                    logOutcome(succeeded ? "ok" : "failed", latency);
+                    // The catalog is refreshed by the stock update subscription
+                    if (reply.getPerformative() == ACLMessage.INFORM) {
+                        myGui.logMessage("✓ " + reply.getContent());
+                        report(reply.getContent(), "Purchase Successful", JOptionPane.INFORMATION_MESSAGE);
+                    } else if (reply.getPerformative() == ACLMessage.FAILURE) {
+                        myGui.logMessage("✗ " + reply.getContent());
+                        report(reply.getContent(), "Purchase Failed", JOptionPane.ERROR_MESSAGE);
                     } else {
-                        block();
+                        step = 2;
                     }
                     break;
+
+                case 3:
+                    // Until the result dialog is dismissed
+                    block();
+                    break;
+            }
+        }
+
+        private void report(String message, String title, int messageType) {
+            step = 3;
+            showDialog(this, message, title, messageType, () -> step = 2);
+        }
+
+        private void logOutcome(String outcome, long latency) {
+            EventLog.Event e = purchaseLog.begin(EventLog.INFO);
+            if (e != null) {
+                e.str("product", productId).num("quantity", quantity)
+                        .str("outcome", outcome).num("us", latency / 1000).commit();
             }
         }
 
@@ -159,9 +797,20 @@ public class BuyerAgent extends Agent {
     }
 
     protected void takeDown() {
+        shardWatch.cancel();
+        replicaWatch.cancel();
+        if (inventoryShards != null) {
+            ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+            for (AID shard : inventoryShards.getShards()) {
+                cancel.addReceiver(shard);
+            }
+            cancel.setConversationId(StockSubscriptions.CONVERSATION_ID);
+            send(cancel);
+        }
         if (myGui != null) {
             myGui.dispose();
         }
+        metrics.unregister();
         System.out.println("BuyerAgent " + getAID().getName() + " terminating.");
     }
 
@@ -169,25 +818,146 @@ public class BuyerAgent extends Agent {
     class BuyerGUI extends JFrame {
         private BuyerAgent myAgent;
         private JTextArea logArea;
-        private JPanel productsPanel;
+        // Catalog table; the model is keyed by product id and only touched on the EDT
+        private final CatalogTableModel catalogModel = new CatalogTableModel();
+        private final TableRowSorter<CatalogTableModel> sorter = new TableRowSorter<>(catalogModel);
+        private JTable catalogTable;
+        private JTextField filterField;
+        private JCheckBox lowStockOnly;
+        private JLabel countLabel;
+        // Purchase controls for the selected product
+        private JLabel selectedLabel;
+        private JSpinner quantitySpinner;
+        private JButton buyButton;
+        private JButton cartButton;
+        // Cart contents (product id -> quantity), only touched on the EDT
+        private final Map<String, Integer> cart = new LinkedHashMap<>();
+        private JLabel cartLabel;
 
         public BuyerGUI(BuyerAgent a) {
             super("Buyer Agent - Inventory System");
             myAgent = a;
 
             setLayout(new BorderLayout(10, 10));
-            setSize(700, 500);
+            setSize(700, 600);
             setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
             // Products Panel
             JPanel topPanel = new JPanel(new BorderLayout());
             topPanel.setBorder(BorderFactory.createTitledBorder("Available Products"));
-            productsPanel = new JPanel();
-            productsPanel.setLayout(new BoxLayout(productsPanel, BoxLayout.Y_AXIS));
-            JScrollPane productsScroll = new JScrollPane(productsPanel);
-            productsScroll.setPreferredSize(new Dimension(680, 250));
+
+            // Filter bar
+            JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            filterField = new JTextField(20);
+            filterField.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent e) {
+                    applyFilter();
+                }
+
+                public void removeUpdate(DocumentEvent e) {
+                    applyFilter();
+                }
+
+                public void changedUpdate(DocumentEvent e) {
+                    applyFilter();
+                }
+            });
+            lowStockOnly = new JCheckBox("Below threshold only");
+            lowStockOnly.addActionListener(e -> applyFilter());
+            countLabel = new JLabel();
+            filterPanel.add(new JLabel("Filter:"));
+            filterPanel.add(filterField);
+            filterPanel.add(lowStockOnly);
+            filterPanel.add(countLabel);
+            topPanel.add(filterPanel, BorderLayout.NORTH);
+
+            // Catalog table: only the visible rows are rendered
+            catalogTable = new JTable(catalogModel);
+            catalogTable.setRowSorter(sorter);
+            catalogTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            catalogTable.setFillsViewportHeight(true);
+            catalogTable.setDefaultRenderer(Double.class, new PriceRenderer());
+            catalogTable.getColumnModel().getColumn(CatalogTableModel.COLUMN_STOCK).setCellRenderer(new StockRenderer());
+            catalogTable.getColumnModel().getColumn(CatalogTableModel.COLUMN_NAME).setPreferredWidth(250);
+            catalogTable.getSelectionModel().addListSelectionListener(e -> {
+                if (!e.getValueIsAdjusting()) {
+                    updateSelection();
+                }
+            });
+            JScrollPane productsScroll = new JScrollPane(catalogTable);
+            productsScroll.setPreferredSize(new Dimension(680, 300));
             topPanel.add(productsScroll, BorderLayout.CENTER);
 
+            // Purchase Controls
+            JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            selectedLabel = new JLabel();
+            quantitySpinner = new JSpinner(new SpinnerNumberModel(0, 0, 1, 1));
+            quantitySpinner.setPreferredSize(new Dimension(60, 25));
+            buyButton = new JButton("Buy");
+            buyButton.addActionListener(e -> {
+                Product p = getSelectedProduct();
+                int qty = (Integer) quantitySpinner.getValue();
+                if (p != null && qty > 0) {
+                    myAgent.makePurchase(p.getProductId(), qty);
+                } else {
+                    JOptionPane.showMessageDialog(this,
+                        "To have a successful purchase, review the quantity.\nQuantity must be greater than 0.",
+                        "Invalid Quantity",
+                        JOptionPane.WARNING_MESSAGE);
+                }
+            });
+            cartButton = new JButton("Add to Cart");
+            cartButton.addActionListener(e -> {
+                Product p = getSelectedProduct();
+                int qty = (Integer) quantitySpinner.getValue();
+                if (p != null && qty > 0) {
+                    cart.merge(p.getProductId(), qty, Integer::sum);
+                    updateCartLabel();
+                    logMessage("Added to cart: " + qty + "x " + p.getName());
+                } else {
+                    JOptionPane.showMessageDialog(this,
+                        "Quantity must be greater than 0.",
+                        "Invalid Quantity",
+                        JOptionPane.WARNING_MESSAGE);
+                }
+            });
+            controlPanel.add(selectedLabel);
+            controlPanel.add(new JLabel("Quantity:"));
+            controlPanel.add(quantitySpinner);
+            controlPanel.add(buyButton);
+            controlPanel.add(cartButton);
+
+            // Cart Panel
+            JPanel cartPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            cartLabel = new JLabel();
+            JButton checkoutBtn = new JButton("Checkout");
+            checkoutBtn.addActionListener(e -> {
+                if (cart.isEmpty()) {
+                    JOptionPane.showMessageDialog(this, "The cart is empty.", "Empty Cart",
+                        JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                myAgent.placeOrder(new LinkedHashMap<>(cart));
+                cart.clear();
+                updateCartLabel();
+            });
+            JButton clearCartBtn = new JButton("Clear Cart");
+            clearCartBtn.addActionListener(e -> {
+                cart.clear();
+                updateCartLabel();
+            });
+            cartPanel.add(cartLabel);
+            cartPanel.add(checkoutBtn);
+            cartPanel.add(clearCartBtn);
+
+            JPanel actionsPanel = new JPanel(new GridLayout(2, 1));
+            actionsPanel.add(controlPanel);
+            actionsPanel.add(cartPanel);
+            topPanel.add(actionsPanel, BorderLayout.SOUTH);
+            updateCartLabel();
+            updateSelection();
+            updateCountLabel();
+
             // Log Panel
             JPanel bottomPanel = new JPanel(new BorderLayout());
             bottomPanel.setBorder(BorderFactory.createTitledBorder("Activity Log"));
@@ -208,94 +978,116 @@ public class BuyerAgent extends Agent {
             setLocationRelativeTo(null);
         }
 
-        public void updateProductList(String productData) {
+        /**
+         * Merges new and changed products into the table. Rows are updated
+         * in place; unchanged products cost a comparison and nothing else.
+         */
+        public void updateProductList(Collection<Product> products) {
+            // Copy on the agent thread, the catalog keeps changing while the EDT renders
+            List<Product> snapshot = new ArrayList<>(products);
             SwingUtilities.invokeLater(() -> {
-                productsPanel.removeAll();
-
-                String[] products = productData.split("\\|");
-                for (String prod : products) {
-                    if (!prod.trim().isEmpty()) {
-                        String[] parts = prod.split(",");
-                        if (parts.length == 5) {
-                            String id = parts[0];
-                            String name = parts[1];
-                            int quantity = Integer.parseInt(parts[2]);
-                            int threshold = Integer.parseInt(parts[3]);
-                            double price = Double.parseDouble(parts[4]);
-
-                            JPanel productPanel = createProductPanel(id, name, quantity, threshold, price);
-                            productsPanel.add(productPanel);
-                            productsPanel.add(Box.createRigidArea(new Dimension(0, 5)));
-                        }
-                    }
+                if (catalogModel.update(snapshot) > 0) {
+                    updateSelection();
+                    updateCountLabel();
                 }
-
-                productsPanel.revalidate();
-                productsPanel.repaint();
             });
         }
 
-        private JPanel createProductPanel(String id, String name, int quantity, int threshold, double price) {
-            JPanel panel = new JPanel(new BorderLayout(10, 5));
-            panel.setBorder(BorderFactory.createLineBorder(Color.GRAY));
-            panel.setMaximumSize(new Dimension(650, 80));
+        private Product getSelectedProduct() {
+            int viewRow = catalogTable.getSelectedRow();
+            return viewRow < 0 ? null : catalogModel.getProduct(catalogTable.convertRowIndexToModel(viewRow));
+        }
 
-            // Product Info
-            JPanel infoPanel = new JPanel(new GridLayout(3, 1));
-            JLabel nameLabel = new JLabel(name + " (" + id + ")");
-            nameLabel.setFont(new Font("Arial", Font.BOLD, 14));
-            JLabel stockLabel = new JLabel("Stock: " + quantity + " units (Threshold: " + threshold + ")");
-            JLabel priceLabel = new JLabel("Price: $" + String.format("%.2f", price));
+        /**
+         * Fits the purchase controls to the selected product's current stock.
+         */
+        private void updateSelection() {
+            Product p = getSelectedProduct();
+            int stock = p == null ? 0 : p.getQuantity();
+            selectedLabel.setText(p == null ? "Select a product" : p.getName() + " (" + p.getProductId() + ")");
+            SpinnerNumberModel model = (SpinnerNumberModel) quantitySpinner.getModel();
+            model.setMaximum(stock > 0 ? stock : 1);
+            if ((Integer) model.getValue() > (Integer) model.getMaximum()) {
+                model.setValue(model.getMaximum());
+            }
+            buyButton.setEnabled(stock > 0);
+            cartButton.setEnabled(stock > 0);
+        }
 
-            if (quantity < threshold) {
-                stockLabel.setForeground(Color.RED);
-            } else if (quantity < threshold * 1.5) {
-                stockLabel.setForeground(Color.ORANGE);
+        /**
+         * Filters rows by id or name (case-insensitive substring) and,
+         * optionally, to products below their restock threshold.
+         */
+        private void applyFilter() {
+            String text = filterField.getText().trim().toLowerCase();
+            boolean lowOnly = lowStockOnly.isSelected();
+            if (text.isEmpty() && !lowOnly) {
+                sorter.setRowFilter(null);
             } else {
-                stockLabel.setForeground(new Color(0, 150, 0));
+                sorter.setRowFilter(new RowFilter<CatalogTableModel, Integer>() {
+                    public boolean include(Entry<? extends CatalogTableModel, ? extends Integer> entry) {
+                        Product p = entry.getModel().getProduct(entry.getIdentifier());
+                        if (lowOnly && p.getQuantity() >= p.getThreshold()) {
+                            return false;
+                        }
+                        return text.isEmpty() || p.getProductId().toLowerCase().contains(text)
+                                || p.getName().toLowerCase().contains(text);
+                    }
+                });
             }
+            updateCountLabel();
+        }
 
-            infoPanel.add(nameLabel);
-            infoPanel.add(stockLabel);
-            infoPanel.add(priceLabel);
+        private void updateCountLabel() {
+            countLabel.setText(catalogTable.getRowCount() + " of " + catalogModel.getRowCount() + " products");
+        }
 
-            // Purchase Controls
-            JPanel controlPanel = new JPanel(new FlowLayout());
-            JLabel qtyLabel = new JLabel("Quantity:");
-            SpinnerModel spinnerModel = new SpinnerNumberModel(0, 0, quantity > 0 ? quantity : 1, 1);
-            JSpinner quantitySpinner = new JSpinner(spinnerModel);
-            quantitySpinner.setPreferredSize(new Dimension(60, 25));
+        private void updateCartLabel() {
+            int units = 0;
+            for (int qty : cart.values()) {
+                units += qty;
+            }
+            cartLabel.setText("Cart: " + units + " item(s), " + cart.size() + " product(s)");
+        }
 
-            JButton buyButton = new JButton("Buy");
-            buyButton.setEnabled(quantity > 0);
-            buyButton.addActionListener(e -> {
-                int qty = (Integer) quantitySpinner.getValue();
-                if (qty > 0) {
-                    myAgent.makePurchase(id, qty);
-                } else {
-                    JOptionPane.showMessageDialog(panel,
-                        "To have a successful purchase, review the quantity.\nQuantity must be greater than 0.",
-                        "Invalid Quantity",
-                        JOptionPane.WARNING_MESSAGE);
-                }
+        public void logMessage(String msg) {
+            SwingUtilities.invokeLater(() -> {
+                logArea.append("[" + java.time.LocalTime.now().format(LOG_TIME_FORMAT) + "] " + msg + "\n");
+                logArea.setCaretPosition(logArea.getDocument().getLength());
             });
+        }
+    }
 
-            controlPanel.add(qtyLabel);
-            controlPanel.add(quantitySpinner);
-            controlPanel.add(buyButton);
+    /**
+     * Colours the stock against the restock threshold: red below it,
+     * orange close to it, green otherwise.
+     */
+    private static class StockRenderer extends DefaultTableCellRenderer {
+        private static final Color OK = new Color(0, 150, 0);
 
-            panel.add(infoPanel, BorderLayout.CENTER);
-            panel.add(controlPanel, BorderLayout.EAST);
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+            Product p = ((CatalogTableModel) table.getModel()).getProduct(table.convertRowIndexToModel(row));
+            if (p.getQuantity() < p.getThreshold()) {
+                setForeground(Color.RED);
+            } else if (p.getQuantity() < p.getThreshold() * 1.5) {
+                setForeground(Color.ORANGE);
+            } else {
+                setForeground(OK);
+            }
+            setHorizontalAlignment(RIGHT);
+            return this;
+        }
+    }
 
-            return panel;
+    private static class PriceRenderer extends DefaultTableCellRenderer {
+        PriceRenderer() {
+            setHorizontalAlignment(RIGHT);
         }
 
-        public void logMessage(String msg) {
-            SwingUtilities.invokeLater(() -> {
-                logArea.append("[" + java.time.LocalTime.now().format(
-                    java.time.format.DateTimeFormatter.ofPattern("HH:mm:ss")) + "] " + msg + "\n");
-                logArea.setCaretPosition(logArea.getDocument().getLength());
-            });
+        protected void setValue(Object value) {
+            setText(value == null ? "" : String.format("$%.2f", (Double) value));
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,405 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.IntFunction;
+
+/**
+ * Secondary indexes over an InventoryAgent's products, answering
+ * QUERY_PRODUCTS without walking the whole catalog.
+ *
+ * Names and prices never change after loading, so their indexes are
+ * sorted arrays built once: slots by lower-cased name (prefix search) and
+ * by price (ranges and top-N by price), plus a trigram index of the names
+ * for substring search. Stock levels change with every purchase and
+ * restock; update() keeps the set of low-stock products (quantity below
+ * threshold) and a quantity-ordered set current.
+ *
+ * A query is driven by its most selective index and the remaining
+ * conditions are checked per candidate, so its cost follows the number of
+ * candidates that index yields, not the catalog size. When the driving
+ * index is also the requested order, the walk stops at the limit.
+ * Substrings shorter than a trigram, without any other condition to
+ * narrow them, fall back to a full scan. Products are indexed by their
+ * ProductStore slot and read from the store; Product objects are only
+ * created for the results a query returns. Agent thread only.
+ */
+public class CatalogIndex {
+    public static final String SORT_PRICE = "price";
+    public static final String SORT_PRICE_DESC = "-price";
+    public static final String SORT_QUANTITY = "quantity";
+    public static final String SORT_QUANTITY_DESC = "-quantity";
+
+    /**
+     * A parsed QUERY_PRODUCTS request:
+     *   QUERY_PRODUCTS[:key=value;key=value...]
+     * with keys prefix, contains (names, case-insensitive), minPrice,
+     * maxPrice, lowStock=true, sort (price, -price, quantity, -quantity)
+     * and limit.
+     */
+    public static class Query {
+        public String prefix;
+        public String contains;
+        public double minPrice = Double.NEGATIVE_INFINITY;
+        public double maxPrice = Double.POSITIVE_INFINITY;
+        public boolean lowStock;
+        public String sort;
+        public int limit;
+
+        /**
+         * Parses a QUERY_PRODUCTS request. Throws IllegalArgumentException
+         * (or NumberFormatException) for anything else.
+         */
+        public static Query parse(String content, int maxLimit) {
+            if (!content.equals("QUERY_PRODUCTS") && !content.startsWith("QUERY_PRODUCTS:")) {
+                throw new IllegalArgumentException("Not a product query");
+            }
+            Query q = new Query();
+            q.limit = maxLimit;
+            if (content.length() > "QUERY_PRODUCTS:".length()) {
+                for (String term : content.substring("QUERY_PRODUCTS:".length()).split(";")) {
+                    if (term.isEmpty()) {
+                        continue;
+                    }
+                    int eq = term.indexOf('=');
+                    if (eq <= 0) {
+                        throw new IllegalArgumentException("Malformed query term: " + term);
+                    }
+                    String value = term.substring(eq + 1);
+                    switch (term.substring(0, eq)) {
+                        case "prefix":
+                            q.prefix = value.toLowerCase(Locale.ROOT);
+                            break;
+                        case "contains":
+                            q.contains = value.toLowerCase(Locale.ROOT);
+                            break;
+                        case "minPrice":
+                            q.minPrice = Double.parseDouble(value);
+                            break;
+                        case "maxPrice":
+                            q.maxPrice = Double.parseDouble(value);
+                            break;
+                        case "lowStock":
+                            q.lowStock = Boolean.parseBoolean(value);
+                            break;
+                        case "sort":
+                            if (!value.equals(SORT_PRICE) && !value.equals(SORT_PRICE_DESC)
+                                    && !value.equals(SORT_QUANTITY) && !value.equals(SORT_QUANTITY_DESC)) {
+                                throw new IllegalArgumentException("Unknown sort: " + value);
+                            }
+                            q.sort = value;
+                            break;
+                        case "limit":
+                            q.limit = Math.max(0, Math.min(maxLimit, Integer.parseInt(value)));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown query term: " + term);
+                    }
+                }
+            }
+            return q;
+        }
+    }
+
+    private final ProductStore store;
+    private final IntFunction<Product> productAt;
+    private final int size;
+    private final String[] names;
+    private final int[] byName;
+    private final int[] byPrice;
+    private final Map<String, int[]> trigrams = new HashMap<>();
+
+    // Low-stock products as an indexed set: members[0 .. lowCount) and each slot's position, or -1
+    private final int[] lowMembers;
+    private final int[] lowPosition;
+    private int lowCount;
+    // (quantity << 32 | slot) of every product, and the quantity each slot is filed under
+    private final TreeSet<Long> byQuantity = new TreeSet<>();
+    private final int[] indexedQuantity;
+
+    // Slots of the products matching the current query
+    private final List<Integer> candidates = new ArrayList<>();
+    private long queries;
+    private long candidatesExamined;
+
+    /**
+     * Indexes the products in the store. productAt creates the Product a
+     * query returns for a slot.
+     */
+    public CatalogIndex(ProductStore store, IntFunction<Product> productAt) {
+        this.store = store;
+        this.productAt = productAt;
+        int n = store.size();
+        size = n;
+        names = new String[n];
+        lowMembers = new int[n];
+        lowPosition = new int[n];
+        indexedQuantity = new int[n];
+        Arrays.fill(lowPosition, -1);
+
+        int count = 0;
+        Integer[] slots = new Integer[n];
+        Map<String, List<Integer>> postings = new HashMap<>();
+        for (int slot = 0; slot < n; slot++) {
+            slots[count++] = slot;
+            names[slot] = store.getName(slot).toLowerCase(Locale.ROOT);
+            String name = names[slot];
+            for (int i = 0; i + 3 <= name.length(); i++) {
+                List<Integer> posting = postings.computeIfAbsent(name.substring(i, i + 3), k -> new ArrayList<>());
+                // Slots come in ascending order, so a repeated trigram is always the last entry
+                if (posting.isEmpty() || posting.get(posting.size() - 1) != slot) {
+                    posting.add(slot);
+                }
+            }
+            int quantity = store.getQuantity(slot);
+            indexedQuantity[slot] = quantity;
+            byQuantity.add(key(quantity, slot));
+            if (quantity < store.getThreshold(slot)) {
+                addLow(slot);
+            }
+        }
+        for (Map.Entry<String, List<Integer>> e : postings.entrySet()) {
+            trigrams.put(e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        Integer[] sorted = Arrays.copyOf(slots, count);
+        Arrays.sort(sorted, Comparator.comparing((Integer s) -> names[s]));
+        byName = Arrays.stream(sorted).mapToInt(Integer::intValue).toArray();
+        sorted = Arrays.copyOf(slots, count);
+        Arrays.sort(sorted, Comparator.comparingDouble((Integer s) -> store.getPrice(s)));
+        byPrice = Arrays.stream(sorted).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Refiles the product in slot after its quantity changed in the store.
+     */
+    public void update(int slot) {
+        int quantity = store.getQuantity(slot);
+        if (quantity != indexedQuantity[slot]) {
+            byQuantity.remove(key(indexedQuantity[slot], slot));
+            byQuantity.add(key(quantity, slot));
+            indexedQuantity[slot] = quantity;
+        }
+        boolean low = quantity < store.getThreshold(slot);
+        if (low && lowPosition[slot] < 0) {
+            addLow(slot);
+        } else if (!low && lowPosition[slot] >= 0) {
+            removeLow(slot);
+        }
+    }
+
+    /**
+     * Runs the query and adds up to query.limit matching products to
+     * results, in the requested order (slot order if none). Returns true
+     * if more products matched than were returned.
+     */
+    public boolean query(Query q, List<Product> results) {
+        queries++;
+        int limit = q.limit;
+
+        // Candidate counts of the indexes that apply
+        int priceFrom = 0;
+        int priceTo = byPrice.length;
+        boolean priceBounded = q.minPrice > Double.NEGATIVE_INFINITY || q.maxPrice < Double.POSITIVE_INFINITY;
+        if (priceBounded) {
+            priceFrom = lowerBoundPrice(q.minPrice, false);
+            priceTo = lowerBoundPrice(q.maxPrice, true);
+        }
+        int nameFrom = 0;
+        int nameTo = 0;
+        if (q.prefix != null) {
+            nameFrom = lowerBoundName(q.prefix);
+            nameTo = lowerBoundName(q.prefix + Character.MAX_VALUE);
+        }
+        int[] posting = q.contains != null ? rarestTrigram(q.contains) : null;
+
+        // An ordered walk can stop at the limit unless a narrower index makes it pointless
+        boolean byPriceOrder = SORT_PRICE.equals(q.sort) || SORT_PRICE_DESC.equals(q.sort);
+        int best = byPriceOrder || priceBounded ? priceTo - priceFrom : Integer.MAX_VALUE;
+        char driver = byPriceOrder || priceBounded ? 'p' : 's';
+        if (q.prefix != null && nameTo - nameFrom < best) {
+            best = nameTo - nameFrom;
+            driver = 'n';
+        }
+        if (posting != null && posting.length < best) {
+            best = posting.length;
+            driver = 't';
+        }
+        if (q.lowStock && lowCount < best) {
+            best = lowCount;
+            driver = 'l';
+        }
+        boolean quantityOrder = SORT_QUANTITY.equals(q.sort) || SORT_QUANTITY_DESC.equals(q.sort);
+        if (quantityOrder && driver == 's') {
+            driver = 'q';
+        }
+        boolean ordered = (driver == 'p' && byPriceOrder) || driver == 'q' || (driver == 's' && q.sort == null);
+
+        candidates.clear();
+        int matched = 0;
+        switch (driver) {
+            case 'p':
+                boolean descending = SORT_PRICE_DESC.equals(q.sort);
+                for (int i = 0; i < priceTo - priceFrom && !(ordered && matched > limit); i++) {
+                    matched += collect(q, byPrice[descending ? priceTo - 1 - i : priceFrom + i]);
+                }
+                break;
+            case 'n':
+                for (int i = nameFrom; i < nameTo; i++) {
+                    matched += collect(q, byName[i]);
+                }
+                break;
+            case 't':
+                for (int slot : posting) {
+                    matched += collect(q, slot);
+                }
+                break;
+            case 'l':
+                for (int i = 0; i < lowCount; i++) {
+                    matched += collect(q, lowMembers[i]);
+                }
+                break;
+            case 'q':
+                Iterator<Long> it = SORT_QUANTITY_DESC.equals(q.sort)
+                        ? byQuantity.descendingIterator() : byQuantity.iterator();
+                while (it.hasNext() && matched <= limit) {
+                    matched += collect(q, (int) (long) it.next());
+                }
+                break;
+            default:
+                for (int slot = 0; slot < size && matched <= limit; slot++) {
+                    matched += collect(q, slot);
+                }
+        }
+
+        if (!ordered) {
+            if (q.sort != null) {
+                candidates.sort(comparator(q.sort));
+            } else {
+                candidates.sort(null);
+            }
+        }
+        int n = Math.min(limit, candidates.size());
+        for (int i = 0; i < n; i++) {
+            results.add(productAt.apply(candidates.get(i)));
+        }
+        return candidates.size() > limit;
+    }
+
+    public int getLowStockCount() {
+        return lowCount;
+    }
+
+    public long getQueries() {
+        return queries;
+    }
+
+    /**
+     * Products looked at by all queries so far; compared with the results
+     * returned it shows how well the indexes narrow queries down.
+     */
+    public long getCandidatesExamined() {
+        return candidatesExamined;
+    }
+
+    private int collect(Query q, int slot) {
+        candidatesExamined++;
+        double price = store.getPrice(slot);
+        if ((q.lowStock && lowPosition[slot] < 0)
+                || price < q.minPrice || price > q.maxPrice
+                || (q.prefix != null && !names[slot].startsWith(q.prefix))
+                || (q.contains != null && !names[slot].contains(q.contains))) {
+            return 0;
+        }
+        candidates.add(slot);
+        return 1;
+    }
+
+    private Comparator<Integer> comparator(String sort) {
+        switch (sort) {
+            case SORT_PRICE:
+                return Comparator.<Integer>comparingDouble(store::getPrice);
+            case SORT_PRICE_DESC:
+                return Comparator.<Integer>comparingDouble(store::getPrice).reversed();
+            case SORT_QUANTITY:
+                return Comparator.<Integer>comparingInt(store::getQuantity);
+            default:
+                return Comparator.<Integer>comparingInt(store::getQuantity).reversed();
+        }
+    }
+
+    /**
+     * Posting list of the query's least common trigram (empty if one does
+     * not occur at all), or null for substrings shorter than a trigram.
+     */
+    private int[] rarestTrigram(String s) {
+        if (s.length() < 3) {
+            return null;
+        }
+        int[] rarest = null;
+        for (int i = 0; i + 3 <= s.length(); i++) {
+            int[] posting = trigrams.get(s.substring(i, i + 3));
+            if (posting == null) {
+                return new int[0];
+            }
+            if (rarest == null || posting.length < rarest.length) {
+                rarest = posting;
+            }
+        }
+        return rarest;
+    }
+
+    /**
+     * First position in byPrice with a price >= price (> price when after is set).
+     */
+    private int lowerBoundPrice(double price, boolean after) {
+        int lo = 0;
+        int hi = byPrice.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double p = store.getPrice(byPrice[mid]);
+            if (p < price || (after && p == price)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int lowerBoundName(String name) {
+        int lo = 0;
+        int hi = byName.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (names[byName[mid]].compareTo(name) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void addLow(int slot) {
+        lowPosition[slot] = lowCount;
+        lowMembers[lowCount++] = slot;
+    }
+
+    private void removeLow(int slot) {
+        int position = lowPosition[slot];
+        int last = lowMembers[--lowCount];
+        lowMembers[position] = last;
+        lowPosition[last] = position;
+        lowPosition[slot] = -1;
+    }
+
+    private static long key(int quantity, int slot) {
+        return ((long) quantity << 32) | slot;
+    }
+}
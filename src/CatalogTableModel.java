@@ -0,0 +1,118 @@
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The buyer's catalog as a table, one row per product, keyed by product id.
+ *
+ * update() merges changed products in place: rows whose values changed
+ * fire a rows-updated event, new products are appended with one
+ * rows-inserted event, so a refresh never rebuilds the table and only the
+ * visible rows are rendered again. Products are the ones read from catalog
+ * messages, which the buyer never modifies. EDT only.
+ */
+public class CatalogTableModel extends AbstractTableModel {
+    public static final int COLUMN_ID = 0;
+    public static final int COLUMN_NAME = 1;
+    public static final int COLUMN_STOCK = 2;
+    public static final int COLUMN_THRESHOLD = 3;
+    public static final int COLUMN_PRICE = 4;
+
+    private static final String[] COLUMN_NAMES = {"ID", "Name", "Stock", "Threshold", "Price"};
+    private static final Class<?>[] COLUMN_CLASSES = {String.class, String.class, Integer.class, Integer.class, Double.class};
+    // Above this many changed rows one range event is cheaper than an event per row
+    private static final int MAX_ROW_EVENTS = 256;
+
+    private final List<Product> rows = new ArrayList<>();
+    private final Map<String, Integer> rowById = new HashMap<>();
+    private final List<Integer> updated = new ArrayList<>();
+
+    /**
+     * Applies new or changed products. Returns the number of rows that changed.
+     */
+    public int update(Collection<Product> products) {
+        int firstInserted = rows.size();
+        updated.clear();
+        for (Product p : products) {
+            Integer row = rowById.get(p.getProductId());
+            if (row == null) {
+                rowById.put(p.getProductId(), rows.size());
+                rows.add(p);
+            } else if (!sameValues(rows.get(row), p)) {
+                rows.set(row, p);
+                if (row < firstInserted) {
+                    updated.add(row);
+                }
+            }
+        }
+
+        if (updated.size() > MAX_ROW_EVENTS) {
+            fireTableRowsUpdated(0, firstInserted - 1);
+        } else {
+            for (int row : updated) {
+                fireTableRowsUpdated(row, row);
+            }
+        }
+        if (rows.size() > firstInserted) {
+            fireTableRowsInserted(firstInserted, rows.size() - 1);
+        }
+        return updated.size() + rows.size() - firstInserted;
+    }
+
+    public Product getProduct(int row) {
+        return rows.get(row);
+    }
+
+    /**
+     * Model row of the product, or -1.
+     */
+    public int rowOf(String productId) {
+        Integer row = rowById.get(productId);
+        return row == null ? -1 : row;
+    }
+
+    private static boolean sameValues(Product a, Product b) {
+        return a.getQuantity() == b.getQuantity() && a.getThreshold() == b.getThreshold()
+                && a.getPrice() == b.getPrice() && a.getName().equals(b.getName());
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return COLUMN_CLASSES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Product p = rows.get(row);
+        switch (column) {
+            case COLUMN_ID:
+                return p.getProductId();
+            case COLUMN_NAME:
+                return p.getName();
+            case COLUMN_STOCK:
+                return p.getQuantity();
+            case COLUMN_THRESHOLD:
+                return p.getThreshold();
+            default:
+                return p.getPrice();
+        }
+    }
+}
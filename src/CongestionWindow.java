@@ -0,0 +1,83 @@
+import java.util.Random;
+
+/**
+ * How many requests a buyer may have waiting for an InventoryAgent, and
+ * when it may send again, adapted to how the agent copes (AIMD):
+ *   each reply that is not a refusal widens the window by 1 / window, so
+ *   by about one request per window's worth of replies;
+ *   a refusal (see AdmissionControl) or a timeout halves it, down to one,
+ *   and a refusal also holds off new requests for its retry time plus up
+ *   to half again at random, so refused buyers do not all come back at
+ *   once.
+ * Only the first refusal or timeout of a request sent after the last
+ * decrease counts, so a burst of refusals for requests that were already
+ * on their way halves the window once, not down to one.
+ *
+ * Times are System.nanoTime() values. Not thread-safe.
+ */
+public class CongestionWindow {
+    private final int max;
+    private final Random random;
+    private double limit;
+    private long resumeAt;
+    private long lastDecreaseAt;
+
+    public CongestionWindow(int initial, int max, Random random) {
+        this.max = Math.max(1, max);
+        this.limit = Math.max(1, Math.min(initial, this.max));
+        this.random = random;
+        this.resumeAt = System.nanoTime();
+        this.lastDecreaseAt = resumeAt;
+    }
+
+    /**
+     * True if another request may be sent now, with inFlight unanswered.
+     */
+    public boolean allows(int inFlight, long now) {
+        return inFlight < (int) limit && now - resumeAt >= 0;
+    }
+
+    /**
+     * Records a reply to a request that was not refused.
+     */
+    public void onReply() {
+        limit = Math.min(max, limit + 1 / limit);
+    }
+
+    /**
+     * Records that a request sent at sentAt was refused at now, to be
+     * retried after retryAfterMs.
+     */
+    public void onRefused(long sentAt, long now, long retryAfterMs) {
+        long pauseNanos = (long) (retryAfterMs * 1_000_000L * (1 + random.nextDouble() / 2));
+        if (now + pauseNanos - resumeAt > 0) {
+            resumeAt = now + pauseNanos;
+        }
+        decrease(sentAt, now);
+    }
+
+    /**
+     * Records that a request sent at sentAt had no reply by now.
+     */
+    public void onTimeout(long sentAt, long now) {
+        decrease(sentAt, now);
+    }
+
+    private void decrease(long sentAt, long now) {
+        if (sentAt - lastDecreaseAt > 0) {
+            limit = Math.max(1, limit / 2);
+            lastDecreaseAt = now;
+        }
+    }
+
+    /**
+     * Time until requests may be sent again, in ns (0 if they may now).
+     */
+    public long pauseNanos(long now) {
+        return Math.max(0, resumeAt - now);
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+}
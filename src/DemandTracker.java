@@ -0,0 +1,131 @@
+/**
+ * Observed demand and restock lead time of an InventoryAgent's products,
+ * and the reorder points and order quantities derived from them.
+ *
+ * Demand is an exponentially decayed rate (units per ms, time constant
+ * inventory.demand.windowMs) of the units bought plus the units asked for
+ * but not in stock. Lead time is an EWMA of the time from restock request
+ * to delivery. Once a product has both, it is reordered when its stock
+ * falls below the demand expected over one lead time plus safety stock,
+ * and ordered in the economic order quantity sqrt(2 * D * S / H), for
+ * daily demand D, cost per order S and daily holding cost per unit H.
+ *
+ * Until then, and for products with a static override
+ * (inventory.reorder.static=true for all, inventory.reorder.static.<id>
+ * for one), the stored threshold applies and twice the threshold is
+ * ordered. Products are indexed by their ProductStore slot, and their
+ * threshold, price and stock are read from the store. Agent thread only.
+ */
+public class DemandTracker {
+    private static final boolean ALL_STATIC = Boolean.getBoolean("inventory.reorder.static");
+    private static final double WINDOW_MS = Math.max(1L, Long.getLong("inventory.demand.windowMs", 60_000L));
+    private static final double LEAD_TIME_ALPHA = Double.parseDouble(System.getProperty("inventory.demand.leadTimeAlpha", "0.3"));
+    // Extra stock held against demand or lead time above their averages, as a fraction of lead time demand
+    private static final double SAFETY_FACTOR = Double.parseDouble(System.getProperty("inventory.reorder.safetyFactor", "0.5"));
+    private static final double ORDER_COST = Double.parseDouble(System.getProperty("inventory.reorder.orderCost", "10.0"));
+    // Cost of holding one unit for a day, as a fraction of its price
+    private static final double HOLDING_RATE = Double.parseDouble(System.getProperty("inventory.reorder.holdingRate", "0.1"));
+    private static final int MAX_ORDER = Integer.getInteger("inventory.reorder.maxQuantity", 10_000);
+    private static final double MS_PER_DAY = 24 * 3600 * 1000.0;
+
+    private final ProductStore store;
+    private final double[] rate;
+    private final long[] rateAt;
+    private final double[] leadTimeMs;
+    private final boolean[] fixed;
+
+    /**
+     * A tracker for the products in the store.
+     */
+    public DemandTracker(ProductStore store) {
+        this.store = store;
+        int n = store.size();
+        rate = new double[n];
+        rateAt = new long[n];
+        leadTimeMs = new double[n];
+        fixed = new boolean[n];
+        for (int slot = 0; slot < n; slot++) {
+            fixed[slot] = ALL_STATIC || Boolean.getBoolean("inventory.reorder.static." + store.getProductId(slot));
+        }
+    }
+
+    /**
+     * Records units of demand for the product at time now (ms), whether
+     * they could be served or not.
+     */
+    public void recordDemand(int slot, int units, long now) {
+        rate[slot] = rateAt(slot, now) + units / WINDOW_MS;
+        rateAt[slot] = now;
+    }
+
+    /**
+     * Records the time a restock of the product took to arrive.
+     */
+    public void recordLeadTime(int slot, double millis) {
+        double previous = leadTimeMs[slot];
+        leadTimeMs[slot] = previous == 0 ? millis : previous + LEAD_TIME_ALPHA * (millis - previous);
+    }
+
+    /**
+     * Demand rate in units per second at time now (ms).
+     */
+    public double getRate(int slot, long now) {
+        return rateAt(slot, now) * 1000;
+    }
+
+    public double getLeadTimeMs(int slot) {
+        return leadTimeMs[slot];
+    }
+
+    /**
+     * Whether the product's reorder point and quantity come from observed
+     * demand rather than its threshold.
+     */
+    public boolean isAdaptive(int slot) {
+        return !fixed[slot] && leadTimeMs[slot] > 0 && rate[slot] > 0;
+    }
+
+    /**
+     * Number of products whose reorder point currently comes from demand.
+     */
+    public int getAdaptiveCount() {
+        int n = 0;
+        for (int slot = 0; slot < fixed.length; slot++) {
+            if (isAdaptive(slot)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Stock level below which the product is restocked.
+     */
+    public int reorderPoint(int slot, long now) {
+        if (!isAdaptive(slot)) {
+            return store.getThreshold(slot);
+        }
+        double leadTimeDemand = rateAt(slot, now) * leadTimeMs[slot];
+        return (int) Math.ceil(leadTimeDemand * (1 + SAFETY_FACTOR));
+    }
+
+    /**
+     * Units to order for a restock of the product: at least enough to get
+     * back above its reorder point.
+     */
+    public int orderQuantity(int slot, long now) {
+        if (!isAdaptive(slot)) {
+            return store.getThreshold(slot) * 2;
+        }
+        double dailyDemand = rateAt(slot, now) * MS_PER_DAY;
+        double holdingCost = Math.max(HOLDING_RATE * store.getPrice(slot), 1e-9);
+        long eoq = Math.round(Math.sqrt(2 * dailyDemand * ORDER_COST / holdingCost));
+        long shortfall = (long) reorderPoint(slot, now) - store.getQuantity(slot) + 1;
+        return (int) Math.max(1, Math.min(MAX_ORDER, Math.max(eoq, shortfall)));
+    }
+
+    private double rateAt(int slot, long now) {
+        long elapsed = now - rateAt[slot];
+        return elapsed <= 0 ? rate[slot] : rate[slot] * Math.exp(-elapsed / WINDOW_MS);
+    }
+}
@@ -0,0 +1,216 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The agents registered in the DF under a service type that are ready to
+ * serve, kept current by a DF subscription instead of searching.
+ *
+ * The DF answers the subscription with the matching registrations and
+ * then notifies every registration, change and deregistration. Each agent
+ * that (re)registers is asked QUERY_IF "READY" and only counts as ready
+ * once it has confirmed: an agent registers
+ * during setup, before any of its behaviours run, and a restarted agent
+ * may reuse a name the DF still knows. The listener is called whenever
+ * the ready set changes, so peers bind as soon as an agent is up and
+ * rebind when it moves, restarts or goes away.
+ *
+ * Agents offering a service answer the handshake with ReadinessServer.
+ * The subscription and the handshake share one conversation id, so an
+ * agent that reads its mailbox through a MessageDispatcher registers
+ * handle() for getConversationId() and calls subscribe() instead of
+ * adding the watch as a behaviour.
+ */
+public class DirectoryWatch extends CyclicBehaviour {
+    public static final String READY = "READY";
+
+    public interface Listener {
+        void readyChanged(DirectoryWatch watch);
+    }
+
+    private final String serviceType;
+    private final Listener listener;
+    private final String id;
+    private final MessageTemplate mt;
+    private final Map<AID, DFAgentDescription> registered = new LinkedHashMap<>();
+    private final Map<AID, DFAgentDescription> ready = new LinkedHashMap<>();
+    private ACLMessage subscription;
+
+    public DirectoryWatch(Agent agent, String serviceType, Listener listener) {
+        super(agent);
+        this.serviceType = serviceType;
+        this.listener = listener;
+        this.id = "watch-" + agent.getLocalName() + "-" + serviceType + "-" + System.nanoTime();
+        this.mt = MessageTemplate.MatchConversationId(id);
+    }
+
+    public void onStart() {
+        subscribe();
+    }
+
+    /**
+     * Subscribes to the DF for registrations of the service type.
+     */
+    public void subscribe() {
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(serviceType);
+        template.addServices(sd);
+        SearchConstraints all = new SearchConstraints();
+        all.setMaxResults(-1L);
+
+        subscription = DFService.createSubscriptionMessage(myAgent, myAgent.getDefaultDF(), template, all);
+        subscription.setConversationId(id);
+        myAgent.send(subscription);
+    }
+
+    public void action() {
+        ACLMessage msg = myAgent.receive(mt);
+        if (msg == null) {
+            block();
+            return;
+        }
+        handle(msg);
+    }
+
+    /**
+     * Handles a DF notification or an answer to the readiness handshake.
+     */
+    public void handle(ACLMessage msg) {
+        if (msg.getPerformative() == ACLMessage.CONFIRM) {
+            DFAgentDescription dfd = registered.get(msg.getSender());
+            if (dfd != null && !ready.containsKey(msg.getSender())) {
+                ready.put(msg.getSender(), dfd);
+                listener.readyChanged(this);
+            }
+        } else if (msg.getPerformative() == ACLMessage.INFORM) {
+            try {
+                if (apply(DFService.decodeNotification(msg.getContent()))) {
+                    listener.readyChanged(this);
+                }
+            } catch (FIPAException fe) {
+                System.err.println("[" + myAgent.getLocalName() + "] Bad DF notification for " + serviceType
+                        + ": " + fe.getMessage());
+            }
+        } else if ((msg.getPerformative() == ACLMessage.REFUSE || msg.getPerformative() == ACLMessage.FAILURE)
+                && msg.getSender().equals(myAgent.getDefaultDF())) {
+            System.err.println("[" + myAgent.getLocalName() + "] DF refused to notify " + serviceType
+                    + " registrations: " + msg.getContent());
+        }
+    }
+
+    /**
+     * Applies registrations from a DF notification. An agent without a
+     * matching service has deregistered (or changed to another service)
+     * and is dropped; a new or changed registration is asked whether it is
+     * ready. Returns true if the ready set changed.
+     */
+    private boolean apply(DFAgentDescription[] notified) {
+        boolean changed = false;
+        ACLMessage ask = null;
+        for (DFAgentDescription dfd : notified) {
+            AID name = dfd.getName();
+            if (!offers(dfd)) {
+                registered.remove(name);
+                changed |= ready.remove(name) != null;
+                continue;
+            }
+            registered.put(name, dfd);
+            // A changed registration counts again once the agent confirms
+            changed |= ready.remove(name) != null;
+            if (ask == null) {
+                ask = new ACLMessage(ACLMessage.QUERY_IF);
+                ask.setConversationId(id);
+                ask.setContent(READY);
+            }
+            ask.addReceiver(name);
+        }
+        if (ask != null) {
+            myAgent.send(ask);
+        }
+        return changed;
+    }
+
+    private boolean offers(DFAgentDescription dfd) {
+        Iterator<?> services = dfd.getAllServices();
+        while (services.hasNext()) {
+            if (serviceType.equals(((ServiceDescription) services.next()).getType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registrations of the agents that have confirmed they are ready, in
+     * the order they did.
+     */
+    public DFAgentDescription[] getReady() {
+        return ready.values().toArray(new DFAgentDescription[0]);
+    }
+
+    public boolean isReady(AID agent) {
+        return ready.containsKey(agent);
+    }
+
+    public String getServiceType() {
+        return serviceType;
+    }
+
+    public String getConversationId() {
+        return id;
+    }
+
+    /**
+     * Ends the DF subscription and removes the behaviour.
+     */
+    public void cancel() {
+        if (subscription != null) {
+            myAgent.send(DFService.createCancelMessage(myAgent, myAgent.getDefaultDF(), subscription));
+            subscription = null;
+        }
+        myAgent.removeBehaviour(this);
+    }
+
+    /**
+     * Answers QUERY_IF "READY" with CONFIRM. Added in setup(), so it only
+     * answers once setup has finished and the agent's behaviours run; an
+     * agent with a MessageDispatcher registers handle() for QUERY_IF READY.
+     */
+    public static class ReadinessServer extends CyclicBehaviour {
+        private final MessageTemplate mt = MessageTemplate.and(
+            MessageTemplate.MatchPerformative(ACLMessage.QUERY_IF),
+            MessageTemplate.MatchContent(READY)
+        );
+
+        public ReadinessServer(Agent agent) {
+            super(agent);
+        }
+
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            handle(msg);
+        }
+
+        public void handle(ACLMessage msg) {
+            ACLMessage reply = msg.createReply();
+            reply.setPerformative(ACLMessage.CONFIRM);
+            myAgent.send(reply);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+import jade.core.Agent;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured event log shared by all agents of the JVM.
+ *
+ * Agents fill preallocated slots of a ring buffer and a background thread
+ * writes them out: as JSON lines to log.file, and as "[COMPONENT] event
+ * key=value ..." lines to the console when log.console is set. Logging
+ * never blocks an agent: when the buffer is full the event is dropped and
+ * counted (see getDropped()). An event the writer cannot format is
+ * skipped, reported and counted as well (see getFailed()).
+ *
+ * Events go through a Channel, which fixes the component and event name
+ * and applies the level threshold (log.level) and sampling
+ * (log.sample.<event>=N keeps one event in N):
+ *
+ *   EventLog.Event e = purchaseLog.begin(EventLog.INFO);
+ *   if (e != null) {
+ *       e.num("requests", n).str("product", id).commit();
+ *   }
+ */
+public final class EventLog {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    private static final String[] LEVELS = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+    private static final int MAX_FIELDS = 8;
+    private static final byte NUMBER = 0;
+    private static final byte STRING = 1;
+    private static final byte DECIMAL = 2;
+    private static final int LEVEL = levelOf(System.getProperty("log.level", "INFO"));
+    private static final int BUFFER_SIZE = Integer.highestOneBit(Math.max(64, Integer.getInteger("log.bufferSize", 8192)));
+    private static final String FILE = System.getProperty("log.file", "agents.jsonl");
+    private static final boolean CONSOLE = Boolean.parseBoolean(System.getProperty("log.console", "true"));
+
+    /**
+     * One slot of the ring buffer, reused once the writer has consumed it.
+     */
+    public static final class Event {
+        private volatile long published = -1;
+        private long sequence;
+        private long timeMillis;
+        private int level;
+        private Channel channel;
+        private int fieldCount;
+        private final String[] keys = new String[MAX_FIELDS];
+        private final byte[] types = new byte[MAX_FIELDS];
+        private final String[] strings = new String[MAX_FIELDS];
+        private final long[] numbers = new long[MAX_FIELDS];
+
+        public Event num(String key, long value) {
+            if (fieldCount < MAX_FIELDS) {
+                keys[fieldCount] = key;
+                types[fieldCount] = NUMBER;
+                numbers[fieldCount++] = value;
+            }
+            return this;
+        }
+
+        public Event num(String key, double value) {
+            if (fieldCount < MAX_FIELDS) {
+                keys[fieldCount] = key;
+                types[fieldCount] = DECIMAL;
+                numbers[fieldCount++] = Double.doubleToRawLongBits(value);
+            }
+            return this;
+        }
+
+        public Event str(String key, String value) {
+            if (fieldCount < MAX_FIELDS) {
+                keys[fieldCount] = key;
+                types[fieldCount] = STRING;
+                strings[fieldCount++] = value == null ? "null" : value;
+            }
+            return this;
+        }
+
+        /**
+         * Hands the event to the writer. The event must not be touched afterwards.
+         */
+        public void commit() {
+            published = sequence;
+        }
+    }
+
+    /**
+     * Events of one kind from one agent.
+     */
+    public static final class Channel {
+        private final Agent agent;
+        private final String component;
+        private final String event;
+        private final int sampleEvery;
+        private String agentName;
+        private int sampled;
+
+        public Channel(Agent agent, String component, String event) {
+            this.agent = agent;
+            this.component = component;
+            this.event = event;
+            this.sampleEvery = Math.max(1, Integer.getInteger("log.sample." + event, 1));
+        }
+
+        /**
+         * Claims a slot for an event at the given level, or returns null if
+         * the level is disabled, the event is sampled out or the buffer is
+         * full. Called from the agent's own thread; a claimed event must be
+         * committed right away, the writer waits for it.
+         */
+        public Event begin(int level) {
+            if (level < LEVEL) {
+                return null;
+            }
+            if (sampleEvery > 1 && level < WARN && sampled++ % sampleEvery != 0) {
+                return null;
+            }
+            if (agentName == null) {
+                // An agent that was never started (as in the benchmarks) has no name
+                String name = agent != null ? agent.getLocalName() : null;
+                agentName = name != null ? name : "unnamed";
+            }
+            Event e = claim();
+            if (e != null) {
+                e.timeMillis = System.currentTimeMillis();
+                e.level = level;
+                e.channel = this;
+                e.fieldCount = 0;
+            }
+            return e;
+        }
+
+        public boolean isEnabled(int level) {
+            return level >= LEVEL;
+        }
+    }
+
+    private static final Event[] ring = new Event[BUFFER_SIZE];
+    private static final AtomicLong head = new AtomicLong();
+    private static volatile long tail;
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static Writer file;
+    private static final PrintStream console = System.out;
+    // Used by the writer thread only
+    private static final StringBuilder json = new StringBuilder(256);
+    private static final StringBuilder text = new StringBuilder(256);
+
+    static {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Event();
+        }
+        try {
+            file = new BufferedWriter(new FileWriter(FILE, true), 64 * 1024);
+        } catch (IOException e) {
+            System.err.println("[LOG] Cannot open " + FILE + ", logging to the console only: " + e.getMessage());
+        }
+        Thread writer = new Thread(EventLog::writeLoop, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::drain, "event-log-flush"));
+    }
+
+    private EventLog() {
+    }
+
+    private static Event claim() {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= BUFFER_SIZE) {
+                dropped.incrementAndGet();
+                return null;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        Event e = ring[(int) seq & (BUFFER_SIZE - 1)];
+        e.sequence = seq;
+        return e;
+    }
+
+    /**
+     * Events dropped so far because the buffer was full.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Events that could not be written because formatting them threw.
+     */
+    public static long getFailed() {
+        return failed.get();
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Writes every published event in order and flushes the outputs.
+     * Returns the number of events written.
+     */
+    private static synchronized int drain() {
+        int written = 0;
+        while (true) {
+            long seq = tail;
+            if (seq == head.get()) {
+                break;
+            }
+            Event e = ring[(int) seq & (BUFFER_SIZE - 1)];
+            // A claimed slot is published within a few instructions, wait for it
+            int spins = 0;
+            while (e.published != seq) {
+                if (++spins > 1000) {
+                    Thread.yield();
+                }
+            }
+            try {
+                write(e);
+                written++;
+            } catch (RuntimeException ex) {
+                // One bad event must not stop the only writer thread
+                failed.incrementAndGet();
+                System.err.println("[LOG] Cannot write " + e.channel.event + " event: " + ex);
+            }
+            // Let go of the references the slot holds
+            for (int i = 0; i < e.fieldCount; i++) {
+                e.strings[i] = null;
+            }
+            tail = seq + 1;
+        }
+        if (written > 0) {
+            try {
+                if (file != null) {
+                    file.flush();
+                }
+            } catch (IOException ex) {
+                System.err.println("[LOG] Error writing " + FILE + ": " + ex.getMessage());
+            }
+            if (CONSOLE) {
+                console.flush();
+            }
+        }
+        return written;
+    }
+
+    private static void write(Event e) {
+        Channel c = e.channel;
+        json.setLength(0);
+        json.append("{\"ts\":").append(e.timeMillis)
+            .append(",\"level\":\"").append(LEVELS[e.level])
+            .append("\",\"agent\":");
+        quote(c.agentName);
+        json.append(",\"event\":");
+        quote(c.event);
+        for (int i = 0; i < e.fieldCount; i++) {
+            json.append(',');
+            quote(e.keys[i]);
+            json.append(':');
+            appendValue(json, e, i, true);
+        }
+        json.append("}\n");
+        try {
+            if (file != null) {
+                file.append(json);
+            }
+        } catch (IOException ex) {
+            System.err.println("[LOG] Error writing " + FILE + ": " + ex.getMessage());
+        }
+
+        if (CONSOLE) {
+            text.setLength(0);
+            text.append('[').append(c.component).append("] ").append(c.event);
+            if (e.level != INFO) {
+                text.append(' ').append(LEVELS[e.level]);
+            }
+            for (int i = 0; i < e.fieldCount; i++) {
+                text.append(' ').append(e.keys[i]).append('=');
+                appendValue(text, e, i, false);
+            }
+            console.println(text);
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, Event e, int i, boolean quoted) {
+        switch (e.types[i]) {
+            case STRING:
+                if (quoted) {
+                    quote(e.strings[i]);
+                } else {
+                    sb.append(e.strings[i]);
+                }
+                break;
+            case DECIMAL:
+                double d = Double.longBitsToDouble(e.numbers[i]);
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    sb.append(quoted ? "null" : String.valueOf(d));
+                } else {
+                    sb.append(d);
+                }
+                break;
+            default:
+                sb.append(e.numbers[i]);
+        }
+    }
+
+    private static void quote(String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        json.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        json.append(ch);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    private static int levelOf(String name) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return INFO;
+    }
+}
@@ -0,0 +1,133 @@
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Restock orders a SupplierAgent is working on.
+ *
+ * Every order line becomes a job with its own lead time. At most
+ * `concurrency` jobs are in progress at once; the rest wait in arrival
+ * order and their lead time starts when they get a slot. The scheduler
+ * only keeps time, the owning agent polls it for jobs that are done.
+ */
+public class FulfilmentScheduler {
+
+    public static class Job {
+        final ACLMessage request;
+        final boolean batch;
+        final String productId;
+        final int quantity;
+        final long leadTimeMs;
+        final long submittedAt = System.nanoTime();
+        long dueAt;
+
+        Job(ACLMessage request, boolean batch, String productId, int quantity, long leadTimeMs) {
+            this.request = request;
+            this.batch = batch;
+            this.productId = productId;
+            this.quantity = quantity;
+            this.leadTimeMs = leadTimeMs;
+        }
+
+        public ACLMessage getRequest() {
+            return request;
+        }
+
+        /**
+         * Whether the job came from a RESTOCK_BATCH rather than a single RESTOCK.
+         */
+        public boolean isBatch() {
+            return batch;
+        }
+
+        public String getProductId() {
+            return productId;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        /**
+         * System.nanoTime() at which the job was accepted.
+         */
+        public long getSubmittedAt() {
+            return submittedAt;
+        }
+    }
+
+    private final int concurrency;
+    private final ArrayDeque<Job> waiting = new ArrayDeque<>();
+    private final PriorityQueue<Job> active = new PriorityQueue<>((a, b) -> Long.compare(a.dueAt, b.dueAt));
+    private long completed;
+
+    public FulfilmentScheduler(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Accepts a job. It starts right away if a slot is free.
+     */
+    public void submit(ACLMessage request, boolean batch, String productId, int quantity, long leadTimeMs) {
+        waiting.add(new Job(request, batch, productId, quantity, leadTimeMs));
+        startWaiting(System.currentTimeMillis());
+    }
+
+    /**
+     * Moves every job whose lead time has passed into done and starts
+     * waiting jobs in the freed slots. Returns the number of jobs done.
+     */
+    public int poll(List<Job> done) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        while (!active.isEmpty() && active.peek().dueAt <= now) {
+            done.add(active.poll());
+            count++;
+        }
+        completed += count;
+        startWaiting(now);
+        return count;
+    }
+
+    /**
+     * Drops the jobs of the request whose reply-with is requestId. Returns
+     * the number of jobs dropped.
+     */
+    public int cancel(String requestId) {
+        int before = waiting.size() + active.size();
+        waiting.removeIf(job -> requestId.equals(job.request.getReplyWith()));
+        active.removeIf(job -> requestId.equals(job.request.getReplyWith()));
+        startWaiting(System.currentTimeMillis());
+        return before - waiting.size() - active.size();
+    }
+
+    /**
+     * Milliseconds until the next job is done, or -1 if none is in progress.
+     */
+    public long millisToNextDue() {
+        Job next = active.peek();
+        return next == null ? -1 : Math.max(0, next.dueAt - System.currentTimeMillis());
+    }
+
+    private void startWaiting(long now) {
+        while (active.size() < concurrency && !waiting.isEmpty()) {
+            Job job = waiting.poll();
+            job.dueAt = now + job.leadTimeMs;
+            active.add(job);
+        }
+    }
+
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    public int getWaitingCount() {
+        return waiting.size();
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+}
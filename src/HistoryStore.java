@@ -0,0 +1,715 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of an InventoryAgent's stock changes, kept for
+ * analytics long after the write-ahead log has been truncated.
+ *
+ * Events (time, product slot, delta, quantity after, cause) go to segment
+ * files in a directory next to the store. A segment covers at most
+ * segmentMs, aligned to wall-clock time, and a new one starts whenever the
+ * store is opened:
+ *   <start>.events  blocks of up to BLOCK_EVENTS events stored column by
+ *                   column: times as varint deltas, slots as varints,
+ *                   deltas and quantities as zigzag varints, causes as
+ *                   bytes; each block is length prefixed and CRC checked
+ *   <start>.rollup  per-minute and per-hour sums for every product that
+ *                   changed: units sold, units restocked, net change and
+ *                   the quantity at the end of the bucket
+ * A segment's rollup is written when it closes, and rebuilt from its
+ * events if it is missing (after a crash).
+ *
+ * Queries read only the segments they need. Units sold over a range add
+ * up the hour rollups of whole hours inside it and the minute rollups at
+ * its edges, to the minute. The stock level at time T comes from the last
+ * event of the product in the segment holding T, or else from the rollups
+ * of the nearest segments in which it changed. Recently read rollups are
+ * cached.
+ *
+ * Events are written a block at a time, when the block is full or flush()
+ * finds it older than flushMs, so a crash loses the unwritten tail of the
+ * history (the stock itself is safe in the log). Agent thread only.
+ */
+public class HistoryStore implements Closeable {
+    public static final String CONVERSATION_ID = "inventory-history";
+
+    private static final long MINUTE_MS = 60_000L;
+    private static final long HOUR_MS = 3_600_000L;
+    private static final int BLOCK_EVENTS = 4096;
+    // Largest encoded event: time delta(10) + slot(5) + delta(5) + quantity(5) + cause(1)
+    private static final int MAX_EVENT_BYTES = 26;
+    private static final int ROLLUP_MAGIC = 0x48495352;
+    private static final int CACHED_ROLLUPS = 64;
+
+    private final Path dir;
+    private final int slotCount;
+    private final long segmentMs;
+    private final long flushMs;
+    private final TreeSet<Long> segments = new TreeSet<>();
+    private final Map<Long, Rollup> cache = new LinkedHashMap<Long, Rollup>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Long, Rollup> eldest) {
+            return size() > CACHED_ROLLUPS;
+        }
+    };
+
+    // The open segment: its file, closed buckets and the accumulators of the current minute and hour
+    private long segmentStart = -1;
+    private long segmentEnd;
+    private FileChannel channel;
+    private Rollup open;
+    private final Accumulator minute;
+    private final Accumulator hour;
+
+    // Events not written yet, column by column
+    private final long[] times = new long[BLOCK_EVENTS];
+    private final int[] slots = new int[BLOCK_EVENTS];
+    private final int[] deltas = new int[BLOCK_EVENTS];
+    private final int[] quantities = new int[BLOCK_EVENTS];
+    private final byte[] causes = new byte[BLOCK_EVENTS];
+    private int size;
+    private long lastTime;
+    private final ByteBuffer buffer = ByteBuffer.allocate(8 + 30 + BLOCK_EVENTS * MAX_EVENT_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    private long events;
+    private long bytesWritten;
+
+    /**
+     * Opens the history in dirName (created on the first event) for
+     * products in slots 0 .. slotCount-1.
+     */
+    public HistoryStore(String dirName, int slotCount, long segmentMs, long flushMs) {
+        this.dir = Paths.get(dirName);
+        this.slotCount = slotCount;
+        this.segmentMs = Math.max(MINUTE_MS, segmentMs);
+        this.flushMs = flushMs;
+        this.minute = new Accumulator(slotCount);
+        this.hour = new Accumulator(slotCount);
+        File[] files = dir.toFile().listFiles((d, name) -> name.endsWith(".events"));
+        if (files != null) {
+            for (File f : files) {
+                try {
+                    segments.add(Long.parseLong(f.getName().substring(0, f.getName().length() - ".events".length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a stock change of the product in slot at time now (ms).
+     */
+    public void record(int slot, int delta, int quantityAfter, byte cause, long now) throws IOException {
+        if (slot < 0 || slot >= slotCount) {
+            return;
+        }
+        // Keep times ordered if the clock steps back
+        now = Math.max(now, lastTime);
+        if (segmentStart < 0 || now >= segmentEnd) {
+            startSegment(now);
+        }
+        if (size == BLOCK_EVENTS) {
+            writeBlock();
+        }
+        times[size] = now;
+        slots[size] = slot;
+        deltas[size] = delta;
+        quantities[size] = quantityAfter;
+        causes[size] = cause;
+        size++;
+        lastTime = now;
+        events++;
+
+        accumulate(open, minute, now / MINUTE_MS * MINUTE_MS, slot, delta, quantityAfter, cause, false);
+        accumulate(open, hour, now / HOUR_MS * HOUR_MS, slot, delta, quantityAfter, cause, true);
+    }
+
+    private static void accumulate(Rollup rollup, Accumulator acc, long bucketStart, int slot, int delta,
+                                   int quantityAfter, byte cause, boolean hourly) {
+        if (acc.start != bucketStart) {
+            if (acc.n > 0) {
+                (hourly ? rollup.hours : rollup.minutes).add(acc.build());
+                acc.reset();
+            }
+            acc.start = bucketStart;
+        }
+        acc.add(slot, delta, quantityAfter, cause);
+    }
+
+    /**
+     * Writes the pending events if the oldest has waited flushMs.
+     */
+    public void flush(long now) throws IOException {
+        if (size > 0 && now - times[0] >= flushMs) {
+            writeBlock();
+        }
+    }
+
+    private void startSegment(long now) throws IOException {
+        closeSegment();
+        Files.createDirectories(dir);
+        segmentStart = now;
+        segmentEnd = (now / segmentMs + 1) * segmentMs;
+        channel = FileChannel.open(eventsFile(now), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segments.add(now);
+        open = new Rollup();
+        minute.start = -1;
+        hour.start = -1;
+    }
+
+    /**
+     * Writes the open segment's last events and its rollup.
+     */
+    private void closeSegment() throws IOException {
+        if (segmentStart < 0) {
+            return;
+        }
+        writeBlock();
+        channel.force(false);
+        channel.close();
+        Rollup closed = current();
+        writeRollup(segmentStart, closed);
+        cache.put(segmentStart, closed);
+        minute.reset();
+        hour.reset();
+        segmentStart = -1;
+    }
+
+    private void writeBlock() throws IOException {
+        if (size == 0) {
+            return;
+        }
+        buffer.clear();
+        buffer.putInt(0);
+        putVarLong(buffer, size);
+        putVarLong(buffer, times[0]);
+        long previous = times[0];
+        for (int i = 0; i < size; i++) {
+            putVarLong(buffer, times[i] - previous);
+            previous = times[i];
+        }
+        for (int i = 0; i < size; i++) {
+            putVarLong(buffer, slots[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            putVarLong(buffer, zigzag(deltas[i]));
+        }
+        for (int i = 0; i < size; i++) {
+            putVarLong(buffer, zigzag(quantities[i]));
+        }
+        buffer.put(causes, 0, size);
+        int payloadLength = buffer.position() - 4;
+        buffer.putInt(0, payloadLength);
+        crc.reset();
+        crc.update(buffer.array(), 4, payloadLength);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        size = 0;
+    }
+
+    /**
+     * Units of the product sold in the whole minutes between from and to (ms).
+     */
+    public long unitsSold(int slot, long from, long to) throws IOException {
+        Long first = segments.floor(from);
+        long total = 0;
+        for (long start : segments.tailSet(first != null ? first : from, true)) {
+            if (start >= to) {
+                break;
+            }
+            total += rollup(start).sold(slot, from, to);
+        }
+        return total;
+    }
+
+    /**
+     * Quantity of the product at time t (ms), or -1 if t is before the
+     * history starts. currentQuantity is the answer when it never changed.
+     */
+    public int stockAt(int slot, long t, int currentQuantity) throws IOException {
+        Long holding = segments.floor(t);
+        if (holding == null) {
+            return -1;
+        }
+        EventScan scan = new EventScan(slot, t);
+        scanEvents(holding, scan);
+        if (scan.atOrBefore != Integer.MIN_VALUE) {
+            return scan.atOrBefore;
+        }
+        // The last change before t, in an earlier segment
+        for (Long start = segments.lower(holding); start != null; start = segments.lower(start)) {
+            Bucket last = rollup(start).lastHourWith(slot);
+            if (last != null) {
+                return last.closing[last.indexOf(slot)];
+            }
+        }
+        // Never changed before t: the stock is what it was before the next change
+        if (scan.firstAfter != Integer.MIN_VALUE) {
+            return scan.firstAfter;
+        }
+        for (long start : segments.tailSet(holding, false)) {
+            Bucket next = rollup(start).firstHourWith(slot);
+            if (next != null) {
+                int i = next.indexOf(slot);
+                return (int) (next.closing[i] - next.net[i]);
+            }
+        }
+        return currentQuantity;
+    }
+
+    public long getFirstTime() {
+        return segments.isEmpty() ? -1 : segments.first();
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    /**
+     * Finds the product's last quantity at or before t, and the quantity
+     * before its first change after t, in one segment.
+     */
+    private static class EventScan {
+        final int slot;
+        final long t;
+        int atOrBefore = Integer.MIN_VALUE;
+        int firstAfter = Integer.MIN_VALUE;
+
+        EventScan(int slot, long t) {
+            this.slot = slot;
+            this.t = t;
+        }
+
+        void block(long[] times, int[] slots, int[] deltas, int[] quantities, int n) {
+            for (int i = 0; i < n; i++) {
+                if (slots[i] != slot) {
+                    continue;
+                }
+                if (times[i] <= t) {
+                    atOrBefore = quantities[i];
+                } else if (firstAfter == Integer.MIN_VALUE) {
+                    firstAfter = quantities[i] - deltas[i];
+                }
+            }
+        }
+    }
+
+    private interface BlockVisitor {
+        void block(long[] times, int[] slots, int[] deltas, int[] quantities, byte[] causes, int n);
+    }
+
+    private void scanEvents(long start, EventScan scan) throws IOException {
+        readEvents(start, (t, s, d, q, c, n) -> scan.block(t, s, d, q, n));
+    }
+
+    /**
+     * Visits the segment's blocks in order: those on disk up to a torn or
+     * corrupt tail, then, for the open segment, the events not written yet.
+     */
+    private void readEvents(long start, BlockVisitor visitor) throws IOException {
+        long[] t = new long[BLOCK_EVENTS];
+        int[] s = new int[BLOCK_EVENTS];
+        int[] d = new int[BLOCK_EVENTS];
+        int[] q = new int[BLOCK_EVENTS];
+        byte[] c = new byte[BLOCK_EVENTS];
+        byte[] payload = new byte[buffer.capacity()];
+        CRC32 check = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(eventsFile(start).toFile())))) {
+            while (true) {
+                int payloadLength;
+                try {
+                    payloadLength = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (payloadLength <= 0 || payloadLength > payload.length) {
+                    break;
+                }
+                int storedCrc;
+                try {
+                    in.readFully(payload, 0, payloadLength);
+                    storedCrc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                check.reset();
+                check.update(payload, 0, payloadLength);
+                if ((int) check.getValue() != storedCrc) {
+                    break;
+                }
+
+                ByteBuffer block = ByteBuffer.wrap(payload, 0, payloadLength);
+                int n = (int) getVarLong(block);
+                long previous = getVarLong(block);
+                for (int i = 0; i < n; i++) {
+                    previous += getVarLong(block);
+                    t[i] = previous;
+                }
+                for (int i = 0; i < n; i++) {
+                    s[i] = (int) getVarLong(block);
+                }
+                for (int i = 0; i < n; i++) {
+                    d[i] = (int) unzigzag(getVarLong(block));
+                }
+                for (int i = 0; i < n; i++) {
+                    q[i] = (int) unzigzag(getVarLong(block));
+                }
+                block.get(c, 0, n);
+                visitor.block(t, s, d, q, c, n);
+            }
+        } catch (FileNotFoundException e) {
+            // A segment that never got an event written
+        }
+        if (start == segmentStart) {
+            visitor.block(times, slots, deltas, quantities, causes, size);
+        }
+    }
+
+    /**
+     * The segment's rollup: the open one's from memory, others from the
+     * cache, their rollup file or, failing that, their events.
+     */
+    private Rollup rollup(long start) throws IOException {
+        if (start == segmentStart) {
+            return current();
+        }
+        Rollup rollup = cache.get(start);
+        if (rollup != null) {
+            return rollup;
+        }
+        Path file = rollupFile(start);
+        rollup = file.toFile().exists() ? readRollup(file) : null;
+        if (rollup == null) {
+            rollup = rebuildRollup(start);
+            writeRollup(start, rollup);
+        }
+        cache.put(start, rollup);
+        return rollup;
+    }
+
+    /**
+     * The open segment's closed buckets plus its current minute and hour.
+     */
+    private Rollup current() {
+        Rollup r = new Rollup();
+        r.minutes.addAll(open.minutes);
+        r.hours.addAll(open.hours);
+        if (minute.n > 0) {
+            r.minutes.add(minute.build());
+        }
+        if (hour.n > 0) {
+            r.hours.add(hour.build());
+        }
+        return r;
+    }
+
+    private Rollup rebuildRollup(long start) throws IOException {
+        Rollup rollup = new Rollup();
+        Accumulator m = new Accumulator(slotCount);
+        Accumulator h = new Accumulator(slotCount);
+        readEvents(start, (t, s, d, q, c, n) -> {
+            for (int i = 0; i < n; i++) {
+                if (s[i] >= 0 && s[i] < slotCount) {
+                    accumulate(rollup, m, t[i] / MINUTE_MS * MINUTE_MS, s[i], d[i], q[i], c[i], false);
+                    accumulate(rollup, h, t[i] / HOUR_MS * HOUR_MS, s[i], d[i], q[i], c[i], true);
+                }
+            }
+        });
+        if (m.n > 0) {
+            rollup.minutes.add(m.build());
+        }
+        if (h.n > 0) {
+            rollup.hours.add(h.build());
+        }
+        return rollup;
+    }
+
+    private void writeRollup(long start, Rollup rollup) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ROLLUP_MAGIC);
+        writeBuckets(out, rollup.hours);
+        writeBuckets(out, rollup.minutes);
+        out.flush();
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(start + ".rollup.tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, rollupFile(start), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeBuckets(DataOutputStream out, List<Bucket> buckets) throws IOException {
+        writeVarLong(out, buckets.size());
+        for (Bucket b : buckets) {
+            writeVarLong(out, b.start / MINUTE_MS);
+            writeVarLong(out, b.slots.length);
+            int previous = 0;
+            for (int i = 0; i < b.slots.length; i++) {
+                // Slots are sorted, so their gaps are small
+                writeVarLong(out, b.slots[i] - previous);
+                previous = b.slots[i];
+                writeVarLong(out, b.sold[i]);
+                writeVarLong(out, b.restocked[i]);
+                writeVarLong(out, zigzag(b.net[i]));
+                writeVarLong(out, zigzag(b.closing[i]));
+            }
+        }
+    }
+
+    private static Rollup readRollup(Path file) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        try {
+            if (in.getInt() != ROLLUP_MAGIC) {
+                return null;
+            }
+            Rollup rollup = new Rollup();
+            readBuckets(in, rollup.hours);
+            readBuckets(in, rollup.minutes);
+            return rollup;
+        } catch (RuntimeException e) {
+            // Torn or corrupt: rebuilt from the events
+            return null;
+        }
+    }
+
+    private static void readBuckets(ByteBuffer in, List<Bucket> buckets) {
+        int count = (int) getVarLong(in);
+        for (int k = 0; k < count; k++) {
+            long start = getVarLong(in) * MINUTE_MS;
+            int n = (int) getVarLong(in);
+            Bucket b = new Bucket(start, n);
+            int slot = 0;
+            for (int i = 0; i < n; i++) {
+                slot += (int) getVarLong(in);
+                b.slots[i] = slot;
+                b.sold[i] = getVarLong(in);
+                b.restocked[i] = getVarLong(in);
+                b.net[i] = unzigzag(getVarLong(in));
+                b.closing[i] = (int) unzigzag(getVarLong(in));
+            }
+            buckets.add(b);
+        }
+    }
+
+    private Path eventsFile(long start) {
+        return dir.resolve(start + ".events");
+    }
+
+    private Path rollupFile(long start) {
+        return dir.resolve(start + ".rollup");
+    }
+
+    /**
+     * Sums of one minute or hour for the products that changed in it,
+     * sorted by slot.
+     */
+    private static class Bucket {
+        final long start;
+        final int[] slots;
+        final long[] sold;
+        final long[] restocked;
+        final long[] net;
+        final int[] closing;
+
+        Bucket(long start, int n) {
+            this.start = start;
+            slots = new int[n];
+            sold = new long[n];
+            restocked = new long[n];
+            net = new long[n];
+            closing = new int[n];
+        }
+
+        int indexOf(int slot) {
+            return Arrays.binarySearch(slots, slot);
+        }
+
+        long sold(int slot) {
+            int i = indexOf(slot);
+            return i >= 0 ? sold[i] : 0;
+        }
+    }
+
+    /**
+     * The minute and hour buckets of one segment, in time order.
+     */
+    private static class Rollup {
+        final List<Bucket> minutes = new ArrayList<>();
+        final List<Bucket> hours = new ArrayList<>();
+
+        /**
+         * Units sold in whole minutes between from and to: whole hours from
+         * the hour buckets, the rest from the minute buckets.
+         */
+        long sold(int slot, long from, long to) {
+            long total = 0;
+            for (Bucket h : hours) {
+                long end = h.start + HOUR_MS;
+                if (end <= from || h.start >= to) {
+                    continue;
+                }
+                if (h.start >= from && end <= to) {
+                    total += h.sold(slot);
+                    continue;
+                }
+                for (Bucket m : minutes) {
+                    if (m.start >= h.start && m.start < end && m.start >= from && m.start + MINUTE_MS <= to) {
+                        total += m.sold(slot);
+                    }
+                }
+            }
+            return total;
+        }
+
+        Bucket lastHourWith(int slot) {
+            for (int k = hours.size() - 1; k >= 0; k--) {
+                if (hours.get(k).indexOf(slot) >= 0) {
+                    return hours.get(k);
+                }
+            }
+            return null;
+        }
+
+        Bucket firstHourWith(int slot) {
+            for (Bucket h : hours) {
+                if (h.indexOf(slot) >= 0) {
+                    return h;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Sums of the bucket being filled, indexed directly by slot.
+     */
+    private static class Accumulator {
+        // Position + 1 of each slot in the arrays below, 0 if it has not changed
+        private final int[] position;
+        private int[] slots = new int[64];
+        private long[] sold = new long[64];
+        private long[] restocked = new long[64];
+        private long[] net = new long[64];
+        private int[] closing = new int[64];
+        int n;
+        long start = -1;
+
+        Accumulator(int slotCount) {
+            position = new int[slotCount];
+        }
+
+        void add(int slot, int delta, int quantityAfter, byte cause) {
+            int i = position[slot] - 1;
+            if (i < 0) {
+                if (n == slots.length) {
+                    slots = Arrays.copyOf(slots, n * 2);
+                    sold = Arrays.copyOf(sold, n * 2);
+                    restocked = Arrays.copyOf(restocked, n * 2);
+                    net = Arrays.copyOf(net, n * 2);
+                    closing = Arrays.copyOf(closing, n * 2);
+                }
+                i = n++;
+                position[slot] = n;
+                slots[i] = slot;
+                sold[i] = 0;
+                restocked[i] = 0;
+                net[i] = 0;
+            }
+            if (cause == InventoryLog.CAUSE_PURCHASE && delta < 0) {
+                sold[i] -= delta;
+            } else if (cause == InventoryLog.CAUSE_RESTOCK && delta > 0) {
+                restocked[i] += delta;
+            }
+            net[i] += delta;
+            closing[i] = quantityAfter;
+        }
+
+        Bucket build() {
+            int[] sorted = Arrays.copyOf(slots, n);
+            Arrays.sort(sorted);
+            Bucket b = new Bucket(start, n);
+            for (int k = 0; k < n; k++) {
+                int i = position[sorted[k]] - 1;
+                b.slots[k] = sorted[k];
+                b.sold[k] = sold[i];
+                b.restocked[k] = restocked[i];
+                b.net[k] = net[i];
+                b.closing[k] = closing[i];
+            }
+            return b;
+        }
+
+        void reset() {
+            for (int k = 0; k < n; k++) {
+                position[slots[k]] = 0;
+            }
+            n = 0;
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void putVarLong(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+}
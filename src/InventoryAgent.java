@@ -2,239 +2,1853 @@ import jade.core.Agent;
 import jade.core.AID;
 import jade.core.behaviours.*;
 import jade.lang.acl.ACLMessage;
-import jade.lang.acl.MessageTemplate;
 import jade.domain.DFService;
 import jade.domain.FIPAException;
+import jade.domain.FIPANames;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 public class InventoryAgent extends Agent {
-    private Map<String, Product> inventory;
-    private AID supplierAgent;
+    // The products: looked up by id through the store's index and read from its records
+    private ProductStore store;
+    private InventoryLog inventoryLog;
+    private SupplierPool suppliers;
     private static final String INVENTORY_FILE = "inventory.dat";
+    private static final String STORE_FILE = "inventory.store";
+    private static final String LOG_FILE = "inventory.log";
+
+    // Shard of the product id space owned by this agent (arguments: shardIndex, shardCount)
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private int rangeStart = 0;
+    private int rangeEnd = ShardMap.HASH_RANGE;
+    private String storeFile = STORE_FILE;
+    private String logFile = LOG_FILE;
+
+    // Minimum number of product records a newly created store can hold
+    private static final int STORE_CAPACITY = Integer.getInteger("inventory.store.capacity", 1024);
+
+    // Group commit: fsync after this many log records or this many ms, whichever comes first
+    private static final int LOG_GROUP_SIZE = Integer.getInteger("inventory.log.groupSize", 16);
+    private static final long LOG_MAX_LINGER_MS = Long.getLong("inventory.log.maxLingerMs", 50L);
+    // Checkpoint the store and truncate the log after this many records
+    private static final int SNAPSHOT_INTERVAL = Integer.getInteger("inventory.snapshot.interval", 1000);
+    // Purchase batching: requests per batch, and how long a partial batch may wait for more
+    private static final int PURCHASE_BATCH_SIZE = Integer.getInteger("inventory.purchase.batchSize", 64);
+    private static final long PURCHASE_MAX_LINGER_MS = Long.getLong("inventory.purchase.maxLingerMs", 0L);
+
+    // Max products in one catalog reply
+    private static final int CATALOG_PAGE_SIZE = Integer.getInteger("inventory.catalog.pageSize", 500);
+
+    private final BatchStats purchaseBatchStats = new BatchStats();
+
+    // Threads applying a purchase batch: the agent thread plus PURCHASE_WORKERS - 1 pool threads.
+    // Stock levels are claimed by CAS in the StockIndex; the log is written by the agent thread only.
+    private static final int PURCHASE_WORKERS = Math.max(1, Integer.getInteger("inventory.purchase.workers", 1));
+    private StockIndex stock;
+    private ExecutorService purchaseWorkers;
+    private final PurchaseContext[] purchaseContexts = new PurchaseContext[PURCHASE_WORKERS];
+    private ACLMessage[] batchReplies = new ACLMessage[PURCHASE_BATCH_SIZE];
+    // Purchases are refused with a retry time while the queue ahead of them is too long
+    private final AdmissionControl admission = new AdmissionControl();
+
+    // Runtime metrics, over JMX and QUERY_REF "METRICS"
+    private final AgentMetrics metrics = new AgentMetrics(this);
+    private final AgentMetrics.Counter purchaseMessages = metrics.handled("purchase");
+    private final AgentMetrics.Counter productListMessages = metrics.handled("productList");
+    private final AgentMetrics.Counter subscriptionMessages = metrics.handled("subscription");
+    private final AgentMetrics.Counter restockProposalMessages = metrics.handled("restockProposal");
+    private final AgentMetrics.Counter restockConfirmationMessages = metrics.handled("restockConfirmation");
+    private final AgentMetrics.Counter replicationMessages = metrics.handled("replication");
+    private final AgentMetrics.Counter historyMessages = metrics.handled("history");
+    private final AgentMetrics.Counter purchasesSucceeded = metrics.counter("purchase.succeeded");
+    private final AgentMetrics.Counter stockOuts = metrics.counter("purchase.stockOuts");
+    private final AgentMetrics.Counter purchasesRefused = metrics.counter("purchase.refused");
+    private final AgentMetrics.Counter saveBytes = metrics.counter("save.bytesWritten");
+    private final AgentMetrics.Timer purchaseServiceTime = metrics.timer("purchase.batchServiceTime");
+    private final AgentMetrics.Timer saveDuration = metrics.timer("save.duration");
+    private final AgentMetrics.Timer restockLatency = metrics.timer("restock.latency");
+
+    // Event log channels of the hot paths (see EventLog)
+    private final EventLog.Channel purchaseLog = new EventLog.Channel(this, "INVENTORY", "purchase.batch");
+    private final EventLog.Channel checkpointLog = new EventLog.Channel(this, "INVENTORY", "store.checkpoint");
+    private final EventLog.Channel restockLog = new EventLog.Channel(this, "INVENTORY", "restock.cfp");
+    private final EventLog.Channel awardLog = new EventLog.Channel(this, "INVENTORY", "restock.award");
+    private final EventLog.Channel replenishLog = new EventLog.Channel(this, "INVENTORY", "restock.applied");
+    private final EventLog.Channel promoteLog = new EventLog.Channel(this, "INVENTORY", "replica.promoted");
+
+    // Restock coalescing: window in which restocks are gathered into one batch,
+    // and how long past its promised lead time a supplier may be before we fail over
+    private static final long RESTOCK_COALESCE_MS = Long.getLong("inventory.restock.coalesceMs", 100L);
+    private static final long RESTOCK_TIMEOUT_MS = Long.getLong("inventory.restock.timeoutMs", 5000L);
+    // Contract-Net sourcing: how long suppliers have to bid, and how the winner is chosen
+    private static final long RESTOCK_CFP_TIMEOUT_MS = Long.getLong("inventory.restock.cfpTimeoutMs", 500L);
+    private static final String RESTOCK_POLICY = System.getProperty("inventory.restock.policy",
+            SupplierPool.POLICY_LEAD_TIME);
+    private final RestockTracker restocks = new RestockTracker();
+    // Reorder points and quantities from observed demand and lead times
+    private DemandTracker demand;
+    private final Map<String, SourcingRound> sourcingRounds = new HashMap<>();
+    private final Set<String> expiredRestocks = new HashSet<>();
+    private long restockRequestCounter;
+
+    // Catalog versioning: the version of a change is its log sequence number. versions holds
+    // each slot's last change, the journal the slot changed by each version
+    private long[] versions;
+    private long baseVersion;
+    private final TreeMap<Long, Integer> changeJournal = new TreeMap<>();
+    // Name, price, low-stock and quantity indexes for QUERY_PRODUCTS
+    private CatalogIndex catalogIndex;
+
+    // History of purchases and restocks (see HistoryStore): segment length and how long
+    // events may wait in memory before they are written
+    private static final long HISTORY_SEGMENT_MINUTES = Long.getLong("inventory.history.segmentMinutes", 60L);
+    private static final long HISTORY_FLUSH_MS = Long.getLong("inventory.history.flushMs", 1000L);
+    private HistoryStore history;
+
+    // Minimum time between two stock update notifications to the same subscriber
+    private static final long SUBSCRIPTION_MIN_INTERVAL_MS = Long.getLong("inventory.subscription.minIntervalMs", 200L);
+    private final StockSubscriptions subscriptions = new StockSubscriptions(SUBSCRIPTION_MIN_INTERVAL_MS);
+
+    // Replication (arguments: shardIndex, shardCount, "follower", leaderName): a follower applies
+    // the leader's change stream (see ReplicaSet), serves catalog reads while it has heard from the
+    // leader within the staleness bound, and takes over once the leader's DF registration is gone
+    public static final String REPLICA_SERVICE = "inventory-replica";
+    private static final long REPLICATION_HEARTBEAT_MS = Long.getLong("inventory.replication.heartbeatMs", 500L);
+    private static final long REPLICATION_MAX_STALENESS_MS = Long.getLong("inventory.replication.maxStalenessMs", 2000L);
+    private static final long FAILOVER_CHECK_MS = Long.getLong("inventory.replication.failoverCheckMs", 1000L);
+    private final ReplicaSet replicas = new ReplicaSet(REPLICATION_HEARTBEAT_MS);
+    private boolean follower;
+    private AID leader;
+    private long replicatedVersion;
+    private long lastLeaderContact;
+    private long lastSubscribed;
+    private int replicatedSinceCheckpoint;
+
+    // The only reader of the mailbox: every message type below is a handler registered with it
+    private final MessageDispatcher dispatcher = new MessageDispatcher(this);
+    private PurchaseRequestServer purchaseServer;
+    // Runs checkpoints off the agent thread once the agent is up (see startCheckpoint)
+    private BlockingBridge blocking;
+    private Future<?> checkpoint;
+
+    // DF subscriptions (see DirectoryWatch): suppliers for a leader, the shard's leader and
+    // fellow replicas for a follower
+    private DirectoryWatch supplierWatch;
+    private DirectoryWatch leaderWatch;
+    private DirectoryWatch replicaWatch;
+
+    // Message encoding state, reused by all behaviours (they run on the agent thread)
+    private final InventoryCodec codec = new InventoryCodec();
+    private final InventoryCodec.Reader reader = new InventoryCodec.Reader();
+    private final InventoryCodec.Item item = new InventoryCodec.Item();
+    private final InventoryCodec.Lines restockLines = new InventoryCodec.Lines();
+    // Slots of the products a purchase batch took below their reorder point
+    private final BitSet belowThreshold = new BitSet();
 
     protected void setup() {
         System.out.println("InventoryAgent " + getAID().getName() + " is ready.");
 
+        Object[] args = getArguments();
+        if (args != null && args.length >= 2) {
+            shardIndex = Integer.parseInt(args[0].toString());
+            shardCount = Integer.parseInt(args[1].toString());
+            rangeStart = ShardMap.rangeStart(shardIndex, shardCount);
+            rangeEnd = ShardMap.rangeEnd(shardIndex, shardCount);
+            if (shardCount > 1) {
+                storeFile = "inventory-" + shardIndex + ".store";
+                logFile = "inventory-" + shardIndex + ".log";
+            }
+            System.out.println(String.format("[INVENTORY] Shard %d of %d, hash range [%d, %d)",
+                    shardIndex, shardCount, rangeStart, rangeEnd));
+            if (args.length >= 4 && "follower".equals(args[2])) {
+                // A follower keeps its own copy of the shard's files
+                follower = true;
+                leader = new AID(args[3].toString(), AID.ISLOCALNAME);
+                storeFile = getLocalName() + ".store";
+                logFile = getLocalName() + ".log";
+            }
+        }
+
         // Load inventory from file or initialize
         loadInventory();
 
         System.out.println("[INVENTORY] Current inventory:");
-        for (Product p : inventory.values()) {
-            System.out.println("  " + p);
+        for (int slot = 0; slot < store.size(); slot++) {
+            System.out.println("  " + product(slot));
         }
 
         // Register with DF
+        try {
+            DFService.register(this, describe());
+        } catch (FIPAException fe) {
+            fe.printStackTrace();
+        }
+
+        suppliers = new SupplierPool(RESTOCK_POLICY);
+        addBehaviour(dispatcher);
+        blocking = new BlockingBridge(this);
+        dispatcher.register(BlockingBridge.CONVERSATION_ID, ACLMessage.INFORM, blocking::handle);
+        dispatcher.registerVerb(ACLMessage.QUERY_IF, DirectoryWatch.READY, new DirectoryWatch.ReadinessServer(this)::handle);
+        dispatcher.register("product-list", ACLMessage.REQUEST, new ProductListServer());
+        if (follower) {
+            System.out.println("[INVENTORY] Following " + leader.getName() + " once it is ready");
+            dispatcher.register(ReplicaSet.CONVERSATION_ID, ACLMessage.INFORM, new ReplicationReceiver());
+            addBehaviour(new FailoverBehaviour());
+            leaderWatch = watch("inventory-management", w -> checkLeader());
+            replicaWatch = watch(REPLICA_SERVICE, w -> checkLeader());
+        } else {
+            startLeader();
+        }
+
+        metrics.gauge("log.bytesWritten", () -> inventoryLog.getBytesWritten());
+        metrics.gauge("blocking.running", blocking::getRunning);
+        metrics.gauge("restock.requested", restocks::getRequested);
+        metrics.gauge("restock.coalesced", restocks::getCoalesced);
+        metrics.gauge("restock.inFlight", restocks::getInFlightCount);
+        metrics.gauge("restock.adaptiveProducts", () -> demand.getAdaptiveCount());
+        metrics.gauge("subscription.count", subscriptions::size);
+        metrics.gauge("subscription.notificationsSent", subscriptions::getNotificationsSent);
+        metrics.gauge("catalog.lowStock", () -> catalogIndex.getLowStockCount());
+        metrics.gauge("query.count", () -> catalogIndex.getQueries());
+        metrics.gauge("query.candidatesExamined", () -> catalogIndex.getCandidatesExamined());
+        metrics.gauge("replication.followers", replicas::size);
+        metrics.gauge("replication.version", this::currentVersion);
+        metrics.gauge("replication.stalenessMs", () -> follower ? System.currentTimeMillis() - lastLeaderContact : 0);
+        metrics.gauge("history.events", () -> history.getEvents());
+        metrics.gauge("history.bytesWritten", () -> history.getBytesWritten());
+        metrics.gauge("history.segments", () -> history.getSegmentCount());
+        metrics.gauge("messages.notUnderstood", dispatcher::getNotUnderstood);
+        metrics.gauge("purchase.batches", purchaseBatchStats::getBatchCount);
+        metrics.gauge("purchase.batchMaxSize", purchaseBatchStats::getMaxSize);
+        metrics.gauge("purchase.batchAvgSize", () -> Math.round(purchaseBatchStats.getAverageSize()));
+        metrics.gauge("purchase.batchAvgWaitMicros", () -> Math.round(purchaseBatchStats.getAverageWaitMillis() * 1000));
+        metrics.gauge("admission.serviceMicrosPerRequest", admission::getServiceMicrosPerRequest);
+        metrics.gauge("admission.queueDelayMs", () -> admission.estimatedDelayMs(getCurQueueSize()));
+        metrics.gauge("log.eventsDropped", EventLog::getDropped);
+        metrics.gauge("log.eventsFailed", EventLog::getFailed);
+        dispatcher.registerVerb(ACLMessage.QUERY_REF, AgentMetrics.QUERY, new AgentMetrics.QueryServer(this, metrics)::handle);
+        metrics.register();
+    }
+
+    /**
+     * Starts the behaviours of the agent owning the shard's stock: at
+     * startup, or when a follower is promoted.
+     */
+    private void startLeader() {
+        // Bind suppliers as they register and become ready
+        supplierWatch = watch("supplier-service", this::suppliersChanged);
+
+        purchaseServer = new PurchaseRequestServer();
+        addBehaviour(purchaseServer);
+        dispatcher.register("purchase-request", ACLMessage.REQUEST, purchaseServer);
+        RestockProposalServer proposals = new RestockProposalServer();
+        dispatcher.register(RestockTracker.CONVERSATION_ID, ACLMessage.PROPOSE, proposals);
+        dispatcher.register(RestockTracker.CONVERSATION_ID, ACLMessage.REFUSE, proposals);
+        dispatcher.register(RestockTracker.CONVERSATION_ID, ACLMessage.INFORM, new RestockConfirmationServer());
+        StockSubscriptionServer stockSubscriptions = new StockSubscriptionServer();
+        dispatcher.register(StockSubscriptions.CONVERSATION_ID, ACLMessage.SUBSCRIBE, stockSubscriptions);
+        dispatcher.register(StockSubscriptions.CONVERSATION_ID, ACLMessage.CANCEL, stockSubscriptions);
+        ReplicationServer replication = new ReplicationServer();
+        dispatcher.register(ReplicaSet.CONVERSATION_ID, ACLMessage.SUBSCRIBE, replication);
+        dispatcher.register(ReplicaSet.CONVERSATION_ID, ACLMessage.CANCEL, replication);
+        dispatcher.register(HistoryStore.CONVERSATION_ID, ACLMessage.REQUEST, new HistoryQueryServer());
+
+        addBehaviour(new RestockFlushBehaviour());
+        addBehaviour(new LogSyncBehaviour());
+        addBehaviour(new SubscriptionFlushBehaviour());
+    }
+
+    /**
+     * Subscribes to the DF for a service, with the watch's messages coming
+     * through the dispatcher.
+     */
+    private DirectoryWatch watch(String serviceType, DirectoryWatch.Listener listener) {
+        DirectoryWatch watch = new DirectoryWatch(this, serviceType, listener);
+        dispatcher.register(watch.getConversationId(), watch::handle);
+        watch.subscribe();
+        return watch;
+    }
+
+    private void unwatch(DirectoryWatch watch) {
+        watch.cancel();
+        dispatcher.unregister(watch.getConversationId());
+    }
+
+    /**
+     * DF registration for the agent's current role: the shard's
+     * inventory-management service, or an inventory-replica service
+     * naming the leader it follows.
+     */
+    private DFAgentDescription describe() {
         DFAgentDescription dfd = new DFAgentDescription();
         dfd.setName(getAID());
         ServiceDescription sd = new ServiceDescription();
-        sd.setType("inventory-management");
-        sd.setName("inventory-service");
+        if (follower) {
+            sd.setType(REPLICA_SERVICE);
+            sd.setName("inventory-replica");
+            sd.addProperties(new Property(ReplicaSet.PROP_LEADER, leader.getName()));
+        } else {
+            sd.setType("inventory-management");
+            sd.setName("inventory-service");
+        }
+        ShardMap.describe(sd, shardIndex, shardCount);
         dfd.addServices(sd);
+        return dfd;
+    }
+
+    /**
+     * Catalog version this agent's stock reflects: its own log position,
+     * or for a follower the last leader version it applied.
+     */
+    long currentVersion() {
+        return follower ? replicatedVersion : inventoryLog.lastSeq();
+    }
+
+    /**
+     * Loads the inventory from the given files instead of the shard's
+     * defaults. Lets benchmarks drive the agent's inventory code without a
+     * running platform.
+     */
+    void openInventory(String storeFile, String logFile) {
+        this.storeFile = storeFile;
+        this.logFile = logFile;
+        loadInventory();
+    }
+
+    /**
+     * Checkpoints the inventory and closes its files.
+     */
+    void closeInventory() {
+        if (purchaseWorkers != null) {
+            purchaseWorkers.shutdown();
+            purchaseWorkers = null;
+        }
+        saveInventory();
+        try {
+            history.close();
+            inventoryLog.close();
+            store.close();
+        } catch (IOException e) {
+            System.err.println("[INVENTORY] Error closing inventory files: " + e.getMessage());
+        }
+    }
+
+    int getProductCount() {
+        return store.size();
+    }
 
+    /**
+     * The product in slot, as of now. Products are not kept on the heap:
+     * this reads one from the store for a reply or notification that needs it.
+     */
+    Product product(int slot) {
+        Product product = new Product(store.getProductId(slot), store.getName(slot),
+                store.getQuantity(slot), store.getThreshold(slot), store.getPrice(slot));
+        product.setVersion(versions[slot]);
+        return product;
+    }
+
+    /**
+     * Maps the product store and replays the write-ahead log on top of it.
+     * A legacy serialized inventory.dat is imported into a new store once,
+     * keeping only the products owned by this shard (see createStore).
+     */
+    private void loadInventory() {
         try {
-            DFService.register(this, dfd);
-        } catch (FIPAException fe) {
-            fe.printStackTrace();
+            inventoryLog = new InventoryLog(logFile, LOG_GROUP_SIZE, LOG_MAX_LINGER_MS);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open inventory log: " + e.getMessage(), e);
         }
 
-        // Search for supplier agent
-        addBehaviour(new OneShotBehaviour() {
-            public void action() {
-                DFAgentDescription template = new DFAgentDescription();
-                ServiceDescription sd = new ServiceDescription();
-                sd.setType("supplier-service");
-                template.addServices(sd);
+        long snapshotSeq;
+        boolean created = false;
+        try {
+            if (new File(storeFile).exists()) {
+                store = ProductStore.open(storeFile);
+                snapshotSeq = store.getCheckpointSeq();
+                System.out.println("[INVENTORY] Mapped inventory store (" + store.size() + " products)");
+            } else {
+                Map<String, Product> imported = new LinkedHashMap<>();
+                snapshotSeq = loadLegacyInventory(imported);
+                if (snapshotSeq < 0) {
+                    initializeInventory(imported);
+                    snapshotSeq = 0;
+                }
+                // Keep only the products this shard owns
+                imported.values().removeIf(p -> !ShardMap.owns(rangeStart, rangeEnd, p.getProductId()));
+                createStore(imported.values());
+                created = true;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open inventory store: " + e.getMessage(), e);
+        }
 
-                try {
-                    DFAgentDescription[] result = DFService.search(myAgent, template);
-                    if (result.length > 0) {
-                        supplierAgent = result[0].getName();
-                        System.out.println("[INVENTORY] Found Supplier Agent: " + supplierAgent.getName());
-                    } else {
-                        System.out.println("[INVENTORY] Supplier Agent not found yet, will retry...");
-                        myAgent.doWait(2000);
-                        myAgent.addBehaviour(this);
-                    }
-                } catch (FIPAException fe) {
-                    fe.printStackTrace();
+        try {
+            int replayed = inventoryLog.replay(snapshotSeq, (seq, productId, delta, quantityAfter, cause) -> {
+                int slot = store.findSlot(productId);
+                if (slot >= 0) {
+                    store.setQuantity(slot, quantityAfter);
                 }
+            });
+            if (replayed > 0) {
+                System.out.println("[INVENTORY] Replayed " + replayed + " log records");
             }
-        });
+            // Also drops a log rotated for a checkpoint that did not complete
+            if (created || replayed > 0 || inventoryLog.hasRotated()) {
+                saveInventory();
+            }
+        } catch (IOException e) {
+            System.err.println("[INVENTORY] Error replaying inventory log: " + e.getMessage());
+        }
+
+        // Clients that synced before this point have to reload the catalog
+        baseVersion = inventoryLog.lastSeq();
+        replicatedVersion = baseVersion;
+        indexInventory();
 
-        addBehaviour(new PurchaseRequestServer());
-        addBehaviour(new RestockConfirmationServer());
-        addBehaviour(new ProductListServer());
+        openHistory();
     }
 
-    private void loadInventory() {
+    /**
+     * Opens the stock history next to the store, sized for every slot the
+     * store can hold: a follower adds the leader's products it did not
+     * import itself, and the store is reopened with more slots when they do
+     * not fit (see growStore).
+     */
+    private void openHistory() {
+        String historyDir = (storeFile.endsWith(".store")
+                ? storeFile.substring(0, storeFile.length() - ".store".length()) : storeFile) + ".history";
+        history = new HistoryStore(historyDir, store.getCapacity(), HISTORY_SEGMENT_MINUTES * 60_000L, HISTORY_FLUSH_MS);
+    }
+
+    /**
+     * Builds the version, stock, demand and catalog indexes over the
+     * products in the store, all at version baseVersion.
+     */
+    private void indexInventory() {
+        versions = new long[store.getCapacity()];
+        Arrays.fill(versions, baseVersion);
+        stock = new StockIndex(store.size());
+        for (int slot = 0; slot < store.size(); slot++) {
+            stock.set(slot, store.getQuantity(slot));
+        }
+        demand = new DemandTracker(store);
+        catalogIndex = new CatalogIndex(store, this::product);
+
+        for (int i = 0; i < purchaseContexts.length; i++) {
+            purchaseContexts[i] = new PurchaseContext();
+        }
+        if (PURCHASE_WORKERS > 1 && purchaseWorkers == null) {
+            String name = getLocalName() != null ? getLocalName() : "inventory";
+            int[] threadCount = {0};
+            purchaseWorkers = Executors.newFixedThreadPool(PURCHASE_WORKERS - 1, r -> {
+                Thread t = new Thread(r, name + "-purchase-" + (threadCount[0]++));
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Reads a serialized inventory.dat written by older versions into
+     * products. Returns the log sequence it covers, or -1 if there is
+     * nothing to import.
+     */
+    @SuppressWarnings("unchecked")
+    private long loadLegacyInventory(Map<String, Product> products) {
         File file = new File(INVENTORY_FILE);
-        if (file.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                inventory = (Map<String, Product>) ois.readObject();
-                System.out.println("[INVENTORY] Loaded inventory from file");
-            } catch (Exception e) {
-                System.err.println("[INVENTORY] Error loading inventory: " + e.getMessage());
-                initializeInventory();
+        if (!file.exists()) {
+            return -1;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            products.putAll((Map<String, Product>) ois.readObject());
+            long seq = 0;
+            try {
+                seq = ois.readLong();
+            } catch (EOFException e) {
+                // Snapshot written before the log existed, replay everything
             }
-        } else {
-            initializeInventory();
+            System.out.println("[INVENTORY] Importing inventory from " + INVENTORY_FILE);
+            return seq;
+        } catch (Exception e) {
+            System.err.println("[INVENTORY] Error loading inventory: " + e.getMessage());
+            return -1;
         }
     }
 
-    private void initializeInventory() {
-        inventory = new HashMap<>();
-        inventory.put("LAPTOP001", new Product("LAPTOP001", "Dell Laptop", 5, 3, 999.99));
-        inventory.put("MOUSE001", new Product("MOUSE001", "Logitech Mouse", 15, 5, 29.99));
-        inventory.put("KEYBOARD001", new Product("KEYBOARD001", "Mechanical Keyboard", 8, 4, 89.99));
+    private void initializeInventory(Map<String, Product> products) {
+        products.put("LAPTOP001", new Product("LAPTOP001", "Dell Laptop", 5, 3, 999.99));
+        products.put("MOUSE001", new Product("MOUSE001", "Logitech Mouse", 15, 5, 29.99));
+        products.put("KEYBOARD001", new Product("KEYBOARD001", "Mechanical Keyboard", 8, 4, 89.99));
         System.out.println("[INVENTORY] Initialized new inventory");
-        saveInventory();
     }
 
-    private void saveInventory() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(INVENTORY_FILE))) {
-            oos.writeObject(inventory);
-            System.out.println("[INVENTORY] Saved inventory to file");
+    /**
+     * Creates the store with the given products. Products the store cannot
+     * hold (ids longer than ProductStore.MAX_ID_BYTES bytes in UTF-8,
+     * duplicates, or more names than fit) are skipped and reported.
+     */
+    private void createStore(Collection<Product> products) throws IOException {
+        store = ProductStore.create(storeFile, Math.max(STORE_CAPACITY, products.size() * 2));
+        int skipped = 0;
+        for (Product p : products) {
+            try {
+                store.add(p.getProductId(), p.getName(), p.getQuantity(), p.getThreshold(), p.getPrice());
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                System.err.println("[INVENTORY] Skipping product " + p.getProductId() + ": " + e.getMessage());
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            System.err.println("[INVENTORY] " + skipped + " of " + products.size() + " products not imported"
+                    + " (product ids are limited to " + ProductStore.MAX_ID_BYTES + " bytes in UTF-8)");
+        }
+    }
+
+    /**
+     * Checkpoints the product store and truncates the log. Quantities are
+     * already updated in place, so this only forces dirty pages and records
+     * the last log sequence they cover.
+     */
+    void saveInventory() {
+        awaitCheckpoint();
+        long start = System.nanoTime();
+        try {
+            long bytes = store.checkpoint(currentVersion());
+            inventoryLog.truncate();
+            long duration = System.nanoTime() - start;
+            saveBytes.add(bytes);
+            saveDuration.record(duration);
+            EventLog.Event e = checkpointLog.begin(EventLog.INFO);
+            if (e != null) {
+                e.num("seq", currentVersion()).num("bytes", bytes).num("us", duration / 1000).commit();
+            }
         } catch (Exception e) {
             System.err.println("[INVENTORY] Error saving inventory: " + e.getMessage());
         }
     }
 
-    private class ProductListServer extends CyclicBehaviour {
-        public void action() {
-            MessageTemplate mt = MessageTemplate.MatchContent("GET_PRODUCTS");
-            ACLMessage msg = myAgent.receive(mt);
+    /**
+     * Writes a quantity change of the product in slot in place into the
+     * store and appends it to the write-ahead log. The change is durable
+     * after the next commitLog().
+     */
+    private void recordChange(int slot, int delta, byte cause) {
+        int quantity = store.getQuantity(slot) + delta;
+        store.setQuantity(slot, quantity);
+        catalogIndex.update(slot);
+        try {
+            long seq = inventoryLog.append(store.getProductId(slot), delta, quantity, cause);
+            changeJournal.remove(versions[slot]);
+            versions[slot] = seq;
+            changeJournal.put(seq, slot);
+            if (subscriptions.size() > 0 || replicas.size() > 0) {
+                Product product = product(slot);
+                subscriptions.changed(product);
+                replicas.changed(product);
+            }
+        } catch (IOException e) {
+            System.err.println("[INVENTORY] Error writing inventory log: " + e.getMessage());
+        }
+        try {
+            history.record(slot, delta, quantity, cause, System.currentTimeMillis());
+        } catch (IOException e) {
+            System.err.println("[INVENTORY] Error writing inventory history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ends a unit of work: group-commits the log (or fsyncs it right away when
+     * force is set) and checkpoints the store every SNAPSHOT_INTERVAL records.
+     * Followers are only sent changes once their group is synced.
+     */
+    private void commitLog(boolean force) {
+        try {
+            if (force) {
+                inventoryLog.sync();
+            } else {
+                inventoryLog.commit();
+            }
+        } catch (IOException e) {
+            System.err.println("[INVENTORY] Error syncing inventory log: " + e.getMessage());
+        }
+        if (changesDurable()) {
+            replicas.flush(this, codec, inventoryLog.lastSeq());
+        }
+        if (inventoryLog.getRecordCount() >= SNAPSHOT_INTERVAL) {
+            startCheckpoint();
+        }
+    }
+
+    /**
+     * True once every logged change is synced. Until then no reply, stock
+     * update or shipment may tell anyone about the changes, since a crash
+     * could still lose them.
+     */
+    private boolean changesDurable() {
+        return inventoryLog.getPendingCount() == 0;
+    }
+
+    /**
+     * Checkpoints like saveInventory(), but without holding up purchases:
+     * the log is rotated on the agent thread, and the store is forced and
+     * stamped with the version the rotated log ends at by a BlockingBridge
+     * task, while new changes go to the new log. The rotated log is deleted
+     * once the checkpoint is on disk. Without a running agent (benchmarks),
+     * or after a background checkpoint failed, checkpoints right away.
+     */
+    private void startCheckpoint() {
+        if (checkpoint != null && !checkpoint.isDone()) {
+            return;
+        }
+        if (blocking == null || inventoryLog.hasRotated()) {
+            saveInventory();
+            return;
+        }
+        long seq = currentVersion();
+        long bytes = store.takeDirtyBytes();
+        try {
+            inventoryLog.rotate();
+        } catch (IOException e) {
+            System.err.println("[INVENTORY] Error rotating inventory log: " + e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        checkpoint = blocking.submit(null, () -> {
+            store.force(seq);
+            inventoryLog.dropRotated();
+            return null;
+        }, (none, error) -> {
+            if (error != null) {
+                System.err.println("[INVENTORY] Error saving inventory: " + error.getMessage());
+                return;
+            }
+            long duration = System.nanoTime() - start;
+            saveBytes.add(bytes);
+            saveDuration.record(duration);
+            EventLog.Event e = checkpointLog.begin(EventLog.INFO);
+            if (e != null) {
+                e.num("seq", seq).num("bytes", bytes).num("us", duration / 1000).commit();
+            }
+        });
+    }
+
+    /**
+     * Waits for a background checkpoint to be written, so a later one
+     * cannot be overtaken by it and the store stays open while it runs.
+     * The checkpoint runs on this agent's own executor, so this only ever
+     * waits for the store to be forced.
+     */
+    private void awaitCheckpoint() {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The task reports its own errors through its callback
+        }
+    }
+
+    /**
+     * Forces log records that are still waiting for their group to fill up,
+     * then tells subscribers and followers about the changes it made durable.
+     */
+    private class LogSyncBehaviour extends TickerBehaviour {
+        public LogSyncBehaviour() {
+            super(InventoryAgent.this, LOG_MAX_LINGER_MS);
+        }
+
+        protected void onTick() {
+            try {
+                inventoryLog.commit();
+            } catch (IOException e) {
+                System.err.println("[INVENTORY] Error syncing inventory log: " + e.getMessage());
+            }
+            try {
+                history.flush(System.currentTimeMillis());
+            } catch (IOException e) {
+                System.err.println("[INVENTORY] Error writing inventory history: " + e.getMessage());
+            }
+            if (changesDurable()) {
+                // Ships what the tick committed, or a heartbeat
+                subscriptions.flush(myAgent, codec, inventoryLog.lastSeq());
+                replicas.flush(myAgent, codec, inventoryLog.lastSeq());
+            }
+        }
+    }
 
-            if (msg != null) {
-                ACLMessage reply = msg.createReply();
-                reply.setPerformative(ACLMessage.INFORM);
+    /**
+     * Serves the catalog in pages of at most CATALOG_PAGE_SIZE products:
+     *   GET_PRODUCTS[:cursor]        full catalog in slot order, starting at cursor
+     *   GET_PRODUCTS_SINCE:version   only products changed after version
+     *   QUERY_PRODUCTS[:terms]       products matching a query (see CatalogIndex.Query)
+     * Requests keep their string verbs; a request in the binary language
+     * (see InventoryCodec) gets its catalog page back in binary.
+     * Replies carry the "inventory-version" they reflect. A full page has a
+     * "next-cursor" while more pages follow; a delta reply sets "more" when
+     * it was cut off (a query reply when more products matched than its
+     * limit), and "resync" when the version predates this agent's
+     * change journal and the client must reload the full catalog.
+     * A follower serves the same requests with the leader's versions, adds
+     * its "staleness-ms", and refuses with STALE when it has lost touch with
+     * the leader or is behind the client.
+     */
+    private class ProductListServer implements MessageDispatcher.Handler {
+        private final List<Product> page = new ArrayList<>(CATALOG_PAGE_SIZE);
 
-                StringBuilder sb = new StringBuilder();
-                for (Product p : inventory.values()) {
-                    sb.append(p.getProductId()).append(",");
-                    sb.append(p.getName()).append(",");
-                    sb.append(p.getQuantity()).append(",");
-                    sb.append(p.getThreshold()).append(",");
-                    sb.append(p.getPrice()).append("|");
+        public void handle(ACLMessage msg) {
+            productListMessages.inc();
+            ACLMessage reply = msg.createReply();
+            String content = msg.getContent();
+            try {
+                if (follower && !servesReads(content)) {
+                    // Too far behind the leader: the client reads from the leader instead
+                    reply.setPerformative(ACLMessage.REFUSE);
+                    reply.setContent("STALE");
+                } else if (content.startsWith("GET_PRODUCTS_SINCE:")) {
+                    long since = Long.parseLong(content.substring("GET_PRODUCTS_SINCE:".length()));
+                    replyChangesSince(reply, since);
+                } else if (content.equals("GET_PRODUCTS")) {
+                    replyPage(reply, 0);
+                } else if (content.startsWith("GET_PRODUCTS:")) {
+                    replyPage(reply, Integer.parseInt(content.substring("GET_PRODUCTS:".length())));
+                } else if (content.startsWith("QUERY_PRODUCTS")) {
+                    replyQuery(reply, CatalogIndex.Query.parse(content, CATALOG_PAGE_SIZE));
+                } else {
+                    reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                    reply.setContent("Unknown catalog request: " + content);
                 }
+            } catch (IllegalArgumentException e) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Malformed catalog request: " + content);
+            }
+            if (follower) {
+                reply.addUserDefinedParameter("staleness-ms",
+                        String.valueOf(System.currentTimeMillis() - lastLeaderContact));
+            }
+            send(reply);
+        }
 
-                reply.setContent(sb.toString());
-                myAgent.send(reply);
-            } else {
-                block();
+        private void replyPage(ACLMessage reply, int cursor) {
+            page.clear();
+            int end = Math.min(store.size(), Math.max(cursor, 0) + CATALOG_PAGE_SIZE);
+            for (int slot = Math.max(cursor, 0); slot < end; slot++) {
+                page.add(product(slot));
+            }
+            reply.setPerformative(ACLMessage.INFORM);
+            codec.writeCatalog(reply, page, InventoryCodec.isBinary(reply));
+            reply.addUserDefinedParameter("inventory-version", String.valueOf(currentVersion()));
+            if (end < store.size()) {
+                reply.addUserDefinedParameter("next-cursor", String.valueOf(end));
+            }
+        }
+
+        private void replyQuery(ACLMessage reply, CatalogIndex.Query query) {
+            page.clear();
+            boolean more = catalogIndex.query(query, page);
+            reply.setPerformative(ACLMessage.INFORM);
+            codec.writeCatalog(reply, page, InventoryCodec.isBinary(reply));
+            reply.addUserDefinedParameter("inventory-version", String.valueOf(currentVersion()));
+            if (more) {
+                reply.addUserDefinedParameter("more", "true");
+            }
+        }
+
+        private void replyChangesSince(ACLMessage reply, long since) {
+            reply.setPerformative(ACLMessage.INFORM);
+            page.clear();
+            if (since < baseVersion || since > currentVersion()) {
+                codec.writeCatalog(reply, page, InventoryCodec.isBinary(reply));
+                reply.addUserDefinedParameter("resync", "true");
+                reply.addUserDefinedParameter("inventory-version", String.valueOf(currentVersion()));
+                return;
+            }
+
+            long version = currentVersion();
+            long lastIncluded = since;
+            for (Map.Entry<Long, Integer> change : changeJournal.tailMap(since, false).entrySet()) {
+                if (page.size() == CATALOG_PAGE_SIZE) {
+                    // Cut off: the client continues from the last change it received
+                    reply.addUserDefinedParameter("more", "true");
+                    version = lastIncluded;
+                    break;
+                }
+                page.add(product(change.getValue()));
+                lastIncluded = change.getKey();
+            }
+            codec.writeCatalog(reply, page, InventoryCodec.isBinary(reply));
+            reply.addUserDefinedParameter("inventory-version", String.valueOf(version));
+        }
+
+        /**
+         * Whether a follower may answer: it heard from its leader within the
+         * staleness bound and is not behind the version a delta request
+         * starts from.
+         */
+        private boolean servesReads(String content) {
+            if (System.currentTimeMillis() - lastLeaderContact > REPLICATION_MAX_STALENESS_MS) {
+                return false;
+            }
+            if (content.startsWith("GET_PRODUCTS_SINCE:")) {
+                return Long.parseLong(content.substring("GET_PRODUCTS_SINCE:".length())) <= replicatedVersion;
             }
+            return true;
         }
     }
 
-    private class PurchaseRequestServer extends CyclicBehaviour {
+    /**
+     * Collects purchase requests (single PURCHASE or multi-line
+     * PURCHASE_BATCH orders) from the dispatcher into batches of up to
+     * PURCHASE_BATCH_SIZE, applies each batch in arrival order, persists it
+     * with one log sync and only then sends the replies. A full batch is
+     * processed at once; a partial one once the dispatcher has handed over
+     * everything queued, or after lingering for more. A request that
+     * AdmissionControl does not admit is refused instead of queued.
+     */
+    private class PurchaseRequestServer extends CyclicBehaviour implements MessageDispatcher.Handler {
+        private final List<ACLMessage> batch = new ArrayList<>(PURCHASE_BATCH_SIZE);
+        private final List<ACLMessage> replies = new ArrayList<>(PURCHASE_BATCH_SIZE);
+        private long firstReceived;
+
+        public void handle(ACLMessage msg) {
+            purchaseMessages.inc();
+            long retryAfterMs = admission.admit(getCurQueueSize() + batch.size());
+            if (retryAfterMs > 0) {
+                purchasesRefused.inc();
+                send(AdmissionControl.refusal(msg, retryAfterMs));
+                return;
+            }
+            if (batch.isEmpty()) {
+                firstReceived = System.nanoTime();
+                restart();
+            }
+            batch.add(msg);
+            if (batch.size() >= PURCHASE_BATCH_SIZE) {
+                processBatch();
+            }
+        }
+
         public void action() {
-            MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.REQUEST);
-            ACLMessage msg = myAgent.receive(mt);
-
-            if (msg != null) {
-                String content = msg.getContent();
-
-                if (content.startsWith("PURCHASE:")) {
-                    System.out.println("[INVENTORY] Received request: " + content);
-
-                    String[] parts = content.split(":");
-                    if (parts.length == 3) {
-                        String productId = parts[1];
-                        int quantity = Integer.parseInt(parts[2]);
-
-                        ACLMessage reply = msg.createReply();
-
-                        Product product = inventory.get(productId);
-                        if (product != null) {
-                            if (product.getQuantity() >= quantity) {
-                                product.setQuantity(product.getQuantity() - quantity);
-                                reply.setPerformative(ACLMessage.INFORM);
-                                reply.setContent(String.format("Purchase successful! %d x %s. Remaining stock: %d",
-                                        quantity, product.getName(), product.getQuantity()));
-
-                                System.out.println(String.format("[INVENTORY] Purchase processed: %d x %s (Stock: %d)",
-                                        quantity, product.getName(), product.getQuantity()));
-
-                                saveInventory();
-
-                                if (product.needsRestock()) {
-                                    requestRestock(product);
-                                }
-                            } else {
-                                reply.setPerformative(ACLMessage.FAILURE);
-                                reply.setContent(String.format("Insufficient stock! Available: %d, Requested: %d",
-                                        product.getQuantity(), quantity));
-
-                                System.out.println(String.format("[INVENTORY] Insufficient stock for %s (Available: %d, Requested: %d)",
-                                        product.getName(), product.getQuantity(), quantity));
-                            }
-                        } else {
-                            reply.setPerformative(ACLMessage.FAILURE);
-                            reply.setContent("Product not found: " + productId);
-                            System.out.println("[INVENTORY] Product not found: " + productId);
-                        }
-
-                        myAgent.send(reply);
+            if (batch.isEmpty()) {
+                block();
+                return;
+            }
+
+            // Linger for more requests while the batch is not full yet
+            long waitedMs = (System.nanoTime() - firstReceived) / 1_000_000;
+            if (batch.size() < PURCHASE_BATCH_SIZE && waitedMs < PURCHASE_MAX_LINGER_MS) {
+                block(PURCHASE_MAX_LINGER_MS - waitedMs);
+                return;
+            }
+
+            processBatch();
+        }
+
+        private void processBatch() {
+            long start = System.nanoTime();
+            int succeeded = processPurchases(batch, replies);
+
+            for (ACLMessage reply : replies) {
+                send(reply);
+            }
+            subscriptions.flush(InventoryAgent.this, codec, inventoryLog.lastSeq());
+
+            long end = System.nanoTime();
+            purchaseBatchStats.record(batch.size(), start - firstReceived, end - start);
+            purchaseServiceTime.record(end - start);
+            admission.recordService(batch.size(), end - start);
+            purchasesSucceeded.add(succeeded);
+            EventLog.Event e = purchaseLog.begin(EventLog.INFO);
+            if (e != null) {
+                e.num("requests", batch.size()).num("succeeded", succeeded).num("us", (end - start) / 1000).commit();
+            }
+
+            batch.clear();
+            replies.clear();
+        }
+    }
+
+    /**
+     * Applies a batch of purchase requests, persists the whole batch with
+     * one log sync and queues restocks for products that fell below their
+     * threshold. Replies are added to replies in request order, to be sent
+     * by the caller only now that the changes are durable. Returns the
+     * number of requests that succeeded.
+     *
+     * With PURCHASE_WORKERS > 1 the single PURCHASE requests of a large
+     * batch are split into contiguous parts applied in parallel: stock is
+     * taken by CAS in the StockIndex, so purchases of different products
+     * never wait for each other, and purchases of the same product take
+     * effect in some serial order. Multi-line orders take stock of several
+     * products and may have to put it back, so they are applied after the
+     * parallel phase, on the agent thread alone, and no purchase ever sees
+     * stock an order held only for a moment. The log records are then
+     * written from the changes on the agent thread.
+     *
+     * The log sync is the one file operation left on the agent thread, and
+     * that is deliberate. It is a single force per batch, not per request;
+     * while it runs, new purchases queue in the mailbox and make up the
+     * next, larger batch, so the batch size follows the sync latency. The
+     * log and its group commit are only ever touched by the agent thread,
+     * and nothing about the batch may be sent before the sync anyway, so
+     * running it on the BlockingBridge would only defer the replies.
+     * AdmissionControl also counts the sync as part of the service time.
+     */
+    int processPurchases(List<ACLMessage> batch, List<ACLMessage> replies) {
+        int n = batch.size();
+        if (batchReplies.length < n) {
+            batchReplies = new ACLMessage[n];
+        }
+
+        int succeeded;
+        if (purchaseWorkers == null || n < 2 * PURCHASE_WORKERS) {
+            succeeded = purchaseContexts[0].apply(batch, 0, n, batchReplies, false);
+        } else {
+            succeeded = applyInParallel(batch, batchReplies);
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (batchReplies[i] != null) {
+                replies.add(batchReplies[i]);
+                batchReplies[i] = null;
+            }
+        }
+        for (PurchaseContext context : purchaseContexts) {
+            recordPurchases(context);
+        }
+
+        // One persistence write for the whole batch, before anyone is told it succeeded
+        commitLog(true);
+
+        for (int slot = belowThreshold.nextSetBit(0); slot >= 0; slot = belowThreshold.nextSetBit(slot + 1)) {
+            requestRestock(slot);
+        }
+        belowThreshold.clear();
+        return succeeded;
+    }
+
+    /**
+     * Applies the purchases of the first part of the batch on the agent
+     * thread and those of the other parts on the worker pool, waits for
+     * all of them, and then applies the batch's orders on the agent thread.
+     */
+    private int applyInParallel(List<ACLMessage> batch, ACLMessage[] replies) {
+        int n = batch.size();
+        int part = (n + PURCHASE_WORKERS - 1) / PURCHASE_WORKERS;
+        List<Future<Integer>> parts = new ArrayList<>(PURCHASE_WORKERS - 1);
+        for (int w = 1; w < PURCHASE_WORKERS && w * part < n; w++) {
+            PurchaseContext context = purchaseContexts[w];
+            int from = w * part;
+            int to = Math.min(n, from + part);
+            parts.add(purchaseWorkers.submit(() -> context.apply(batch, from, to, replies, true)));
+        }
+
+        int succeeded = purchaseContexts[0].apply(batch, 0, Math.min(n, part), replies, true);
+        try {
+            for (Future<Integer> f : parts) {
+                succeeded += f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while applying purchases", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error applying purchases: " + e.getCause(), e.getCause());
+        }
+
+        // Orders, and requests that are neither, were left without a reply
+        for (int i = 0; i < n; i++) {
+            if (replies[i] == null) {
+                succeeded += purchaseContexts[0].apply(batch, i, i + 1, replies, false);
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Logs the stock changes a context made and writes them to the store.
+     * Agent thread only.
+     */
+    private void recordPurchases(PurchaseContext context) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < context.changes; i++) {
+            int slot = context.changedSlots[i];
+            int delta = context.changeDeltas[i];
+            recordChange(slot, delta, InventoryLog.CAUSE_PURCHASE);
+            demand.recordDemand(slot, -delta, now);
+            if (needsRestock(slot)) {
+                belowThreshold.set(slot);
+            }
+        }
+        // Demand that could not be served counts too, or stock-outs would hide it
+        for (int i = 0; i < context.misses; i++) {
+            demand.recordDemand(context.missedSlots[i], context.missedUnits[i], now);
+        }
+        context.changes = 0;
+        context.misses = 0;
+    }
+
+    /**
+     * What one thread needs to apply purchases: its own decoding buffers,
+     * and the stock changes it made, for the agent thread to log.
+     */
+    private final class PurchaseContext {
+        private final InventoryCodec.Reader reader = new InventoryCodec.Reader();
+        private final InventoryCodec.Item item = new InventoryCodec.Item();
+        private final InventoryCodec.Lines order = new InventoryCodec.Lines();
+        private final Map<String, Integer> orderDemand = new LinkedHashMap<>();
+        private final Map<String, Integer> orderRemaining = new HashMap<>();
+        int[] changedSlots = new int[64];
+        int[] changeDeltas = new int[64];
+        int changes;
+        int[] missedSlots = new int[64];
+        int[] missedUnits = new int[64];
+        int misses;
+
+        /**
+         * Applies batch[from, to) and puts each reply at its request's index.
+         * With skipOrders set, multi-line orders are left without a reply,
+         * to be applied later on the agent thread. Returns the number of
+         * requests that succeeded.
+         */
+        int apply(List<ACLMessage> batch, int from, int to, ACLMessage[] replies, boolean skipOrders) {
+            int succeeded = 0;
+            for (int i = from; i < to; i++) {
+                ACLMessage request = batch.get(i);
+                ACLMessage reply = null;
+                if (InventoryCodec.readItem(request, reader, item) && item.type == InventoryCodec.PURCHASE) {
+                    reply = applyPurchase(request, item.productId, item.quantity);
+                } else if (!skipOrders && InventoryCodec.readLines(request, reader, InventoryCodec.ORDER, order)) {
+                    reply = applyOrder(request, order);
+                }
+                if (reply != null && reply.getPerformative() == ACLMessage.INFORM) {
+                    succeeded++;
+                }
+                replies[i] = reply;
+            }
+            return succeeded;
+        }
+
+        /**
+         * Applies one PURCHASE request to the stock index and returns the
+         * reply to send. A quantity that is not positive fails without
+         * touching stock.
+         */
+        private ACLMessage applyPurchase(ACLMessage msg, String productId, int quantity) {
+            // Purchase replies are plain text in either encoding
+            ACLMessage reply = msg.createReply();
+            reply.setLanguage(null);
+            reply.setOntology(null);
+
+            int slot = store.findSlot(productId);
+            if (quantity <= 0) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Invalid quantity: " + quantity);
+            } else if (slot >= 0) {
+                int remaining = stock.tryTake(slot, quantity);
+                if (remaining >= 0) {
+                    changed(slot, -quantity);
+                    reply.setPerformative(ACLMessage.INFORM);
+                    reply.setContent(String.format("Purchase successful! %d x %s. Remaining stock: %d",
+                            quantity, store.getName(slot), remaining));
+                } else {
+                    stockOuts.inc();
+                    missed(slot, quantity);
+                    reply.setPerformative(ACLMessage.FAILURE);
+                    reply.setContent(String.format("Insufficient stock! Available: %d, Requested: %d",
+                            stock.getQuantity(slot), quantity));
+                }
+            } else {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Product not found: " + productId);
+            }
+            return reply;
+        }
+
+        /**
+         * Applies a PURCHASE_BATCH order all-or-nothing: the demand of every
+         * line (lines for the same product add up) is taken from stock, and
+         * if any product is short whatever was already taken is put back. The
+         * reply holds one result per line, separated by ';':
+         *   id:qty:OK:remaining, id:qty:INSUFFICIENT:available, id:qty:NOT_FOUND,
+         *   id:qty:INVALID, or id:qty:NOT_APPLIED for valid lines of a rejected order.
+         * It is an INFORM when the order was applied and a FAILURE otherwise.
+         * Never runs concurrently with other purchases (see processPurchases).
+         */
+        private ACLMessage applyOrder(ACLMessage msg, InventoryCodec.Lines order) {
+            ACLMessage reply = msg.createReply();
+            reply.setLanguage(null);
+            reply.setOntology(null);
+
+            orderDemand.clear();
+            orderRemaining.clear();
+            boolean valid = true;
+            for (int i = 0; i < order.size; i++) {
+                if (order.quantities[i] <= 0 || store.findSlot(order.productIds[i]) < 0) {
+                    valid = false;
+                } else {
+                    orderDemand.merge(order.productIds[i], order.quantities[i], Integer::sum);
+                }
+            }
+            if (valid) {
+                for (Map.Entry<String, Integer> demand : orderDemand.entrySet()) {
+                    int remaining = stock.tryTake(store.findSlot(demand.getKey()), demand.getValue());
+                    if (remaining < 0) {
+                        valid = false;
+                        break;
+                    }
+                    orderRemaining.put(demand.getKey(), remaining);
+                }
+                if (!valid) {
+                    // Put back what was taken before the short product
+                    for (String productId : orderRemaining.keySet()) {
+                        stock.add(store.findSlot(productId), orderDemand.get(productId));
                     }
                 }
+            }
+            if (valid) {
+                for (int i = 0; i < order.size; i++) {
+                    changed(store.findSlot(order.productIds[i]), -order.quantities[i]);
+                }
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < order.size; i++) {
+                String productId = order.productIds[i];
+                int slot = store.findSlot(productId);
+                sb.append(productId).append(':').append(order.quantities[i]).append(':');
+                if (order.quantities[i] <= 0) {
+                    sb.append("INVALID");
+                } else if (slot < 0) {
+                    sb.append("NOT_FOUND");
+                } else if (valid) {
+                    sb.append("OK:").append(orderRemaining.get(productId));
+                } else if (orderDemand.containsKey(productId) && stock.getQuantity(slot) < orderDemand.get(productId)) {
+                    stockOuts.inc();
+                    missed(slot, order.quantities[i]);
+                    sb.append("INSUFFICIENT:").append(stock.getQuantity(slot));
+                } else {
+                    missed(slot, order.quantities[i]);
+                    sb.append("NOT_APPLIED");
+                }
+                sb.append(';');
+            }
+
+            reply.setPerformative(valid ? ACLMessage.INFORM : ACLMessage.FAILURE);
+            reply.setContent(sb.toString());
+            return reply;
+        }
+
+        private void changed(int slot, int delta) {
+            if (changes == changedSlots.length) {
+                changedSlots = Arrays.copyOf(changedSlots, changes * 2);
+                changeDeltas = Arrays.copyOf(changeDeltas, changes * 2);
+            }
+            changedSlots[changes] = slot;
+            changeDeltas[changes++] = delta;
+        }
+
+        private void missed(int slot, int units) {
+            if (misses == missedSlots.length) {
+                missedSlots = Arrays.copyOf(missedSlots, misses * 2);
+                missedUnits = Arrays.copyOf(missedUnits, misses * 2);
+            }
+            missedSlots[misses] = slot;
+            missedUnits[misses++] = units;
+        }
+    }
+
+    /**
+     * Registers and cancels stock update subscriptions (see StockSubscriptions).
+     */
+    private class StockSubscriptionServer implements MessageDispatcher.Handler {
+        public void handle(ACLMessage msg) {
+            subscriptionMessages.inc();
+            if (msg.getPerformative() == ACLMessage.SUBSCRIBE) {
+                send(subscriptions.subscribe(msg));
             } else {
-                block();
+                subscriptions.cancel(msg.getSender());
             }
         }
     }
 
-    private void requestRestock(Product product) {
-        if (supplierAgent != null) {
-            int restockAmount = product.getThreshold() * 2;
+    /**
+     * Pushes changes that were held back by a subscriber's rate limit.
+     */
+    private class SubscriptionFlushBehaviour extends TickerBehaviour {
+        public SubscriptionFlushBehaviour() {
+            super(InventoryAgent.this, SUBSCRIPTION_MIN_INTERVAL_MS);
+        }
 
-            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
-            request.addReceiver(supplierAgent);
-            request.setContent("RESTOCK:" + product.getProductId() + ":" + restockAmount);
-            request.setConversationId("restock-request");
-            request.setReplyWith("restock-" + System.currentTimeMillis());
-            send(request);
+        protected void onTick() {
+            if (changesDurable()) {
+                subscriptions.flush(myAgent, codec, inventoryLog.lastSeq());
+            }
+        }
+    }
 
-            System.out.println(String.format("[INVENTORY] Stock below threshold! Requesting restock: %d x %s",
-                    restockAmount, product.getName()));
+    /**
+     * Registers followers and sends them a snapshot to start their stream
+     * from (see ReplicaSet). Shipments go out from commitLog() and
+     * LogSyncBehaviour.
+     */
+    private class ReplicationServer implements MessageDispatcher.Handler {
+        public void handle(ACLMessage msg) {
+            replicationMessages.inc();
+            if (msg.getPerformative() == ACLMessage.SUBSCRIBE) {
+                List<Product> catalog = new ArrayList<>(store.size());
+                for (int slot = 0; slot < store.size(); slot++) {
+                    catalog.add(product(slot));
+                }
+                send(replicas.subscribe(msg, catalog, codec, inventoryLog.lastSeq()));
+            } else {
+                replicas.cancel(msg.getSender());
+            }
         }
     }
 
-    private class RestockConfirmationServer extends CyclicBehaviour {
-        public void action() {
-            MessageTemplate mt = MessageTemplate.and(
-                MessageTemplate.MatchPerformative(ACLMessage.INFORM),
-                MessageTemplate.MatchConversationId("restock-request")
-            );
-            ACLMessage msg = myAgent.receive(mt);
-
-            if (msg != null) {
-                String content = msg.getContent();
+    /**
+     * Answers history queries (see HistoryStore), times in epoch ms:
+     *   SALES_VELOCITY:productId:from[:to]   units sold in the whole minutes
+     *                                        of [from, to) (to defaults to now),
+     *                                        as "units=..;perHour=.."
+     *   STOCK_AT:productId:time              "quantity=.." at that time
+     * with FAILURE for unknown products, times before the history starts
+     * and malformed requests.
+     */
+    private class HistoryQueryServer implements MessageDispatcher.Handler {
+        public void handle(ACLMessage msg) {
+            historyMessages.inc();
+            ACLMessage reply = msg.createReply();
+            String content = msg.getContent();
+            try {
                 String[] parts = content.split(":");
-                if (parts[0].equals("RESTOCKED") && parts.length == 3) {
-                    String productId = parts[1];
-                    int quantity = Integer.parseInt(parts[2]);
+                int slot = parts.length > 1 ? store.findSlot(parts[1]) : -1;
+                if (!parts[0].equals("SALES_VELOCITY") && !parts[0].equals("STOCK_AT")) {
+                    reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                    reply.setContent("Unknown history request: " + content);
+                } else if (slot < 0) {
+                    reply.setPerformative(ACLMessage.FAILURE);
+                    reply.setContent("Unknown product: " + content);
+                } else if (parts[0].equals("SALES_VELOCITY") && parts.length >= 3) {
+                    long from = Long.parseLong(parts[2]);
+                    long to = parts.length > 3 ? Long.parseLong(parts[3]) : System.currentTimeMillis();
+                    long units = history.unitsSold(slot, from, to);
+                    double hours = Math.max(to - from, 1L) / 3_600_000.0;
+                    reply.setPerformative(ACLMessage.INFORM);
+                    reply.setContent(String.format(Locale.ROOT, "units=%d;perHour=%.3f;from=%d;to=%d", units, units / hours, from, to));
+                } else if (parts[0].equals("STOCK_AT") && parts.length == 3) {
+                    int quantity = history.stockAt(slot, Long.parseLong(parts[2]), store.getQuantity(slot));
+                    if (quantity < 0) {
+                        reply.setPerformative(ACLMessage.FAILURE);
+                        reply.setContent("No history before " + history.getFirstTime());
+                    } else {
+                        reply.setPerformative(ACLMessage.INFORM);
+                        reply.setContent("quantity=" + quantity);
+                    }
+                } else {
+                    throw new IllegalArgumentException(content);
+                }
+            } catch (IllegalArgumentException e) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Malformed history request: " + content);
+            } catch (IOException e) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Cannot read history: " + e.getMessage());
+            }
+            send(reply);
+        }
+    }
+
+    /**
+     * Asks the leader for a snapshot and the change stream after it.
+     */
+    private void subscribeToLeader() {
+        ACLMessage subscribe = new ACLMessage(ACLMessage.SUBSCRIBE);
+        subscribe.addReceiver(leader);
+        subscribe.setConversationId(ReplicaSet.CONVERSATION_ID);
+        subscribe.setContent(String.valueOf(replicatedVersion));
+        send(subscribe);
+        lastSubscribed = System.currentTimeMillis();
+    }
+
+    /**
+     * Applies the leader's snapshot and shipments on a follower. A shipment
+     * that does not continue from the follower's version means one was
+     * lost, and the follower subscribes again for a new snapshot.
+     */
+    private class ReplicationReceiver implements MessageDispatcher.Handler {
+        private final Map<String, Product> shipment = new LinkedHashMap<>();
+
+        public void handle(ACLMessage msg) {
+            // Late shipments from a former leader are dropped
+            if (!follower || !msg.getSender().equals(leader)) {
+                return;
+            }
+            replicationMessages.inc();
+            lastLeaderContact = System.currentTimeMillis();
 
-                    Product product = inventory.get(productId);
-                    if (product != null) {
-                        product.setQuantity(product.getQuantity() + quantity);
-                        System.out.println(String.format("[INVENTORY] Stock replenished: %d x %s (New stock: %d)",
-                                quantity, product.getName(), product.getQuantity()));
+            try {
+                shipment.clear();
+                InventoryCodec.readCatalog(msg, reader, shipment);
+                long version = Long.parseLong(msg.getUserDefinedParameter("inventory-version"));
+                if ("true".equals(msg.getUserDefinedParameter("snapshot"))) {
+                    applySnapshot(shipment.values(), version);
+                    return;
+                }
 
-                        saveInventory();
+                long from = Long.parseLong(msg.getUserDefinedParameter("from-version"));
+                if (from > replicatedVersion) {
+                    // Missed a shipment; ask again, at most once per heartbeat
+                    if (lastLeaderContact - lastSubscribed >= REPLICATION_HEARTBEAT_MS) {
+                        System.out.println("[INVENTORY] Replication gap after version " + replicatedVersion
+                                + ", resyncing");
+                        subscribeToLeader();
                     }
+                    return;
+                }
+                if (version > replicatedVersion) {
+                    applyShipment(msg.getUserDefinedParameter("product-versions"), version);
+                }
+            } catch (RuntimeException e) {
+                // Includes NumberFormatException and malformed catalog pages
+                System.err.println("[INVENTORY] Bad replication message from " + msg.getSender().getName()
+                        + ": " + e.getMessage());
+            }
+        }
+
+        private void applyShipment(String productVersions, long version) {
+            String[] shippedVersions = productVersions == null || productVersions.isEmpty()
+                    ? new String[0] : productVersions.split(",");
+            int i = 0;
+            for (Product shipped : shipment.values()) {
+                long productVersion = i < shippedVersions.length ? Long.parseLong(shippedVersions[i]) : version;
+                i++;
+                int slot = store.findSlot(shipped.getProductId());
+                if (slot < 0) {
+                    continue;
                 }
+                stock.add(slot, shipped.getQuantity() - store.getQuantity(slot));
+                store.setQuantity(slot, shipped.getQuantity());
+                catalogIndex.update(slot);
+                changeJournal.remove(versions[slot]);
+                versions[slot] = productVersion;
+                changeJournal.put(productVersion, slot);
+            }
+            replicatedVersion = version;
+            replicatedSinceCheckpoint += shipment.size();
+            if (replicatedSinceCheckpoint >= SNAPSHOT_INTERVAL) {
+                startCheckpoint();
+                replicatedSinceCheckpoint = 0;
+            }
+        }
+    }
+
+    /**
+     * Replaces the follower's stock with the leader's snapshot. Products
+     * the follower did not have yet get a store slot.
+     */
+    private void applySnapshot(Collection<Product> snapshot, long version) {
+        // The store was sized for this agent's own import, not the leader's catalog
+        int missing = 0;
+        long missingNames = 0;
+        for (Product p : snapshot) {
+            if (store.findSlot(p.getProductId()) < 0) {
+                missing++;
+                missingNames += p.getName().getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        if (!store.fits(missing, missingNames)) {
+            growStore(store.size() + missing, store.getNameBytes() + missingNames);
+        }
+
+        for (Product p : snapshot) {
+            int slot = store.findSlot(p.getProductId());
+            if (slot >= 0) {
+                store.setQuantity(slot, p.getQuantity());
             } else {
-                block();
+                try {
+                    store.add(p.getProductId(), p.getName(), p.getQuantity(), p.getThreshold(), p.getPrice());
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    System.err.println("[INVENTORY] Replica skipping " + p.getProductId() + ": " + e.getMessage());
+                }
             }
         }
+        replicatedVersion = version;
+        baseVersion = version;
+        changeJournal.clear();
+        indexInventory();
+        saveInventory();
+        replicatedSinceCheckpoint = 0;
+        System.out.println("[INVENTORY] Replica synced to version " + version + " (" + snapshot.size() + " products)");
     }
 
-    protected void takeDown() {
+    /**
+     * Replaces the store with a copy that has room for twice the given
+     * products and name bytes, keeping every product in its slot, and
+     * reopens the history for the new capacity. The copy is written next
+     * to the store and moved over it, so a crash leaves one or the other.
+     */
+    private void growStore(int products, long nameBytes) {
+        awaitCheckpoint();
+        int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max((long) STORE_CAPACITY, products * 2L));
+        Path grown = Paths.get(storeFile + ".grow");
+        try {
+            store.copyTo(grown.toString(), capacity, nameBytes * 2).close();
+            store.close();
+            Files.move(grown, Paths.get(storeFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            store = ProductStore.open(storeFile);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot grow inventory store: " + e.getMessage(), e);
+        }
+        try {
+            history.close();
+        } catch (IOException e) {
+            System.err.println("[INVENTORY] Error closing stock history: " + e.getMessage());
+        }
+        openHistory();
+        System.out.println("[INVENTORY] Grew inventory store to " + store.getCapacity() + " products");
+    }
+
+    /**
+     * Binds a follower to its shard's leader as the DF reports it: the
+     * first ready leader is subscribed to, and a newly promoted one is
+     * followed as soon as it is ready. With no leader registered, the
+     * first ready replica of the shard, by name, promotes itself if it
+     * ever synced.
+     */
+    private void checkLeader() {
+        if (!follower) {
+            return;
+        }
+        AID current = shardAgent(leaderWatch);
+        if (current != null) {
+            if (!current.equals(leader)) {
+                System.out.println("[INVENTORY] Following new leader " + current.getName());
+                leader = current;
+                reregister();
+                subscribeToLeader();
+            } else if (lastSubscribed == 0) {
+                subscribeToLeader();
+            }
+        } else if (lastLeaderContact > 0 && getAID().equals(shardAgent(replicaWatch))) {
+            // Only a follower that has synced may take over
+            promote();
+        }
+    }
+
+    /**
+     * Watches a follower's leader. A leader that is still registered but
+     * has not been heard from for the staleness bound is subscribed to
+     * again; one that is gone is handled by checkLeader().
+     */
+    private class FailoverBehaviour extends TickerBehaviour {
+        public FailoverBehaviour() {
+            super(InventoryAgent.this, FAILOVER_CHECK_MS);
+        }
+
+        protected void onTick() {
+            if (!follower) {
+                stop();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastLeaderContact < REPLICATION_MAX_STALENESS_MS
+                    || now - lastSubscribed < REPLICATION_MAX_STALENESS_MS) {
+                return;
+            }
+            if (leader.equals(shardAgent(leaderWatch))) {
+                subscribeToLeader();
+            } else {
+                checkLeader();
+            }
+        }
+    }
+
+    /**
+     * The ready agent of a watch registered for this shard; for several
+     * replicas the first by name. Null if there is none.
+     */
+    private AID shardAgent(DirectoryWatch watch) {
+        AID found = null;
+        for (DFAgentDescription dfd : watch.getReady()) {
+            Iterator<?> services = dfd.getAllServices();
+            while (services.hasNext()) {
+                ServiceDescription service = (ServiceDescription) services.next();
+                if (watch.getServiceType().equals(service.getType()) && ShardMap.shardIndexOf(service) == shardIndex
+                        && (found == null || dfd.getName().getName().compareTo(found.getName()) < 0)) {
+                    found = dfd.getName();
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Updates this agent's DF registration to its current role.
+     */
+    private void reregister() {
+        try {
+            DFService.modify(this, describe());
+        } catch (FIPAException fe) {
+            fe.printStackTrace();
+        }
+    }
+
+    /**
+     * Turns a follower into the shard's leader. Its stock is already
+     * current up to the last shipment, so it only checkpoints the store,
+     * numbers its own log after the leader's last version and starts
+     * taking purchases and restocks.
+     */
+    private void promote() {
+        long silentMs = System.currentTimeMillis() - lastLeaderContact;
+        AID former = leader;
+        follower = false;
+        leader = null;
+        unwatch(leaderWatch);
+        unwatch(replicaWatch);
+        leaderWatch = null;
+        replicaWatch = null;
         saveInventory();
+        inventoryLog.continueFrom(replicatedVersion);
+        reregister();
+        startLeader();
+
+        for (int slot = 0; slot < store.size(); slot++) {
+            if (needsRestock(slot)) {
+                requestRestock(slot);
+            }
+        }
+        System.out.println("[INVENTORY] " + former.getName() + " is gone, promoted to leader of shard "
+                + shardIndex + " at version " + replicatedVersion);
+        EventLog.Event e = promoteLog.begin(EventLog.WARN);
+        if (e != null) {
+            e.str("former", former.getLocalName()).num("version", replicatedVersion).num("silentMs", silentMs).commit();
+        }
+    }
+
+    /**
+     * Whether the stock of the product in slot is below its reorder point:
+     * the static threshold, or the one derived from its demand (see
+     * DemandTracker).
+     */
+    boolean needsRestock(int slot) {
+        return store.getQuantity(slot) < demand.reorderPoint(slot, System.currentTimeMillis());
+    }
+
+    /**
+     * Queues a restock of the product in slot unless one is already pending
+     * or in flight. Queued restocks go out together from RestockFlushBehaviour.
+     */
+    void requestRestock(int slot) {
+        restocks.request(store.getProductId(slot), demand.orderQuantity(slot, System.currentTimeMillis()));
+    }
+
+    /**
+     * Replaces the supplier pool with the suppliers that are registered and
+     * ready. Restocks wait in RestockTracker while there are none.
+     */
+    private void suppliersChanged(DirectoryWatch watch) {
+        DFAgentDescription[] ready = watch.getReady();
+        suppliers.update(ready);
+        if (ready.length > 0) {
+            System.out.println("[INVENTORY] " + ready.length + " Supplier Agent(s) available");
+        } else {
+            System.out.println("[INVENTORY] No Supplier Agent available, restocks wait for one to register");
+        }
+    }
+
+    /**
+     * A RESTOCK_BATCH being sourced by Contract-Net, from the CFP until the
+     * winning supplier has delivered every line.
+     */
+    private static class SourcingRound {
+        final String requestId;
+        final Map<String, Integer> lines;
+        final int invited;
+        final long bidDeadline;
+        final List<SupplierPool.Bid> bids = new ArrayList<>();
+        int answers;
+        SupplierPool.Bid winner;
+        long awardedAt;
+
+        SourcingRound(String requestId, Map<String, Integer> lines, int invited, long bidDeadline) {
+            this.requestId = requestId;
+            this.lines = lines;
+            this.invited = invited;
+            this.bidDeadline = bidDeadline;
+        }
+    }
+
+    /**
+     * Sources the restocks queued during the coalescing window as one
+     * RESTOCK_BATCH: a CFP goes to every known supplier and the batch is
+     * awarded once all have answered or the bidding time is up. Also fails
+     * over restocks whose supplier missed its deadline; their products are
+     * sourced again in the next round. Pending restocks wait here until a
+     * supplier is known.
+     */
+    private class RestockFlushBehaviour extends TickerBehaviour {
+        public RestockFlushBehaviour() {
+            super(InventoryAgent.this, Math.max(RESTOCK_COALESCE_MS, 10L));
+        }
+
+        protected void onTick() {
+            if (restocks.expire(expiredRestocks) > 0) {
+                for (String requestId : expiredRestocks) {
+                    failOver(sourcingRounds.remove(requestId));
+                }
+                expiredRestocks.clear();
+            }
+
+            Iterator<SourcingRound> rounds = sourcingRounds.values().iterator();
+            long now = System.currentTimeMillis();
+            while (rounds.hasNext()) {
+                SourcingRound round = rounds.next();
+                if (round.winner == null && now >= round.bidDeadline && !award(round)) {
+                    rounds.remove();
+                }
+            }
+
+            if (suppliers.isEmpty() || !restocks.isDue(RESTOCK_COALESCE_MS)) {
+                return;
+            }
+
+            Map<String, Integer> pending = restocks.getPending();
+            String requestId = "restock-" + getLocalName() + "-" + (++restockRequestCounter);
+            ACLMessage cfp = new ACLMessage(ACLMessage.CFP);
+            for (AID supplier : suppliers.getSuppliers()) {
+                cfp.addReceiver(supplier);
+            }
+            codec.writeLines(cfp, InventoryCodec.RESTOCK_BATCH, pending, InventoryCodec.PREFER_BINARY);
+            cfp.setConversationId(RestockTracker.CONVERSATION_ID);
+            cfp.setProtocol(FIPANames.InteractionProtocol.FIPA_CONTRACT_NET);
+            cfp.setReplyWith(requestId);
+            send(cfp);
+
+            EventLog.Event e = restockLog.begin(EventLog.INFO);
+            if (e != null) {
+                e.str("request", requestId).num("products", pending.size()).num("suppliers", suppliers.getSuppliers().size())
+                        .commit();
+            }
+            sourcingRounds.put(requestId, new SourcingRound(requestId, new LinkedHashMap<>(pending),
+                    suppliers.getSuppliers().size(), now + RESTOCK_CFP_TIMEOUT_MS));
+            restocks.sent(requestId, now + RESTOCK_CFP_TIMEOUT_MS + RESTOCK_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Collects the bids (PROPOSE) and refusals (REFUSE) of a sourcing round
+     * and awards it as soon as every invited supplier has answered. Bids
+     * that come in after the round was awarded are rejected.
+     */
+    private class RestockProposalServer implements MessageDispatcher.Handler {
+        public void handle(ACLMessage msg) {
+            restockProposalMessages.inc();
+            SourcingRound round = sourcingRounds.get(msg.getInReplyTo());
+            if (round == null || round.winner != null) {
+                if (msg.getPerformative() == ACLMessage.PROPOSE) {
+                    ACLMessage reject = msg.createReply();
+                    reject.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    send(reject);
+                }
+                return;
+            }
+
+            round.answers++;
+            if (msg.getPerformative() == ACLMessage.PROPOSE) {
+                SupplierPool.Bid bid = SupplierPool.parseBid(msg);
+                if (bid != null) {
+                    round.bids.add(bid);
+                }
+            }
+            if (round.answers >= round.invited && !award(round)) {
+                sourcingRounds.remove(round.requestId);
+            }
+        }
+    }
+
+    /**
+     * Accepts the best bid of a round and rejects the others. Returns false
+     * if nobody bid, in which case the products go back to pending.
+     */
+    private boolean award(SourcingRound round) {
+        SupplierPool.Bid winner = suppliers.choose(round.bids);
+        if (winner == null) {
+            restocks.requeue(round.requestId);
+            EventLog.Event e = awardLog.begin(EventLog.WARN);
+            if (e != null) {
+                e.str("request", round.requestId).str("outcome", "no bids").commit();
+            }
+            return false;
+        }
+
+        for (SupplierPool.Bid bid : round.bids) {
+            ACLMessage answer = new ACLMessage(bid == winner ? ACLMessage.ACCEPT_PROPOSAL : ACLMessage.REJECT_PROPOSAL);
+            answer.addReceiver(bid.supplier);
+            answer.setConversationId(RestockTracker.CONVERSATION_ID);
+            answer.setProtocol(FIPANames.InteractionProtocol.FIPA_CONTRACT_NET);
+            answer.setInReplyTo(round.requestId);
+            if (bid == winner) {
+                // The accepted batch is repeated so suppliers need not remember their bids
+                codec.writeLines(answer, InventoryCodec.RESTOCK_BATCH, round.lines, InventoryCodec.PREFER_BINARY);
+                answer.setReplyWith(round.requestId);
+            }
+            send(answer);
+        }
+
+        round.winner = winner;
+        round.awardedAt = System.currentTimeMillis();
+        long expected = suppliers.expectedLeadTime(winner);
+        restocks.setDeadline(round.requestId, round.awardedAt + expected + RESTOCK_TIMEOUT_MS);
+        EventLog.Event e = awardLog.begin(EventLog.INFO);
+        if (e != null) {
+            e.str("request", round.requestId).str("supplier", winner.supplier.getLocalName())
+                    .num("bids", round.bids.size()).num("price", winner.price).num("leadTimeMs", winner.leadTimeMs)
+                    .commit();
+        }
+        return true;
+    }
+
+    /**
+     * Gives up on a supplier that missed its deadline: the restock is
+     * cancelled with it and counted against its latency. A supplier that
+     * has gone away leaves the pool when its DF registration does.
+     */
+    private void failOver(SourcingRound round) {
+        if (round == null || round.winner == null) {
+            return;
+        }
+        AID supplier = round.winner.supplier;
+        suppliers.timedOut(supplier, System.currentTimeMillis() - round.awardedAt, round.winner.leadTimeMs);
+
+        ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+        cancel.addReceiver(supplier);
+        cancel.setConversationId(RestockTracker.CONVERSATION_ID);
+        cancel.setProtocol(FIPANames.InteractionProtocol.FIPA_CONTRACT_NET);
+        cancel.setInReplyTo(round.requestId);
+        send(cancel);
+
+        EventLog.Event e = awardLog.begin(EventLog.WARN);
+        if (e != null) {
+            e.str("request", round.requestId).str("supplier", supplier.getLocalName()).str("outcome", "missed deadline")
+                    .commit();
+        }
+    }
+
+    /**
+     * Applies supplier confirmations, either a single RESTOCKED or a
+     * RESTOCKED_BATCH answering one of our RESTOCK_BATCH requests, and
+     * clears the matching in-flight entries.
+     */
+    private class RestockConfirmationServer implements MessageDispatcher.Handler {
+        public void handle(ACLMessage msg) {
+            restockConfirmationMessages.inc();
+            boolean applied = false;
+            if (InventoryCodec.readLines(msg, reader, InventoryCodec.RESTOCKED_BATCH, restockLines)) {
+                for (int i = 0; i < restockLines.size; i++) {
+                    applied |= applyRestock(restockLines.productIds[i], restockLines.quantities[i],
+                            msg.getInReplyTo());
+                }
+            } else if (InventoryCodec.readItem(msg, reader, item) && item.type == InventoryCodec.RESTOCKED) {
+                applied = applyRestock(item.productId, item.quantity, msg.getInReplyTo());
+            }
+
+            SourcingRound round = sourcingRounds.get(msg.getInReplyTo());
+            if (round != null && round.winner != null && !restocks.isOutstanding(round.requestId)) {
+                suppliers.filled(round.winner.supplier, System.currentTimeMillis() - round.awardedAt,
+                        round.winner.leadTimeMs);
+                sourcingRounds.remove(round.requestId);
+            }
+
+            if (applied) {
+                // Subscribers hear of the restock once its group is synced (here or by LogSyncBehaviour)
+                commitLog(false);
+                if (changesDurable()) {
+                    subscriptions.flush(InventoryAgent.this, codec, inventoryLog.lastSeq());
+                }
+            }
+        }
+    }
+
+    private boolean applyRestock(String productId, int quantity, String requestId) {
+        int slot = store.findSlot(productId);
+        if (slot < 0 || quantity <= 0) {
+            return false;
+        }
+        long requestedAt = restocks.getRequestedAt(productId);
+        boolean matched = restocks.confirmed(productId, requestId);
+        if (matched) {
+            long latency = System.nanoTime() - requestedAt;
+            restockLatency.record(latency);
+            demand.recordLeadTime(slot, latency / 1e6);
+        }
+        int stocked = stock.add(slot, quantity);
+        EventLog.Event e = replenishLog.begin(matched ? EventLog.INFO : EventLog.WARN);
+        if (e != null) {
+            e.str("product", productId).num("quantity", quantity).num("stock", stocked)
+                    .str("request", requestId);
+            if (!matched) {
+                // A late or duplicate delivery, applied anyway
+                e.str("outcome", "unmatched");
+            }
+            e.commit();
+        }
+        recordChange(slot, quantity, InventoryLog.CAUSE_RESTOCK);
+
+        // Demand may have outrun the delivery while it was in flight
+        if (needsRestock(slot)) {
+            requestRestock(slot);
+        }
+        return true;
+    }
+
+    protected void takeDown() {
+        System.out.println("[INVENTORY] Purchase batches: " + purchaseBatchStats);
+        System.out.println("[INVENTORY] Restocks: " + restocks);
+        System.out.println("[INVENTORY] Suppliers: " + suppliers);
+        metrics.unregister();
+        for (DirectoryWatch watch : new DirectoryWatch[] {supplierWatch, leaderWatch, replicaWatch}) {
+            if (watch != null) {
+                unwatch(watch);
+            }
+        }
+        if (follower) {
+            ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+            cancel.addReceiver(leader);
+            cancel.setConversationId(ReplicaSet.CONVERSATION_ID);
+            send(cancel);
+        }
+        closeInventory();
         try {
             DFService.deregister(this);
         } catch (FIPAException fe) {
@@ -0,0 +1,463 @@
+import jade.lang.acl.ACLMessage;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned binary encoding of the inventory protocols, carried as ACL byte
+ * sequence content.
+ *
+ * Binary messages are marked with the ACL language LANGUAGE and ontology
+ * ONTOLOGY; any other message uses the original string forms (PURCHASE:id:qty,
+ * RESTOCK:id:qty, RESTOCKED:id:qty and id,name,quantity,threshold,price|...).
+ * Receivers answer in the encoding of the request, so both forms keep working.
+ *
+ * Layout: version byte, type byte, then the fields of the message. Strings
+ * are a u16 byte length followed by UTF-8 bytes, so names may contain any
+ * character. Encoding goes through one reusable buffer per codec instance
+ * and decoding reads fields in place; the only allocations are the byte[]
+ * handed to the ACL message and the decoded Strings.
+ */
+public class InventoryCodec {
+    public static final String LANGUAGE = "isml-binary";
+    public static final String ONTOLOGY = "inventory";
+    public static final byte VERSION = 1;
+
+    public static final byte PURCHASE = 1;
+    public static final byte RESTOCK = 2;
+    public static final byte RESTOCKED = 3;
+    public static final byte CATALOG_PAGE = 4;
+    public static final byte ORDER = 5;
+    public static final byte RESTOCK_BATCH = 6;
+    public static final byte RESTOCKED_BATCH = 7;
+
+    // Encoding this agent uses for the requests it starts; replies follow the request
+    public static final boolean PREFER_BINARY = "binary".equals(System.getProperty("inventory.codec", "string"));
+
+    private static final String[] VERBS = {null, "PURCHASE", "RESTOCK", "RESTOCKED", null,
+            "PURCHASE_BATCH", "RESTOCK_BATCH", "RESTOCKED_BATCH"};
+
+    /**
+     * A decoded PURCHASE, RESTOCK or RESTOCKED message. Reused across messages.
+     */
+    public static class Item {
+        public byte type;
+        public String productId;
+        public int quantity;
+    }
+
+    /**
+     * Decoded (product id, quantity) lines of a multi-line message: an order
+     * (PURCHASE_BATCH), RESTOCK_BATCH or RESTOCKED_BATCH. Reused across messages.
+     */
+    public static class Lines {
+        public int size;
+        public String[] productIds = new String[8];
+        public int[] quantities = new int[8];
+
+        public void clear() {
+            size = 0;
+        }
+
+        public void add(String productId, int quantity) {
+            if (size == productIds.length) {
+                productIds = java.util.Arrays.copyOf(productIds, size * 2);
+                quantities = java.util.Arrays.copyOf(quantities, size * 2);
+            }
+            productIds[size] = productId;
+            quantities[size] = quantity;
+            size++;
+        }
+    }
+
+    private ByteBuffer buffer;
+
+    public InventoryCodec() {
+        this(4096);
+    }
+
+    public InventoryCodec(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    public static boolean isBinary(ACLMessage msg) {
+        return LANGUAGE.equals(msg.getLanguage()) && ONTOLOGY.equals(msg.getOntology());
+    }
+
+    // ---- Encoding ----
+
+    /**
+     * Encodes a message carrying one product id and quantity (PURCHASE, RESTOCK, RESTOCKED).
+     */
+    public void encodeItem(byte type, String productId, int quantity) {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(type);
+        putString(productId);
+        ensureCapacity(4);
+        buffer.putInt(quantity);
+    }
+
+    /**
+     * Encodes a catalog page.
+     */
+    public void encodeCatalog(List<Product> products) {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(CATALOG_PAGE);
+        ensureCapacity(4);
+        buffer.putInt(products.size());
+        for (int i = 0; i < products.size(); i++) {
+            Product p = products.get(i);
+            putString(p.getProductId());
+            putString(p.getName());
+            ensureCapacity(16);
+            buffer.putInt(p.getQuantity());
+            buffer.putInt(p.getThreshold());
+            buffer.putDouble(p.getPrice());
+        }
+    }
+
+    /**
+     * Encodes a multi-line message (ORDER, RESTOCK_BATCH or RESTOCKED_BATCH).
+     */
+    public void encodeLines(byte type, Map<String, Integer> lines) {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(type);
+        ensureCapacity(4);
+        buffer.putInt(lines.size());
+        for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            putString(line.getKey());
+            ensureCapacity(4);
+            buffer.putInt(line.getValue());
+        }
+    }
+
+    /**
+     * Number of bytes produced by the last encode call.
+     */
+    public int encodedLength() {
+        return buffer.position();
+    }
+
+    /**
+     * Copy of the last encoded message.
+     */
+    public byte[] toByteArray() {
+        byte[] content = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, content, 0, content.length);
+        return content;
+    }
+
+    /**
+     * Copies the last encoded message into the ACL message and marks it as binary.
+     */
+    public void writeTo(ACLMessage msg) {
+        msg.setByteSequenceContent(toByteArray());
+        msg.setLanguage(LANGUAGE);
+        msg.setOntology(ONTOLOGY);
+    }
+
+    /**
+     * Sets an item message (PURCHASE, RESTOCK, RESTOCKED) as message content,
+     * in binary or string form.
+     */
+    public void writeItem(ACLMessage msg, byte type, String productId, int quantity, boolean binary) {
+        if (binary) {
+            encodeItem(type, productId, quantity);
+            writeTo(msg);
+        } else {
+            msg.setContent(VERBS[type] + ":" + productId + ":" + quantity);
+        }
+    }
+
+    /**
+     * Sets a multi-line message as content, in binary or string form
+     * (e.g. PURCHASE_BATCH:id1:qty1;id2:qty2;...).
+     */
+    public void writeLines(ACLMessage msg, byte type, Map<String, Integer> lines, boolean binary) {
+        if (binary) {
+            encodeLines(type, lines);
+            writeTo(msg);
+        } else {
+            StringBuilder sb = new StringBuilder(VERBS[type]).append(':');
+            for (Map.Entry<String, Integer> line : lines.entrySet()) {
+                sb.append(line.getKey()).append(':').append(line.getValue()).append(';');
+            }
+            msg.setContent(sb.toString());
+        }
+    }
+
+    /**
+     * Sets a catalog page as message content, in binary or string form.
+     */
+    public void writeCatalog(ACLMessage msg, List<Product> products, boolean binary) {
+        if (binary) {
+            encodeCatalog(products);
+            writeTo(msg);
+        } else {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < products.size(); i++) {
+                products.get(i).appendRecord(sb);
+            }
+            msg.setContent(sb.toString());
+        }
+    }
+
+    private void putString(String s) {
+        // Worst case 3 bytes per char for the BMP, 4 per surrogate pair
+        ensureCapacity(2 + s.length() * 3);
+        int lengthPos = buffer.position();
+        buffer.position(lengthPos + 2);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        int length = buffer.position() - lengthPos - 2;
+        if (length > 0xFFFF) {
+            throw new BufferOverflowException();
+        }
+        buffer.putShort(lengthPos, (short) length);
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+
+    // ---- Decoding ----
+
+    /**
+     * Cursor over an encoded message. Reusable: reset() it for every message.
+     */
+    public static class Reader {
+        private byte[] data;
+        private int pos;
+        private int limit;
+        private byte type;
+
+        /**
+         * Starts reading a message and returns its type.
+         */
+        public byte reset(byte[] data) {
+            this.data = data;
+            this.pos = 0;
+            this.limit = data.length;
+            if (limit < 2 || data[0] != VERSION) {
+                throw new IllegalArgumentException("Unsupported inventory codec version");
+            }
+            pos = 2;
+            type = data[1];
+            return type;
+        }
+
+        public byte type() {
+            return type;
+        }
+
+        public int getInt() {
+            check(4);
+            int v = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                    | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            pos += 4;
+            return v;
+        }
+
+        public double getDouble() {
+            check(8);
+            long hi = getInt() & 0xFFFFFFFFL;
+            long lo = getInt() & 0xFFFFFFFFL;
+            return Double.longBitsToDouble((hi << 32) | lo);
+        }
+
+        public String getString() {
+            check(2);
+            int length = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+            check(length);
+            String s = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        private void check(int bytes) {
+            if (pos + bytes > limit) {
+                throw new IllegalArgumentException("Truncated inventory message");
+            }
+        }
+    }
+
+    /**
+     * Reads an item message in either encoding into the holder. Returns false
+     * if the message is not a well-formed PURCHASE, RESTOCK or RESTOCKED.
+     */
+    public static boolean readItem(ACLMessage msg, Reader reader, Item into) {
+        try {
+            if (isBinary(msg)) {
+                into.type = reader.reset(msg.getByteSequenceContent());
+                if (into.type < PURCHASE || into.type > RESTOCKED) {
+                    return false;
+                }
+                into.productId = reader.getString();
+                into.quantity = reader.getInt();
+                return true;
+            }
+
+            String content = msg.getContent();
+            if (content == null) {
+                return false;
+            }
+            int first = content.indexOf(':');
+            int second = content.indexOf(':', first + 1);
+            if (first < 0 || second < 0 || content.indexOf(':', second + 1) >= 0) {
+                return false;
+            }
+            into.type = 0;
+            for (byte t = PURCHASE; t <= RESTOCKED; t++) {
+                if (content.regionMatches(0, VERBS[t], 0, first) && VERBS[t].length() == first) {
+                    into.type = t;
+                }
+            }
+            if (into.type == 0) {
+                return false;
+            }
+            into.productId = content.substring(first + 1, second);
+            into.quantity = Integer.parseInt(content.substring(second + 1));
+            return true;
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException and truncated binary messages
+            return false;
+        }
+    }
+
+    /**
+     * Reads a multi-line message of the given type in either encoding into
+     * the holder. Returns false if the message is not a well-formed message
+     * of that type.
+     */
+    public static boolean readLines(ACLMessage msg, Reader reader, byte type, Lines into) {
+        into.clear();
+        try {
+            if (isBinary(msg)) {
+                if (reader.reset(msg.getByteSequenceContent()) != type) {
+                    return false;
+                }
+                int count = reader.getInt();
+                for (int i = 0; i < count; i++) {
+                    into.add(reader.getString(), reader.getInt());
+                }
+                return count > 0;
+            }
+
+            String content = msg.getContent();
+            String verb = VERBS[type];
+            if (content == null || !content.startsWith(verb) || content.length() <= verb.length()
+                    || content.charAt(verb.length()) != ':') {
+                return false;
+            }
+            int start = verb.length() + 1;
+            while (start < content.length()) {
+                int end = content.indexOf(';', start);
+                if (end < 0) {
+                    end = content.length();
+                }
+                int colon = content.lastIndexOf(':', end - 1);
+                if (colon <= start) {
+                    return false;
+                }
+                into.add(content.substring(start, colon), Integer.parseInt(content.substring(colon + 1, end)));
+                start = end + 1;
+            }
+            return into.size > 0;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decodes a catalog page into products keyed by id.
+     */
+    public static int decodeCatalog(Reader reader, byte[] data, Map<String, Product> into) {
+        if (reader.reset(data) != CATALOG_PAGE) {
+            throw new IllegalArgumentException("Not a catalog page");
+        }
+        int count = reader.getInt();
+        for (int i = 0; i < count; i++) {
+            String id = reader.getString();
+            String name = reader.getString();
+            int quantity = reader.getInt();
+            int threshold = reader.getInt();
+            double price = reader.getDouble();
+            into.put(id, new Product(id, name, quantity, threshold, price));
+        }
+        return count;
+    }
+
+    /**
+     * Parses the string catalog form into products keyed by id. The id is
+     * the first field and the three numbers are the last ones, so a name
+     * containing commas survives.
+     */
+    public static int parseCatalog(String content, Map<String, Product> into) {
+        int count = 0;
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('|', start)) >= 0) {
+            int idEnd = content.indexOf(',', start);
+            int priceStart = content.lastIndexOf(',', end - 1);
+            int thresholdStart = priceStart > 0 ? content.lastIndexOf(',', priceStart - 1) : -1;
+            int quantityStart = thresholdStart > 0 ? content.lastIndexOf(',', thresholdStart - 1) : -1;
+            if (idEnd > start && quantityStart > idEnd && quantityStart < end) {
+                try {
+                    String id = content.substring(start, idEnd);
+                    Product p = new Product(id,
+                            content.substring(idEnd + 1, quantityStart),
+                            Integer.parseInt(content.substring(quantityStart + 1, thresholdStart)),
+                            Integer.parseInt(content.substring(thresholdStart + 1, priceStart)),
+                            Double.parseDouble(content.substring(priceStart + 1, end)));
+                    into.put(id, p);
+                    count++;
+                } catch (NumberFormatException e) {
+                    System.err.println("Skipping malformed catalog record: " + content.substring(start, end));
+                }
+            }
+            start = end + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a catalog page from an ACL message in either encoding.
+     */
+    public static int readCatalog(ACLMessage msg, Reader reader, Map<String, Product> into) {
+        if (isBinary(msg)) {
+            return decodeCatalog(reader, msg.getByteSequenceContent(), into);
+        }
+        String content = msg.getContent();
+        return content == null ? 0 : parseCatalog(content, into);
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of inventory quantity changes.
+ *
+ * Each record holds a sequence number, the product id, the quantity delta,
+ * the resulting quantity and the cause of the change. Records are buffered
+ * and forced to disk in groups (group commit), so persisting an order costs
+ * one small append instead of a rewrite of the whole catalog. Replay is
+ * idempotent because every record carries the absolute quantity after the
+ * change.
+ *
+ * For a checkpoint taken while records keep coming, rotate() moves the
+ * records so far to a rotated file (<log>.old) and starts an empty log;
+ * replay reads the rotated file first until dropRotated() deletes it.
+ */
+public class InventoryLog implements Closeable {
+    public static final byte CAUSE_PURCHASE = 1;
+    public static final byte CAUSE_RESTOCK = 2;
+
+    // seq(8) + cause(1) + delta(4) + quantityAfter(4) + idLength(2)
+    private static final int PAYLOAD_HEADER = 19;
+    // length prefix(4) + payload header + crc(4)
+    private static final int RECORD_OVERHEAD = 4 + PAYLOAD_HEADER + 4;
+    private static final int MAX_ID_BYTES = 1024;
+
+    public interface Replayer {
+        void apply(long seq, String productId, int delta, int quantityAfter, byte cause);
+    }
+
+    private final Path path;
+    private final Path rotatedPath;
+    private FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private final int groupSize;
+    private final long maxLingerMs;
+
+    private long lastSeq = 0;
+    private int pending = 0;
+    private long oldestPendingTime = 0;
+    private int recordCount = 0;
+    private long bytesWritten = 0;
+
+    public InventoryLog(String fileName, int groupSize, long maxLingerMs) throws IOException {
+        this.path = Paths.get(fileName);
+        this.rotatedPath = Paths.get(fileName + ".old");
+        this.groupSize = groupSize;
+        this.maxLingerMs = maxLingerMs;
+        this.channel = openChannel();
+    }
+
+    private FileChannel openChannel() throws IOException {
+        FileChannel opened = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        opened.position(opened.size());
+        return opened;
+    }
+
+    /**
+     * Replays every intact record with a sequence number above afterSeq,
+     * those of a rotated file first. A torn or corrupt tail (e.g. from a
+     * crash mid-append) ends the replay of a file and is cut off so new
+     * records are not written behind garbage.
+     * Returns the number of records applied.
+     */
+    public int replay(long afterSeq, Replayer replayer) throws IOException {
+        lastSeq = Math.max(lastSeq, afterSeq);
+        recordCount = 0;
+        int applied = 0;
+        if (hasRotated()) {
+            // Written in full and synced before it was rotated, so it has no torn tail to cut
+            applied += replayFile(rotatedPath, afterSeq, replayer, new long[1]);
+        }
+
+        long[] validLength = new long[1];
+        applied += replayFile(path, afterSeq, replayer, validLength);
+        if (validLength[0] < channel.size()) {
+            System.err.println("[INVENTORY] Discarding " + (channel.size() - validLength[0])
+                    + " bytes of incomplete log tail");
+            channel.truncate(validLength[0]);
+        }
+        channel.position(validLength[0]);
+        return applied;
+    }
+
+    private int replayFile(Path file, long afterSeq, Replayer replayer, long[] validLengthOut) throws IOException {
+        int applied = 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file.toFile())))) {
+            byte[] payload = new byte[PAYLOAD_HEADER + MAX_ID_BYTES];
+            while (true) {
+                int payloadLength;
+                try {
+                    payloadLength = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (payloadLength < PAYLOAD_HEADER || payloadLength > PAYLOAD_HEADER + MAX_ID_BYTES) {
+                    break;
+                }
+                try {
+                    in.readFully(payload, 0, payloadLength);
+                } catch (EOFException e) {
+                    break;
+                }
+                int storedCrc = in.readInt();
+                crc.reset();
+                crc.update(payload, 0, payloadLength);
+                if ((int) crc.getValue() != storedCrc) {
+                    break;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(payload, 0, payloadLength);
+                long seq = record.getLong();
+                byte cause = record.get();
+                int delta = record.getInt();
+                int quantityAfter = record.getInt();
+                int idLength = record.getShort();
+                String productId = new String(payload, record.position(), idLength, StandardCharsets.UTF_8);
+
+                validLength += 4 + payloadLength + 4;
+                recordCount++;
+                if (seq > afterSeq) {
+                    replayer.apply(seq, productId, delta, quantityAfter, cause);
+                    applied++;
+                }
+                lastSeq = Math.max(lastSeq, seq);
+            }
+        } catch (EOFException e) {
+            // Torn CRC at the tail, treated like any other incomplete record
+        }
+        validLengthOut[0] = validLength;
+        return applied;
+    }
+
+    /**
+     * Appends a record to the in-memory group buffer and returns its
+     * sequence number. The record is durable only after the next sync().
+     */
+    public long append(String productId, int delta, int quantityAfter, byte cause) throws IOException {
+        byte[] id = productId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_ID_BYTES) {
+            throw new IOException("Product id too long for log record: " + productId);
+        }
+        int recordLength = RECORD_OVERHEAD + id.length;
+        if (buffer.remaining() < recordLength) {
+            flushBuffer();
+        }
+
+        long seq = ++lastSeq;
+        int start = buffer.position();
+        buffer.putInt(PAYLOAD_HEADER + id.length);
+        buffer.putLong(seq);
+        buffer.put(cause);
+        buffer.putInt(delta);
+        buffer.putInt(quantityAfter);
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        crc.reset();
+        crc.update(buffer.array(), start + 4, buffer.position() - start - 4);
+        buffer.putInt((int) crc.getValue());
+
+        if (pending == 0) {
+            oldestPendingTime = System.currentTimeMillis();
+        }
+        pending++;
+        recordCount++;
+        return seq;
+    }
+
+    /**
+     * Group commit: forces pending records to disk once the group is full
+     * or the oldest pending record has waited longer than the linger time.
+     * Returns true if a sync happened.
+     */
+    public boolean commit() throws IOException {
+        if (pending >= groupSize
+                || (pending > 0 && System.currentTimeMillis() - oldestPendingTime >= maxLingerMs)) {
+            sync();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes out and fsyncs every pending record.
+     */
+    public void sync() throws IOException {
+        if (pending == 0 && buffer.position() == 0) {
+            return;
+        }
+        flushBuffer();
+        channel.force(false);
+        pending = 0;
+    }
+
+    /**
+     * Drops all records, rotated ones too. Called once a snapshot covering
+     * lastSeq() is safely on disk.
+     */
+    public void truncate() throws IOException {
+        dropRotated();
+        buffer.clear();
+        pending = 0;
+        recordCount = 0;
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    /**
+     * Syncs the log, moves its records to the rotated file and starts an
+     * empty log, for a checkpoint of everything up to lastSeq() that is
+     * written while new records are appended. Fails if the previous
+     * rotated file has not been dropped yet.
+     */
+    public void rotate() throws IOException {
+        if (hasRotated()) {
+            throw new IOException("Rotated log " + rotatedPath + " is still in use");
+        }
+        sync();
+        channel.close();
+        Files.move(path, rotatedPath, StandardCopyOption.ATOMIC_MOVE);
+        channel = openChannel();
+        recordCount = 0;
+    }
+
+    /**
+     * Deletes the rotated file, once a checkpoint covering its records is
+     * on disk. Safe to call from another thread than the one appending.
+     */
+    public void dropRotated() throws IOException {
+        Files.deleteIfExists(rotatedPath);
+    }
+
+    public boolean hasRotated() {
+        return Files.exists(rotatedPath);
+    }
+
+    /**
+     * Bytes written to the log file since it was opened.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Numbers new records after seq, for a log taking over from another
+     * agent's whose changes are already in the store.
+     */
+    public void continueFrom(long seq) {
+        lastSeq = Math.max(lastSeq, seq);
+    }
+
+    public int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Number of records in the log since the last truncate, used to decide
+     * when to write a compacted snapshot.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        bytesWritten += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+}
@@ -0,0 +1,299 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.*;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.wrapper.StaleProxyException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Headless buyer mode for load tests. Finds the inventory shards, loads the
+ * product ids from their catalogs, starts N SimulatedBuyerAgents in its own
+ * container and, once all of them are done, prints throughput, failure
+ * rates and latency percentiles of the run.
+ */
+public class LoadGeneratorAgent extends Agent {
+    private static final String CONVERSATION_ID = "load-run";
+
+    private static final int BUYERS = Integer.getInteger("load.buyers", 10);
+    private static final String MODE = System.getProperty("load.mode", Workload.MODE_CLOSED);
+    private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "100"));
+    private static final long THINK_TIME_MS = Long.getLong("load.thinkTimeMs", 0L);
+    private static final long DURATION_SEC = Long.getLong("load.durationSec", 30L);
+    private static final long WARMUP_SEC = Long.getLong("load.warmupSec", 5L);
+    private static final String POPULARITY = System.getProperty("load.popularity", "uniform");
+    private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("load.zipfExponent", "1.0"));
+    private static final String QUANTITY = System.getProperty("load.quantity", "1");
+    private static final long SEED = Long.getLong("load.seed", 42L);
+    private static final long TIMEOUT_MS = Long.getLong("load.timeoutMs", 10000L);
+    private static final int MAX_OUTSTANDING = Integer.getInteger("load.maxOutstanding", 1000);
+    // Buyers adapt how many requests they have outstanding to refusals and timeouts (see CongestionWindow)
+    private static final boolean ADAPTIVE = Boolean.parseBoolean(System.getProperty("load.adaptive", "true"));
+
+    /**
+     * Outcome counters of one buyer, or of the whole run once merged.
+     */
+    public static class Counts {
+        long sent;
+        long ok;
+        long insufficient;
+        long notFound;
+        long otherFailures;
+        long refused;
+        long timedOut;
+        long dropped;
+
+        void completed(ACLMessage reply) {
+            if (reply.getPerformative() == ACLMessage.INFORM) {
+                ok++;
+            } else if (reply.getPerformative() == ACLMessage.REFUSE) {
+                refused++;
+            } else if (reply.getContent() != null && reply.getContent().startsWith("Insufficient")) {
+                insufficient++;
+            } else if (reply.getContent() != null && reply.getContent().startsWith("Product not found")) {
+                notFound++;
+            } else {
+                otherFailures++;
+            }
+        }
+
+        void add(Counts c) {
+            sent += c.sent;
+            ok += c.ok;
+            insufficient += c.insufficient;
+            notFound += c.notFound;
+            otherFailures += c.otherFailures;
+            refused += c.refused;
+            timedOut += c.timedOut;
+            dropped += c.dropped;
+        }
+
+        long failed() {
+            return insufficient + notFound + otherFailures + refused + timedOut;
+        }
+    }
+
+    /**
+     * A load run, shared with the buyers it starts (they live in the same
+     * container). Times are System.nanoTime() values.
+     */
+    public static class Run {
+        final Workload workload;
+        // Replaced when the shards change during the run
+        volatile ShardMap shards;
+        final long seed;
+        final long measureFrom;
+        final long stopAt;
+        final long timeoutNanos;
+        final int maxOutstanding;
+        final boolean adaptive;
+        private final AID coordinator;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final Counts counts = new Counts();
+
+        Run(Workload workload, ShardMap shards, AID coordinator) {
+            this.workload = workload;
+            this.shards = shards;
+            this.coordinator = coordinator;
+            this.seed = SEED;
+            long now = System.nanoTime();
+            this.measureFrom = now + WARMUP_SEC * 1_000_000_000L;
+            this.stopAt = measureFrom + DURATION_SEC * 1_000_000_000L;
+            this.timeoutNanos = TIMEOUT_MS * 1_000_000L;
+            this.maxOutstanding = MAX_OUTSTANDING;
+            this.adaptive = ADAPTIVE;
+        }
+
+        /**
+         * Called by a buyer on its own thread once its last request is settled.
+         */
+        void finished(Agent buyer, LatencyHistogram buyerLatency, Counts buyerCounts) {
+            synchronized (this) {
+                latency.merge(buyerLatency);
+                counts.add(buyerCounts);
+            }
+            ACLMessage done = new ACLMessage(ACLMessage.INFORM);
+            done.addReceiver(coordinator);
+            done.setConversationId(CONVERSATION_ID);
+            done.setContent("DONE");
+            buyer.send(done);
+        }
+    }
+
+    private ShardMap shards;
+    private final Map<String, Product> catalog = new HashMap<>();
+    private final InventoryCodec.Reader reader = new InventoryCodec.Reader();
+    private Run run;
+
+    protected void setup() {
+        System.out.println("LoadGeneratorAgent " + getAID().getName() + " is ready.");
+        addBehaviour(new DirectoryWatch(this, "inventory-management", this::shardsChanged));
+    }
+
+    /**
+     * Starts loading the catalog once ready shards cover every product id.
+     * Later changes (a restarted shard, a promoted follower) are handed to
+     * the running buyers.
+     */
+    private void shardsChanged(DirectoryWatch watch) {
+        ShardMap found = ShardMap.fromSearch(watch.getReady(), "inventory-management");
+        if (found.isEmpty() || !found.isComplete()) {
+            return;
+        }
+        boolean first = shards == null;
+        shards = found;
+        if (first) {
+            System.out.println("[LOAD] Found " + shards.size() + " inventory shard(s)");
+            addBehaviour(new CatalogLoadBehaviour());
+        } else {
+            System.out.println("[LOAD] Rebound to " + shards.size() + " inventory shard(s)");
+            if (run != null) {
+                run.shards = shards;
+            }
+        }
+    }
+
+    /**
+     * Pages through every shard's catalog to learn the product ids.
+     */
+    private class CatalogLoadBehaviour extends Behaviour {
+        private final String loadId = "load-catalog-" + System.nanoTime();
+        private final MessageTemplate mt = MessageTemplate.and(
+            MessageTemplate.MatchConversationId("product-list"),
+            MessageTemplate.MatchInReplyTo(loadId)
+        );
+        private int pending;
+
+        public void onStart() {
+            for (AID shard : shards.getShards()) {
+                request(shard, "GET_PRODUCTS");
+                pending++;
+            }
+        }
+
+        public void action() {
+            ACLMessage reply = myAgent.receive(mt);
+            if (reply == null) {
+                block();
+                return;
+            }
+            if (reply.getPerformative() == ACLMessage.INFORM) {
+                InventoryCodec.readCatalog(reply, reader, catalog);
+                String nextCursor = reply.getUserDefinedParameter("next-cursor");
+                if (nextCursor != null) {
+                    request(reply.getSender(), "GET_PRODUCTS:" + nextCursor);
+                    return;
+                }
+            }
+            if (--pending == 0) {
+                startBuyers();
+            }
+        }
+
+        private void request(AID shard, String content) {
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.addReceiver(shard);
+            request.setContent(content);
+            request.setConversationId("product-list");
+            request.setReplyWith(loadId);
+            myAgent.send(request);
+        }
+
+        public boolean done() {
+            return pending == 0;
+        }
+    }
+
+    private void startBuyers() {
+        if (catalog.isEmpty()) {
+            System.out.println("[LOAD] Inventory has no products, nothing to buy");
+            doDelete();
+            return;
+        }
+        Workload workload = new Workload(new ArrayList<>(catalog.keySet()), MODE, RATE, BUYERS,
+                THINK_TIME_MS, POPULARITY, ZIPF_EXPONENT, QUANTITY);
+        run = new Run(workload, shards, getAID());
+        System.out.println(String.format("[LOAD] Starting %d buyers: %s loop%s, %s popularity over %d products, "
+                        + "quantity %s, %d s warmup + %d s measured",
+                BUYERS, MODE, workload.isOpenLoop() ? " at " + RATE + " req/s" : ", think time " + THINK_TIME_MS + " ms",
+                POPULARITY, workload.getProductCount(), QUANTITY, WARMUP_SEC, DURATION_SEC));
+
+        try {
+            for (int i = 0; i < BUYERS; i++) {
+                getContainerController().createNewAgent(getLocalName() + "-buyer-" + i, "SimulatedBuyerAgent",
+                        new Object[] {run, i}).start();
+            }
+        } catch (StaleProxyException e) {
+            System.err.println("[LOAD] Cannot start simulated buyers: " + e.getMessage());
+            doDelete();
+            return;
+        }
+        addBehaviour(new RunCompletionBehaviour());
+    }
+
+    /**
+     * Collects a DONE from every buyer, then reports the run.
+     */
+    private class RunCompletionBehaviour extends Behaviour {
+        private final MessageTemplate mt = MessageTemplate.MatchConversationId(CONVERSATION_ID);
+        private int done;
+
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            if (++done == BUYERS) {
+                report();
+                myAgent.doDelete();
+            }
+        }
+
+        public boolean done() {
+            return done == BUYERS;
+        }
+    }
+
+    private void report() {
+        LatencyHistogram latency;
+        Counts c;
+        synchronized (run) {
+            latency = run.latency;
+            c = run.counts;
+        }
+        double seconds = DURATION_SEC;
+        long settled = c.ok + c.failed();
+        Map<String, Long> failures = new LinkedHashMap<>();
+        failures.put("insufficient stock", c.insufficient);
+        failures.put("not found", c.notFound);
+        failures.put("other failure", c.otherFailures);
+        failures.put("refused", c.refused);
+        failures.put("timed out", c.timedOut);
+        failures.put("dropped", c.dropped);
+
+        System.out.println("[LOAD] ===== Load run finished =====");
+        System.out.println(String.format("[LOAD] Requests: %d sent, %d succeeded, %d failed %s",
+                c.sent, c.ok, c.failed(), failures));
+        System.out.println(String.format("[LOAD] Throughput: %.1f req/s settled, %.1f req/s succeeded",
+                settled / seconds, c.ok / seconds));
+        System.out.println(String.format("[LOAD] Failure rate: %.2f%% (%.2f%% timed out)",
+                percent(c.failed(), settled), percent(c.timedOut, settled)));
+        System.out.println(String.format("[LOAD] Latency (ms): p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f  mean %.3f",
+                latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(90) / 1000.0,
+                latency.getValueAtPercentile(99) / 1000.0, latency.getValueAtPercentile(99.9) / 1000.0,
+                latency.getMax() / 1000.0, latency.getMean() / 1000.0));
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+
+    protected void takeDown() {
+        System.out.println("LoadGeneratorAgent " + getAID().getName() + " terminating.");
+    }
+}
@@ -22,40 +22,56 @@ public class Main {
             // Create main container
             AgentContainer mainContainer = runtime.createMainContainer(profile);
 
-            // Create and start Supplier Agent
-            AgentController supplierAgent = mainContainer.createNewAgent(
-                "SupplierAgent", 
-                "SupplierAgent", 
-                null
-            );
-            supplierAgent.start();
-            
-            // Wait a bit for supplier to register
-            Thread.sleep(500);
-            
-            // Create and start Inventory Agent
-            AgentController inventoryAgent = mainContainer.createNewAgent(
-                "InventoryAgent", 
-                "InventoryAgent", 
-                null
-            );
-            inventoryAgent.start();
+            // Agents find each other through DF subscriptions and a readiness handshake
+            // (see DirectoryWatch), so they can start in any order without waiting
+
+            // Create and start the Supplier Agents; inventory sources each restock from the best bidder
+            int suppliers = Integer.getInteger("supplier.count", 1);
+            for (int i = 0; i < suppliers; i++) {
+                AgentController supplierAgent = mainContainer.createNewAgent(
+                    suppliers == 1 ? "SupplierAgent" : "SupplierAgent-" + i,
+                    "SupplierAgent",
+                    null
+                );
+                supplierAgent.start();
+            }
             
-            // Wait for inventory to initialize
-            Thread.sleep(1000);
+            // Create and start the Inventory Agent shards, each owning a hash range of product ids
+            int shards = Integer.getInteger("inventory.shards", 1);
+            for (int i = 0; i < shards; i++) {
+                AgentController inventoryAgent = mainContainer.createNewAgent(
+                    shards == 1 ? "InventoryAgent" : "InventoryAgent-" + i,
+                    "InventoryAgent",
+                    new Object[] {String.valueOf(i), String.valueOf(shards)}
+                );
+                inventoryAgent.start();
+            }
+
+            // Followers of each shard serve catalog reads and take over if the shard's agent goes away
+            int replicas = Integer.getInteger("inventory.replicas", 0);
+            for (int i = 0; i < shards; i++) {
+                String leader = shards == 1 ? "InventoryAgent" : "InventoryAgent-" + i;
+                for (int r = 0; r < replicas; r++) {
+                    AgentController replicaAgent = mainContainer.createNewAgent(
+                        leader + "-replica-" + r,
+                        "InventoryAgent",
+                        new Object[] {String.valueOf(i), String.valueOf(shards), "follower", leader}
+                    );
+                    replicaAgent.start();
+                }
+            }
             
-            // Create and start Buyer Agent
+            // Create and start the Buyer Agent, or the headless load generator for load tests
+            boolean headless = "headless".equals(System.getProperty("buyer.mode", "gui"));
             AgentController buyerAgent = mainContainer.createNewAgent(
-                "BuyerAgent", 
-                "BuyerAgent", 
+                headless ? "LoadGenerator" : "BuyerAgent",
+                headless ? "LoadGeneratorAgent" : "BuyerAgent",
                 null
             );
             buyerAgent.start();
 
         } catch (StaleProxyException e) {
             e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,137 @@
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The only behaviour of an agent that reads its mailbox. Each action takes
+ * the messages queued at that moment off the mailbox, in arrival order,
+ * and hands each to the handler registered for it:
+ *   by conversation id and performative (or any performative), or
+ *   for messages without a matching conversation, by performative and
+ *   content verb (the content up to the first ':'), e.g. QUERY_REF METRICS.
+ * Both are hash lookups, so a message costs the same however many kinds
+ * of message the agent handles, and none waits in the mailbox behind
+ * another behaviour's template.
+ *
+ * A message nobody handles is answered NOT_UNDERSTOOD instead of being
+ * left in the mailbox, except NOT_UNDERSTOOD and FAILURE messages, which
+ * are dropped so two agents never bounce them back and forth. Both are
+ * counted in getNotUnderstood().
+ */
+public class MessageDispatcher extends CyclicBehaviour {
+    // Above the highest FIPA performative (PROPAGATE)
+    private static final int PERFORMATIVES = 32;
+    private static final int ANY = PERFORMATIVES;
+
+    public interface Handler {
+        void handle(ACLMessage msg);
+    }
+
+    private final Map<String, Handler[]> byConversation = new HashMap<>();
+    private final Map<String, Handler[]> byVerb = new HashMap<>();
+    private long dispatched;
+    private long notUnderstood;
+
+    public MessageDispatcher(Agent agent) {
+        super(agent);
+    }
+
+    /**
+     * Routes messages of the conversation with the performative to handler.
+     */
+    public void register(String conversationId, int performative, Handler handler) {
+        byConversation.computeIfAbsent(conversationId, c -> new Handler[PERFORMATIVES + 1])[performative] = handler;
+    }
+
+    /**
+     * Routes every message of the conversation to handler, unless a
+     * handler is registered for its performative.
+     */
+    public void register(String conversationId, Handler handler) {
+        byConversation.computeIfAbsent(conversationId, c -> new Handler[PERFORMATIVES + 1])[ANY] = handler;
+    }
+
+    /**
+     * Routes messages with the performative and content verb to handler.
+     */
+    public void registerVerb(int performative, String verb, Handler handler) {
+        byVerb.computeIfAbsent(verb, v -> new Handler[PERFORMATIVES + 1])[performative] = handler;
+    }
+
+    public void unregister(String conversationId) {
+        byConversation.remove(conversationId);
+    }
+
+    public void action() {
+        // Only what is queued now, so ticker behaviours get their turn under load
+        int queued = myAgent.getCurQueueSize();
+        ACLMessage msg;
+        int n = 0;
+        while (n < Math.max(queued, 1) && (msg = myAgent.receive()) != null) {
+            dispatch(msg);
+            n++;
+        }
+        if (n == 0) {
+            block();
+        }
+    }
+
+    /**
+     * Hands the message to its handler, or answers NOT_UNDERSTOOD.
+     */
+    public void dispatch(ACLMessage msg) {
+        Handler handler = find(msg);
+        if (handler != null) {
+            dispatched++;
+            handler.handle(msg);
+            return;
+        }
+
+        notUnderstood++;
+        int performative = msg.getPerformative();
+        if (performative == ACLMessage.NOT_UNDERSTOOD || performative == ACLMessage.FAILURE || msg.getSender() == null) {
+            return;
+        }
+        ACLMessage reply = msg.createReply();
+        reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+        reply.setContent("Unexpected " + ACLMessage.getPerformative(performative)
+                + (msg.getConversationId() != null ? " in conversation " + msg.getConversationId() : ""));
+        myAgent.send(reply);
+    }
+
+    private Handler find(ACLMessage msg) {
+        int performative = msg.getPerformative();
+        if (performative < 0 || performative >= PERFORMATIVES) {
+            return null;
+        }
+        String conversationId = msg.getConversationId();
+        if (conversationId != null) {
+            Handler[] handlers = byConversation.get(conversationId);
+            if (handlers != null) {
+                Handler handler = handlers[performative];
+                return handler != null ? handler : handlers[ANY];
+            }
+        }
+        if (byVerb.isEmpty() || msg.hasByteSequenceContent()) {
+            return null;
+        }
+        String content = msg.getContent();
+        if (content == null) {
+            return null;
+        }
+        int colon = content.indexOf(':');
+        Handler[] handlers = byVerb.get(colon < 0 ? content : content.substring(0, colon));
+        return handlers != null ? handlers[performative] : null;
+    }
+
+    public long getDispatched() {
+        return dispatched;
+    }
+
+    public long getNotUnderstood() {
+        return notUnderstood;
+    }
+}
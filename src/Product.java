@@ -8,6 +8,8 @@ public class Product implements Serializable {
     private int quantity;
     private int threshold;
     private double price;
+    // Inventory version (log sequence number) of the last change to this product
+    private transient long version;
     
     public Product(String productId, String name, int quantity, int threshold, double price) {
         this.productId = productId;
@@ -41,10 +43,29 @@ public class Product implements Serializable {
         return price;
     }
     
+    public long getVersion() {
+        return version;
+    }
+    
+    public void setVersion(long version) {
+        this.version = version;
+    }
+    
     public boolean needsRestock() {
         return quantity < threshold;
     }
     
+    /**
+     * Appends this product in the catalog wire format: id,name,quantity,threshold,price|
+     */
+    public void appendRecord(StringBuilder sb) {
+        sb.append(productId).append(",");
+        sb.append(name).append(",");
+        sb.append(quantity).append(",");
+        sb.append(threshold).append(",");
+        sb.append(price).append("|");
+    }
+    
     @Override
     public String toString() {
         return String.format("Product[ID=%s, Name=%s, Quantity=%d, Threshold=%d, Price=%.2f]",
@@ -0,0 +1,394 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Product records kept in a memory-mapped file.
+ *
+ * Layout: a fixed header, an open-addressed id->slot index, an array of
+ * fixed-width product records and a region holding the product names.
+ * Opening the store is a single map() call, and quantity updates are
+ * written in place without allocating.
+ */
+public class ProductStore implements Closeable {
+    private static final int MAGIC = 0x49534D4C; // "ISML"
+    // Version 2 changed the index hash; version 1 stores are reindexed when opened
+    private static final int VERSION = 2;
+
+    // Header fields
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_COUNT = 12;
+    private static final int H_INDEX_CAPACITY = 16;
+    private static final int H_STRINGS_CAPACITY = 20;
+    private static final int H_STRINGS_USED = 24;
+    private static final int H_CHECKPOINT_SEQ = 32;
+    private static final int HEADER_SIZE = 64;
+
+    // Record fields: id length + id bytes, quantity, threshold, price, name offset, name length
+    public static final int MAX_ID_BYTES = 31;
+    private static final int R_ID = 0;
+    private static final int R_QUANTITY = 32;
+    private static final int R_THRESHOLD = 36;
+    private static final int R_PRICE = 40;
+    private static final int R_NAME_OFFSET = 48;
+    private static final int R_NAME_LENGTH = 52;
+    private static final int RECORD_SIZE = 56;
+
+    private static final int AVERAGE_NAME_BYTES = 64;
+
+    // Granularity in which the OS writes back a mapped file
+    private static final int PAGE_SIZE = 4096;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final int indexCapacity;
+    private final int stringsCapacity;
+    private final int indexStart;
+    private final int recordsStart;
+    private final int stringsStart;
+    // Pages changed since the last checkpoint
+    private final BitSet dirtyPages = new BitSet();
+
+    private ProductStore(FileChannel channel, MappedByteBuffer map) throws IOException {
+        this.channel = channel;
+        this.map = map;
+        int version = map.getInt(H_VERSION);
+        if (map.getInt(H_MAGIC) != MAGIC || (version != VERSION && version != 1)) {
+            throw new IOException("Not a product store file");
+        }
+        this.capacity = map.getInt(H_CAPACITY);
+        this.indexCapacity = map.getInt(H_INDEX_CAPACITY);
+        this.stringsCapacity = map.getInt(H_STRINGS_CAPACITY);
+        this.indexStart = HEADER_SIZE;
+        this.recordsStart = indexStart + indexCapacity * 4;
+        this.stringsStart = recordsStart + capacity * RECORD_SIZE;
+        if (version != VERSION) {
+            reindex();
+        }
+    }
+
+    /**
+     * Rebuilds the id->slot index with the current hash, for a store
+     * written by an older version.
+     */
+    private void reindex() {
+        for (int bucket = 0; bucket < indexCapacity; bucket++) {
+            map.putInt(indexStart + bucket * 4, 0);
+        }
+        for (int slot = 0; slot < size(); slot++) {
+            insertIndex(getProductId(slot), slot);
+        }
+        // The index is on disk before the header says it uses the new hash
+        map.force();
+        map.putInt(H_VERSION, VERSION);
+        map.force();
+    }
+
+    private void insertIndex(String productId, int slot) {
+        int bucket = bucketFor(productId);
+        while (map.getInt(indexStart + bucket * 4) != 0) {
+            bucket = (bucket + 1) & (indexCapacity - 1);
+        }
+        map.putInt(indexStart + bucket * 4, slot + 1);
+        markDirty(indexStart + bucket * 4, 4);
+    }
+
+    /**
+     * Creates an empty store able to hold capacity products.
+     */
+    public static ProductStore create(String fileName, int capacity) throws IOException {
+        int indexCapacity = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+        long stringsCapacity = (long) capacity * AVERAGE_NAME_BYTES;
+        long size = HEADER_SIZE + (long) indexCapacity * 4 + (long) capacity * RECORD_SIZE + stringsCapacity;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Product store too large for a single mapping: " + capacity + " products");
+        }
+
+        Path path = Paths.get(fileName);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.putInt(H_MAGIC, MAGIC);
+        map.putInt(H_VERSION, VERSION);
+        map.putInt(H_CAPACITY, capacity);
+        map.putInt(H_COUNT, 0);
+        map.putInt(H_INDEX_CAPACITY, indexCapacity);
+        map.putInt(H_STRINGS_CAPACITY, (int) stringsCapacity);
+        map.putInt(H_STRINGS_USED, 0);
+        map.putLong(H_CHECKPOINT_SEQ, 0);
+        return new ProductStore(channel, map);
+    }
+
+    /**
+     * Maps an existing store file.
+     */
+    public static ProductStore open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            return new ProductStore(channel, map);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a product and returns its slot.
+     */
+    public int add(String productId, String name, int quantity, int threshold, double price) {
+        byte[] id = productId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Product id longer than " + MAX_ID_BYTES + " bytes: " + productId);
+        }
+        if (findSlot(productId) >= 0) {
+            throw new IllegalArgumentException("Duplicate product id: " + productId);
+        }
+        int count = size();
+        if (count >= capacity) {
+            throw new IllegalStateException("Product store is full (" + capacity + " products)");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int stringsUsed = map.getInt(H_STRINGS_USED);
+        if (stringsUsed + nameBytes.length > stringsCapacity) {
+            throw new IllegalStateException("Product store name region is full");
+        }
+
+        int slot = count;
+        int base = recordOffset(slot);
+        map.put(base + R_ID, (byte) id.length);
+        for (int i = 0; i < id.length; i++) {
+            map.put(base + R_ID + 1 + i, id[i]);
+        }
+        map.putInt(base + R_QUANTITY, quantity);
+        map.putInt(base + R_THRESHOLD, threshold);
+        map.putDouble(base + R_PRICE, price);
+        map.putInt(base + R_NAME_OFFSET, stringsUsed);
+        map.putInt(base + R_NAME_LENGTH, nameBytes.length);
+        for (int i = 0; i < nameBytes.length; i++) {
+            map.put(stringsStart + stringsUsed + i, nameBytes[i]);
+        }
+        map.putInt(H_STRINGS_USED, stringsUsed + nameBytes.length);
+        markDirty(base, RECORD_SIZE);
+        markDirty(stringsStart + stringsUsed, nameBytes.length);
+
+        insertIndex(productId, slot);
+        map.putInt(H_COUNT, count + 1);
+        return slot;
+    }
+
+    /**
+     * Looks up the slot of a product id in the on-disk index, or -1.
+     */
+    public int findSlot(String productId) {
+        int bucket = bucketFor(productId);
+        while (true) {
+            int entry = map.getInt(indexStart + bucket * 4);
+            if (entry == 0) {
+                return -1;
+            }
+            if (idEquals(entry - 1, productId)) {
+                return entry - 1;
+            }
+            bucket = (bucket + 1) & (indexCapacity - 1);
+        }
+    }
+
+    public int size() {
+        return map.getInt(H_COUNT);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Whether products more products with nameBytes bytes of names (UTF-8)
+     * in all can still be added.
+     */
+    public boolean fits(int products, long nameBytes) {
+        return size() + products <= capacity && map.getInt(H_STRINGS_USED) + nameBytes <= stringsCapacity;
+    }
+
+    /**
+     * Copies this store into a new store file that can hold capacity
+     * products, and names of nameBytes bytes in all if that is more than
+     * the capacity's share. Products keep their slots and the checkpoint
+     * its sequence number; the copy is forced to disk.
+     */
+    public ProductStore copyTo(String fileName, int capacity, long nameBytes) throws IOException {
+        if (capacity < size()) {
+            throw new IllegalArgumentException("Capacity " + capacity + " below " + size() + " products");
+        }
+        long names = Math.max(nameBytes, map.getInt(H_STRINGS_USED));
+        int grown = (int) Math.min(Integer.MAX_VALUE, Math.max(capacity, (names + AVERAGE_NAME_BYTES - 1) / AVERAGE_NAME_BYTES));
+        ProductStore copy = create(fileName, grown);
+        try {
+            for (int slot = 0; slot < size(); slot++) {
+                copy.add(getProductId(slot), getName(slot), getQuantity(slot), getThreshold(slot), getPrice(slot));
+            }
+            copy.checkpoint(getCheckpointSeq());
+            return copy;
+        } catch (RuntimeException e) {
+            copy.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Bytes of names (UTF-8) the store holds.
+     */
+    public long getNameBytes() {
+        return map.getInt(H_STRINGS_USED);
+    }
+
+    public String getProductId(int slot) {
+        int base = recordOffset(slot);
+        byte[] id = new byte[map.get(base + R_ID)];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = map.get(base + R_ID + 1 + i);
+        }
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    public String getName(int slot) {
+        int base = recordOffset(slot);
+        int offset = map.getInt(base + R_NAME_OFFSET);
+        byte[] name = new byte[map.getInt(base + R_NAME_LENGTH)];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = map.get(stringsStart + offset + i);
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    public int getQuantity(int slot) {
+        return map.getInt(recordOffset(slot) + R_QUANTITY);
+    }
+
+    public void setQuantity(int slot, int quantity) {
+        int offset = recordOffset(slot) + R_QUANTITY;
+        map.putInt(offset, quantity);
+        dirtyPages.set(offset / PAGE_SIZE);
+    }
+
+    public int getThreshold(int slot) {
+        return map.getInt(recordOffset(slot) + R_THRESHOLD);
+    }
+
+    public double getPrice(int slot) {
+        return map.getDouble(recordOffset(slot) + R_PRICE);
+    }
+
+    /**
+     * Sequence number of the last log record reflected in this store.
+     */
+    public long getCheckpointSeq() {
+        return map.getLong(H_CHECKPOINT_SEQ);
+    }
+
+    /**
+     * Makes the current records durable and then stamps them with seq.
+     * Records are forced before the header, so a crash never leaves a
+     * checkpoint that claims changes the records do not hold yet.
+     * Returns the number of bytes in the pages written back, counting the
+     * header page.
+     */
+    public long checkpoint(long seq) {
+        force(seq);
+        return takeDirtyBytes();
+    }
+
+    /**
+     * The durable part of checkpoint(), for a checkpoint written by another
+     * thread while the owner goes on changing records. Changes made
+     * meanwhile may be written too; they are in log records after seq, and
+     * replaying those sets the same quantities again.
+     */
+    public void force(long seq) {
+        map.force();
+        map.putLong(H_CHECKPOINT_SEQ, seq);
+        map.force();
+    }
+
+    /**
+     * Bytes in the pages changed since the last call, counting the header
+     * page, for the checkpoint about to be written. Owner thread only.
+     */
+    public long takeDirtyBytes() {
+        dirtyPages.set(0);
+        long written = (long) dirtyPages.cardinality() * PAGE_SIZE;
+        dirtyPages.clear();
+        return written;
+    }
+
+    private void markDirty(int offset, int length) {
+        if (length > 0) {
+            dirtyPages.set(offset / PAGE_SIZE, (offset + length - 1) / PAGE_SIZE + 1);
+        }
+    }
+
+    private int recordOffset(int slot) {
+        return recordsStart + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Index bucket of a product id. Deliberately a different mix than
+     * ShardMap.bucketOf: with the same one, all ids of a shard would fall
+     * into the few buckets matching its hash range and probing would
+     * degrade to long runs.
+     */
+    private int bucketFor(String productId) {
+        // MurmurHash3 finalizer
+        int h = productId.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & (indexCapacity - 1);
+    }
+
+    private boolean idEquals(int slot, String productId) {
+        int base = recordOffset(slot);
+        int length = map.get(base + R_ID);
+        if (length != productId.length()) {
+            // Only ASCII ids can match on length alone; fall back for the rest
+            return !isAscii(productId) && getProductId(slot).equals(productId);
+        }
+        for (int i = 0; i < length; i++) {
+            char c = productId.charAt(i);
+            if (c >= 0x80) {
+                return getProductId(slot).equals(productId);
+            }
+            if (map.get(base + R_ID + 1 + i) != (byte) c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+}
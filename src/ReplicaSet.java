@@ -0,0 +1,145 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follower InventoryAgents of a leader and the change stream shipped to them.
+ *
+ * A follower subscribes and gets the whole catalog as a snapshot; after
+ * that the leader ships the products changed since the previous shipment,
+ * coalesced (only the latest state of each product is kept), whenever it
+ * commits its log. Every shipment names the version it continues from and
+ * the version of each product, so a follower keeps the same catalog
+ * versions and change journal as the leader and can serve the same
+ * GET_PRODUCTS_SINCE requests. An empty shipment goes out at least every
+ * heartbeat interval so followers can tell how stale they are.
+ *
+ * Protocol (conversation "inventory-replication", binary catalog pages):
+ *   SUBSCRIBE  follower -> leader                   -> INFORM snapshot ("snapshot" parameter)
+ *   INFORM     changed products, "from-version", "inventory-version" and
+ *              "product-versions" (comma separated, in page order)
+ *   CANCEL     ends the follower's stream
+ * A follower that sees a shipment starting after its own version has
+ * missed one and subscribes again.
+ */
+public class ReplicaSet {
+    public static final String CONVERSATION_ID = "inventory-replication";
+    // DF service property of a follower naming the leader it follows
+    public static final String PROP_LEADER = "leader";
+
+    private final Map<AID, ACLMessage> followers = new LinkedHashMap<>();
+    private final Map<String, Product> pending = new LinkedHashMap<>();
+    private final List<Product> page = new ArrayList<>();
+    private final StringBuilder versions = new StringBuilder();
+    private final long heartbeatMs;
+    private long shippedVersion;
+    private long lastShipped;
+    private long shipments;
+
+    public ReplicaSet(long heartbeatMs) {
+        this.heartbeatMs = heartbeatMs;
+    }
+
+    /**
+     * Registers (or restarts) the sender's stream and returns the snapshot
+     * of the catalog at version to reply with.
+     */
+    public ACLMessage subscribe(ACLMessage msg, Collection<Product> catalog, InventoryCodec codec, long version) {
+        followers.put(msg.getSender(), msg);
+        page.clear();
+        page.addAll(catalog);
+        ACLMessage snapshot = msg.createReply();
+        snapshot.setPerformative(ACLMessage.INFORM);
+        codec.writeCatalog(snapshot, page, true);
+        snapshot.addUserDefinedParameter("snapshot", "true");
+        snapshot.addUserDefinedParameter("inventory-version", String.valueOf(version));
+        System.out.println("[INVENTORY] " + msg.getSender().getName() + " follows this inventory from version "
+                + version + " (" + page.size() + " products)");
+        return snapshot;
+    }
+
+    public void cancel(AID follower) {
+        if (followers.remove(follower) != null) {
+            System.out.println("[INVENTORY] " + follower.getName() + " stopped following this inventory");
+        }
+    }
+
+    /**
+     * Queues a changed product for the next shipment.
+     */
+    public void changed(Product product) {
+        if (!followers.isEmpty()) {
+            pending.put(product.getProductId(), product);
+        }
+    }
+
+    /**
+     * Ships the pending changes, up to version, to every follower, or an
+     * empty heartbeat if nothing changed for heartbeatMs. Returns true if
+     * anything was sent.
+     */
+    public boolean flush(Agent agent, InventoryCodec codec, long version) {
+        long now = System.currentTimeMillis();
+        if (followers.isEmpty() || (pending.isEmpty() && now - lastShipped < heartbeatMs)) {
+            return false;
+        }
+
+        page.clear();
+        page.addAll(pending.values());
+        pending.clear();
+        versions.setLength(0);
+        for (int i = 0; i < page.size(); i++) {
+            if (i > 0) {
+                versions.append(',');
+            }
+            versions.append(page.get(i).getVersion());
+        }
+
+        ACLMessage shipment = new ACLMessage(ACLMessage.INFORM);
+        for (AID follower : followers.keySet()) {
+            shipment.addReceiver(follower);
+        }
+        shipment.setConversationId(CONVERSATION_ID);
+        codec.writeCatalog(shipment, page, true);
+        shipment.addUserDefinedParameter("from-version", String.valueOf(shippedVersion));
+        shipment.addUserDefinedParameter("inventory-version", String.valueOf(version));
+        shipment.addUserDefinedParameter("product-versions", versions.toString());
+        agent.send(shipment);
+
+        shippedVersion = version;
+        lastShipped = now;
+        shipments++;
+        return true;
+    }
+
+    /**
+     * Name of the leader a follower's DF service description names, or null.
+     */
+    public static String leaderOf(ServiceDescription sd) {
+        Iterator<?> props = sd.getAllProperties();
+        while (props.hasNext()) {
+            Property p = (Property) props.next();
+            if (PROP_LEADER.equals(p.getName())) {
+                return String.valueOf(p.getValue());
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return followers.size();
+    }
+
+    public long getShipments() {
+        return shipments;
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Restock requests of an InventoryAgent, at most one outstanding per product.
+ *
+ * Products that drop below their threshold are queued as pending and sent
+ * out together, as one RESTOCK_BATCH, once the oldest has waited for the
+ * coalescing window. Sent products stay in flight until the supplier
+ * confirms them (RESTOCKED / RESTOCKED_BATCH, correlated through
+ * in-reply-to). If no supplier takes the batch, or the one that did misses
+ * its deadline, the products go back to pending and are sourced again.
+ * Requests for a product that is already pending or in flight are dropped.
+ */
+public class RestockTracker {
+    public static final String CONVERSATION_ID = "restock-request";
+
+    private static class InFlight {
+        final String requestId;
+        final int quantity;
+        long deadline;
+
+        InFlight(String requestId, int quantity, long deadline) {
+            this.requestId = requestId;
+            this.quantity = quantity;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Map<String, Integer> pending = new LinkedHashMap<>();
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+    // System.nanoTime() of the request each outstanding restock started with
+    private final Map<String, Long> requestedAt = new HashMap<>();
+    private long oldestPending;
+    private long requested;
+    private long coalesced;
+    private long batchesSent;
+
+    /**
+     * Queues a restock of the product. Returns false if one is already
+     * pending or in flight.
+     */
+    public boolean request(String productId, int quantity) {
+        if (pending.containsKey(productId) || inFlight.containsKey(productId)) {
+            coalesced++;
+            return false;
+        }
+        if (pending.isEmpty()) {
+            oldestPending = System.currentTimeMillis();
+        }
+        pending.put(productId, quantity);
+        requestedAt.put(productId, System.nanoTime());
+        requested++;
+        return true;
+    }
+
+    /**
+     * Whether the pending requests have waited for the coalescing window.
+     */
+    public boolean isDue(long windowMs) {
+        return !pending.isEmpty() && System.currentTimeMillis() - oldestPending >= windowMs;
+    }
+
+    /**
+     * Requests waiting to be sent, in the order they were queued.
+     */
+    public Map<String, Integer> getPending() {
+        return pending;
+    }
+
+    /**
+     * Moves every pending request in flight under the given request id
+     * (the reply-with of the RESTOCK_BATCH that carried them), to be
+     * answered by the deadline.
+     */
+    public void sent(String requestId, long deadline) {
+        for (Map.Entry<String, Integer> e : pending.entrySet()) {
+            inFlight.put(e.getKey(), new InFlight(requestId, e.getValue(), deadline));
+        }
+        pending.clear();
+        batchesSent++;
+    }
+
+    /**
+     * Moves the deadline of every product still in flight under requestId,
+     * e.g. once a supplier has promised a lead time.
+     */
+    public void setDeadline(String requestId, long deadline) {
+        for (InFlight f : inFlight.values()) {
+            if (f.requestId.equals(requestId)) {
+                f.deadline = deadline;
+            }
+        }
+    }
+
+    /**
+     * Clears the in-flight entry a confirmation answers. Returns false for
+     * a confirmation that matches no outstanding request (e.g. one that
+     * arrives after its request timed out).
+     */
+    public boolean confirmed(String productId, String requestId) {
+        InFlight f = inFlight.get(productId);
+        if (f == null || (requestId != null && !requestId.equals(f.requestId))) {
+            return false;
+        }
+        inFlight.remove(productId);
+        requestedAt.remove(productId);
+        return true;
+    }
+
+    /**
+     * System.nanoTime() at which the outstanding restock of the product was
+     * first requested (retries keep it), or -1 if none is outstanding.
+     */
+    public long getRequestedAt(String productId) {
+        Long t = requestedAt.get(productId);
+        return t == null ? -1 : t;
+    }
+
+    /**
+     * Whether any product is still in flight under requestId.
+     */
+    public boolean isOutstanding(String requestId) {
+        for (InFlight f : inFlight.values()) {
+            if (f.requestId.equals(requestId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts the products still in flight under requestId back to pending.
+     * Returns the number of products requeued.
+     */
+    public int requeue(String requestId) {
+        int requeued = 0;
+        Iterator<Map.Entry<String, InFlight>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, InFlight> e = it.next();
+            if (e.getValue().requestId.equals(requestId)) {
+                addPending(e.getKey(), e.getValue().quantity);
+                it.remove();
+                requeued++;
+            }
+        }
+        return requeued;
+    }
+
+    /**
+     * Puts products whose deadline has passed back to pending and adds the
+     * ids of the requests that missed it to expired. Returns the number of
+     * products requeued.
+     */
+    public int expire(Set<String> expired) {
+        long now = System.currentTimeMillis();
+        int requeued = 0;
+        Iterator<Map.Entry<String, InFlight>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, InFlight> e = it.next();
+            if (now >= e.getValue().deadline) {
+                expired.add(e.getValue().requestId);
+                addPending(e.getKey(), e.getValue().quantity);
+                it.remove();
+                requeued++;
+            }
+        }
+        return requeued;
+    }
+
+    private void addPending(String productId, int quantity) {
+        if (pending.isEmpty()) {
+            oldestPending = System.currentTimeMillis();
+        }
+        pending.put(productId, quantity);
+    }
+
+    public boolean isInFlight(String productId) {
+        return inFlight.containsKey(productId);
+    }
+
+    /**
+     * Units requested for the product and not yet confirmed, 0 if none.
+     */
+    public int getInFlightQuantity(String productId) {
+        InFlight f = inFlight.get(productId);
+        return f == null ? 0 : f.quantity;
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getRequested() {
+        return requested;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getBatchesSent() {
+        return batchesSent;
+    }
+
+    @Override
+    public String toString() {
+        return "requested=" + requested + " coalesced=" + coalesced + " batches=" + batchesSent
+                + " inFlight=" + inFlight.size() + " pending=" + pending.size();
+    }
+}
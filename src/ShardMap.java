@@ -0,0 +1,167 @@
+import jade.core.AID;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hash partitioning of product ids across InventoryAgent shards.
+ *
+ * The id space is split into HASH_RANGE buckets and every shard owns a
+ * contiguous range of them, which it advertises in the properties of its
+ * DF service description. Clients build a ShardMap from a DF search and
+ * use it to route each request to the owning shard.
+ */
+public class ShardMap {
+    public static final int HASH_RANGE = 1 << 16;
+
+    public static final String PROP_SHARD_INDEX = "shard-index";
+    public static final String PROP_SHARD_COUNT = "shard-count";
+    public static final String PROP_RANGE_START = "shard-range-start";
+    public static final String PROP_RANGE_END = "shard-range-end";
+
+    // Sorted by range start
+    private final List<int[]> ranges = new ArrayList<>();
+    private final List<AID> owners = new ArrayList<>();
+
+    /**
+     * Bucket of a product id. String.hashCode() is specified by the JLS,
+     * so every agent computes the same bucket.
+     */
+    public static int bucketOf(String productId) {
+        int h = productId.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (HASH_RANGE - 1);
+    }
+
+    public static int rangeStart(int shardIndex, int shardCount) {
+        return (int) ((long) HASH_RANGE * shardIndex / shardCount);
+    }
+
+    public static int rangeEnd(int shardIndex, int shardCount) {
+        return (int) ((long) HASH_RANGE * (shardIndex + 1) / shardCount);
+    }
+
+    /**
+     * Whether a shard with the given range owns the product.
+     */
+    public static boolean owns(int rangeStart, int rangeEnd, String productId) {
+        int bucket = bucketOf(productId);
+        return bucket >= rangeStart && bucket < rangeEnd;
+    }
+
+    /**
+     * Adds the shard range properties to an inventory service description.
+     */
+    public static void describe(ServiceDescription sd, int shardIndex, int shardCount) {
+        sd.addProperties(new Property(PROP_SHARD_INDEX, String.valueOf(shardIndex)));
+        sd.addProperties(new Property(PROP_SHARD_COUNT, String.valueOf(shardCount)));
+        sd.addProperties(new Property(PROP_RANGE_START, String.valueOf(rangeStart(shardIndex, shardCount))));
+        sd.addProperties(new Property(PROP_RANGE_END, String.valueOf(rangeEnd(shardIndex, shardCount))));
+    }
+
+    /**
+     * Shard index advertised in a service description, 0 if it has none.
+     */
+    public static int shardIndexOf(ServiceDescription sd) {
+        Iterator<?> props = sd.getAllProperties();
+        while (props.hasNext()) {
+            Property p = (Property) props.next();
+            if (PROP_SHARD_INDEX.equals(p.getName())) {
+                return Integer.parseInt(String.valueOf(p.getValue()));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Builds the routing table from inventory DF search results. Agents
+     * registered without shard properties own the whole range.
+     */
+    public static ShardMap fromSearch(DFAgentDescription[] result, String serviceType) {
+        ShardMap map = new ShardMap();
+        for (DFAgentDescription dfd : result) {
+            Iterator<?> services = dfd.getAllServices();
+            while (services.hasNext()) {
+                ServiceDescription sd = (ServiceDescription) services.next();
+                if (!serviceType.equals(sd.getType())) {
+                    continue;
+                }
+                int start = 0;
+                int end = HASH_RANGE;
+                Iterator<?> props = sd.getAllProperties();
+                while (props.hasNext()) {
+                    Property p = (Property) props.next();
+                    if (PROP_RANGE_START.equals(p.getName())) {
+                        start = Integer.parseInt(String.valueOf(p.getValue()));
+                    } else if (PROP_RANGE_END.equals(p.getName())) {
+                        end = Integer.parseInt(String.valueOf(p.getValue()));
+                    }
+                }
+                map.add(start, end, dfd.getName());
+            }
+        }
+        return map;
+    }
+
+    private void add(int start, int end, AID owner) {
+        int i = 0;
+        while (i < ranges.size() && ranges.get(i)[0] < start) {
+            i++;
+        }
+        ranges.add(i, new int[] {start, end});
+        owners.add(i, owner);
+    }
+
+    /**
+     * Shard owning the product, or null if no known shard covers its bucket.
+     */
+    public AID ownerOf(String productId) {
+        int bucket = bucketOf(productId);
+        int lo = 0;
+        int hi = ranges.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int[] range = ranges.get(mid);
+            if (bucket < range[0]) {
+                hi = mid - 1;
+            } else if (bucket >= range[1]) {
+                lo = mid + 1;
+            } else {
+                return owners.get(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Every known shard, in range order.
+     */
+    public List<AID> getShards() {
+        return owners;
+    }
+
+    public int size() {
+        return owners.size();
+    }
+
+    public boolean isEmpty() {
+        return owners.isEmpty();
+    }
+
+    /**
+     * Whether the known shards cover the whole hash range without gaps.
+     */
+    public boolean isComplete() {
+        int covered = 0;
+        for (int[] range : ranges) {
+            if (range[0] > covered) {
+                return false;
+            }
+            covered = Math.max(covered, range[1]);
+        }
+        return covered >= HASH_RANGE;
+    }
+}
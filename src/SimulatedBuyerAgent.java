@@ -0,0 +1,172 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.*;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A headless buyer created by LoadGeneratorAgent. Sends PURCHASE requests
+ * as the run's Workload dictates, measures each one from the moment it was
+ * due to its reply, and hands its results to the run when it is done.
+ *
+ * Agent arguments: the LoadGeneratorAgent.Run and the buyer's index.
+ */
+public class SimulatedBuyerAgent extends Agent {
+    private LoadGeneratorAgent.Run run;
+    private Random random;
+    private final InventoryCodec codec = new InventoryCodec(256);
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LoadGeneratorAgent.Counts counts = new LoadGeneratorAgent.Counts();
+    private CongestionWindow window;
+
+    protected void setup() {
+        Object[] args = getArguments();
+        run = (LoadGeneratorAgent.Run) args[0];
+        random = new Random(run.seed + (Integer) args[1]);
+        if (run.adaptive) {
+            // Its own random, so backing off does not change the workload's sequence
+            window = new CongestionWindow(run.maxOutstanding, run.maxOutstanding, new Random(run.seed - (Integer) args[1]));
+        }
+        addBehaviour(new PurchaseLoop());
+    }
+
+    /**
+     * Open loop: sends every arrival when it is due, however many requests
+     * are still waiting for a reply (up to maxOutstanding; arrivals beyond
+     * that are counted as dropped). Latency is measured from the due time,
+     * so a slow inventory cannot hide its queueing delay by slowing the
+     * buyer down.
+     * Closed loop: one request at a time, the next one think time after the
+     * reply.
+     * With load.adaptive (the default) the limit on outstanding requests
+     * is a CongestionWindow of at most maxOutstanding: it halves on a
+     * refusal or timeout, and after a refusal nothing is sent until its
+     * retry time has passed. Open-loop arrivals the window holds back are
+     * counted as dropped, so the run still reports all the demand it
+     * offered.
+     */
+    private class PurchaseLoop extends CyclicBehaviour {
+        private final MessageTemplate mt = MessageTemplate.MatchConversationId("purchase-request");
+        // reply-with -> time the request was due (nanos), oldest first
+        private final Map<String, Long> outstanding = new LinkedHashMap<>();
+        private long nextArrival = System.nanoTime();
+        private long sequence;
+
+        public void onStart() {
+            if (run.workload.isOpenLoop()) {
+                nextArrival += run.workload.nextInterarrivalNanos(random);
+            }
+        }
+
+        public void action() {
+            ACLMessage reply;
+            while ((reply = myAgent.receive(mt)) != null) {
+                Long dueAt = outstanding.remove(reply.getInReplyTo());
+                if (dueAt == null) {
+                    // Already counted as timed out
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (dueAt >= run.measureFrom) {
+                    latency.record((now - dueAt) / 1000);
+                    counts.completed(reply);
+                }
+                if (window != null) {
+                    long retryAfterMs = AdmissionControl.retryAfterMs(reply);
+                    if (retryAfterMs >= 0) {
+                        window.onRefused(dueAt, now, retryAfterMs);
+                    } else {
+                        window.onReply();
+                    }
+                }
+                if (!run.workload.isOpenLoop()) {
+                    nextArrival = now + run.workload.getThinkTimeMs() * 1_000_000L
+                            + (window != null ? window.pauseNanos(now) : 0);
+                }
+            }
+
+            long now = System.nanoTime();
+            expireTimedOut(now);
+
+            if (now >= run.stopAt) {
+                if (outstanding.isEmpty()) {
+                    run.finished(myAgent, latency, counts);
+                    myAgent.doDelete();
+                } else {
+                    long oldestDue = outstanding.values().iterator().next();
+                    block(Math.max(1, (oldestDue + run.timeoutNanos - now) / 1_000_000L));
+                }
+                return;
+            }
+
+            if (run.workload.isOpenLoop()) {
+                while (nextArrival <= now && nextArrival < run.stopAt) {
+                    if (mayRequest(now)) {
+                        send(nextArrival);
+                    } else if (nextArrival >= run.measureFrom) {
+                        counts.dropped++;
+                    }
+                    nextArrival += run.workload.nextInterarrivalNanos(random);
+                }
+            } else if (outstanding.isEmpty() && nextArrival <= now) {
+                send(now);
+                nextArrival = Long.MAX_VALUE;
+            }
+
+            long wakeAt = Math.min(nextArrival, run.stopAt);
+            if (!outstanding.isEmpty()) {
+                wakeAt = Math.min(wakeAt, outstanding.values().iterator().next() + run.timeoutNanos);
+            }
+            block(Math.max(1, (wakeAt - System.nanoTime()) / 1_000_000L));
+        }
+
+        private boolean mayRequest(long now) {
+            return window != null ? window.allows(outstanding.size(), now) : outstanding.size() < run.maxOutstanding;
+        }
+
+        private void send(long dueAt) {
+            String productId = run.workload.nextProduct(random);
+            AID shard = run.shards.ownerOf(productId);
+            if (shard == null) {
+                return;
+            }
+            String requestId = myAgent.getLocalName() + "-" + (++sequence);
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.addReceiver(shard);
+            codec.writeItem(request, InventoryCodec.PURCHASE, productId, run.workload.nextQuantity(random),
+                    InventoryCodec.PREFER_BINARY);
+            request.setConversationId("purchase-request");
+            request.setReplyWith(requestId);
+            myAgent.send(request);
+            outstanding.put(requestId, dueAt);
+            if (dueAt >= run.measureFrom) {
+                counts.sent++;
+            }
+        }
+
+        private void expireTimedOut(long now) {
+            Iterator<Map.Entry<String, Long>> it = outstanding.entrySet().iterator();
+            while (it.hasNext()) {
+                long dueAt = it.next().getValue();
+                if (now - dueAt < run.timeoutNanos) {
+                    break;
+                }
+                it.remove();
+                if (dueAt >= run.measureFrom) {
+                    counts.timedOut++;
+                }
+                if (window != null) {
+                    window.onTimeout(dueAt, now);
+                }
+                if (!run.workload.isOpenLoop()) {
+                    nextArrival = now;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Concurrent stock levels of an InventoryAgent's products.
+ *
+ * Quantities live in an AtomicIntegerArray indexed by ProductStore slot
+ * (ids are looked up with ProductStore.findSlot) and change only by
+ * compare-and-set, so any number of threads can buy at once without locks
+ * or boxing; purchases only retry when they race on the same product.
+ */
+public class StockIndex {
+    private final AtomicIntegerArray quantities;
+
+    /**
+     * An index for products in slots 0 .. capacity-1.
+     */
+    public StockIndex(int capacity) {
+        quantities = new AtomicIntegerArray(Math.max(1, capacity));
+    }
+
+    public void set(int slot, int quantity) {
+        quantities.set(slot, quantity);
+    }
+
+    public int getQuantity(int slot) {
+        return quantities.get(slot);
+    }
+
+    /**
+     * Takes quantity units if at least that many are in stock. Returns the
+     * stock left afterwards, or -1 (and takes nothing) if there were not
+     * enough or quantity is not positive.
+     */
+    public int tryTake(int slot, int quantity) {
+        if (quantity <= 0) {
+            return -1;
+        }
+        while (true) {
+            int current = quantities.get(slot);
+            if (current < quantity) {
+                return -1;
+            }
+            if (quantities.compareAndSet(slot, current, current - quantity)) {
+                return current - quantity;
+            }
+        }
+    }
+
+    /**
+     * Adds units (a restock, or the undo of a tryTake) and returns the new stock.
+     */
+    public int add(int slot, int quantity) {
+        return quantities.addAndGet(slot, quantity);
+    }
+}
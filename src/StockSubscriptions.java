@@ -0,0 +1,149 @@
+import jade.core.AID;
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * FIPA-subscribe style stock change subscriptions held by an InventoryAgent.
+ *
+ * A subscriber registers for all products or a list of product ids. Changes
+ * are coalesced per subscriber (only the latest state of each product is
+ * kept) and pushed as one INFORM at most every min-interval-ms, so message
+ * volume per subscriber is bounded no matter how many orders come in.
+ *
+ * Protocol (conversation "stock-updates"):
+ *   SUBSCRIBE  "ALL" or "id1,id2,..."  [min-interval-ms parameter]  -> AGREE / REFUSE
+ *   INFORM     catalog page in the subscriber's encoding (inventory-version parameter)
+ *   CANCEL     ends the subscription
+ */
+public class StockSubscriptions {
+    public static final String CONVERSATION_ID = "stock-updates";
+
+    private static class Subscription {
+        final ACLMessage subscribe;
+        final Set<String> filter;
+        final long minIntervalMs;
+        final Map<String, Product> pending = new LinkedHashMap<>();
+        long lastSent;
+
+        Subscription(ACLMessage subscribe, Set<String> filter, long minIntervalMs) {
+            this.subscribe = subscribe;
+            this.filter = filter;
+            this.minIntervalMs = minIntervalMs;
+        }
+    }
+
+    private final Map<AID, Subscription> subscriptions = new HashMap<>();
+    private final List<Product> page = new ArrayList<>();
+    private final long defaultMinIntervalMs;
+    private long notificationsSent;
+
+    public StockSubscriptions(long defaultMinIntervalMs) {
+        this.defaultMinIntervalMs = defaultMinIntervalMs;
+    }
+
+    /**
+     * Registers (or replaces) the sender's subscription and returns the reply.
+     */
+    public ACLMessage subscribe(ACLMessage msg) {
+        ACLMessage reply = msg.createReply();
+        String content = msg.getContent();
+        if (content == null || content.isEmpty()) {
+            reply.setPerformative(ACLMessage.REFUSE);
+            reply.setContent("Empty subscription filter");
+            return reply;
+        }
+
+        Set<String> filter = null;
+        if (!content.equals("ALL")) {
+            filter = new HashSet<>();
+            for (String id : content.split(",")) {
+                if (!id.isEmpty()) {
+                    filter.add(id);
+                }
+            }
+        }
+
+        long minIntervalMs = defaultMinIntervalMs;
+        String interval = msg.getUserDefinedParameter("min-interval-ms");
+        if (interval != null) {
+            try {
+                minIntervalMs = Math.max(defaultMinIntervalMs, Long.parseLong(interval));
+            } catch (NumberFormatException e) {
+                // Keep the default rate limit
+            }
+        }
+
+        subscriptions.put(msg.getSender(), new Subscription(msg, filter, minIntervalMs));
+        reply.setPerformative(ACLMessage.AGREE);
+        reply.setContent(content);
+        System.out.println("[INVENTORY] " + msg.getSender().getName() + " subscribed to stock updates ("
+                + (filter == null ? "all products" : filter.size() + " products") + ")");
+        return reply;
+    }
+
+    public void cancel(AID subscriber) {
+        if (subscriptions.remove(subscriber) != null) {
+            System.out.println("[INVENTORY] " + subscriber.getName() + " cancelled stock updates");
+        }
+    }
+
+    /**
+     * Queues a changed product for every subscriber interested in it.
+     */
+    public void changed(Product product) {
+        for (Subscription s : subscriptions.values()) {
+            if (s.filter == null || s.filter.contains(product.getProductId())) {
+                s.pending.put(product.getProductId(), product);
+            }
+        }
+    }
+
+    /**
+     * Sends one coalesced notification to every subscriber that has pending
+     * changes and whose rate limit allows it. Returns the number sent.
+     */
+    public int flush(Agent agent, InventoryCodec codec, long version) {
+        long now = System.currentTimeMillis();
+        int sent = 0;
+        for (Subscription s : subscriptions.values()) {
+            if (s.pending.isEmpty() || now - s.lastSent < s.minIntervalMs) {
+                continue;
+            }
+
+            page.clear();
+            page.addAll(s.pending.values());
+            s.pending.clear();
+
+            // Notifications use the encoding the subscriber subscribed with
+            ACLMessage notification = s.subscribe.createReply();
+            notification.setPerformative(ACLMessage.INFORM);
+            codec.writeCatalog(notification, page, InventoryCodec.isBinary(s.subscribe));
+            notification.addUserDefinedParameter("inventory-version", String.valueOf(version));
+            agent.send(notification);
+            s.lastSent = now;
+            sent++;
+        }
+        notificationsSent += sent;
+        return sent;
+    }
+
+    public boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    public int size() {
+        return subscriptions.size();
+    }
+
+    public long getNotificationsSent() {
+        return notificationsSent;
+    }
+}
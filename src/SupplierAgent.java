@@ -7,10 +7,60 @@ import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class SupplierAgent extends Agent {
+    private final InventoryCodec codec = new InventoryCodec(256);
+    private final InventoryCodec.Reader reader = new InventoryCodec.Reader();
+    private final InventoryCodec.Item item = new InventoryCodec.Item();
+    private final InventoryCodec.Lines lines = new InventoryCodec.Lines();
+
+    // Supplier profile: default lead time, how many order lines are worked on at once and the
+    // price bid per unit. Agent arguments [leadTimeMs, concurrency, unitPrice] override the
+    // system properties; a single product's lead time can be set with supplier.leadTimeMs.<productId>
+    private long leadTimeMs = Long.getLong("supplier.leadTimeMs", 1000L);
+    private int concurrency = Integer.getInteger("supplier.concurrency", 8);
+    private double unitPrice = Double.parseDouble(System.getProperty("supplier.unitPrice", "1.0"));
+    // Lines waiting for a free slot beyond which calls for bids are refused
+    private static final int MAX_WAITING = Integer.getInteger("supplier.maxWaiting", 256);
+
+    private FulfilmentScheduler scheduler;
+    private FulfilmentBehaviour fulfilment;
+    private final List<FulfilmentScheduler.Job> done = new ArrayList<>();
+    private final Map<ACLMessage, Map<String, Integer>> deliveries = new IdentityHashMap<>();
+
+    // Runtime metrics, over JMX and QUERY_REF "METRICS"
+    private final AgentMetrics metrics = new AgentMetrics(this);
+    private final AgentMetrics.Counter restockMessages = metrics.handled("restockRequest");
+    private final AgentMetrics.Counter bids = metrics.counter("restock.bids");
+    private final AgentMetrics.Counter refusals = metrics.counter("restock.refused");
+    private final AgentMetrics.Counter linesAccepted = metrics.counter("restock.linesAccepted");
+    private final AgentMetrics.Counter linesCancelled = metrics.counter("restock.linesCancelled");
+    private final AgentMetrics.Timer fulfilmentTime = metrics.timer("restock.fulfilmentTime");
+
+    // Event log channels (see EventLog)
+    private final EventLog.Channel acceptLog = new EventLog.Channel(this, "SUPPLIER", "restock.accepted");
+    private final EventLog.Channel cancelLog = new EventLog.Channel(this, "SUPPLIER", "restock.cancelled");
+    private final EventLog.Channel completeLog = new EventLog.Channel(this, "SUPPLIER", "restock.completed");
     
     protected void setup() {
         System.out.println("SupplierAgent " + getAID().getName() + " is ready.");
+
+        Object[] args = getArguments();
+        if (args != null && args.length >= 2) {
+            leadTimeMs = Long.parseLong(args[0].toString());
+            concurrency = Integer.parseInt(args[1].toString());
+            if (args.length >= 3) {
+                unitPrice = Double.parseDouble(args[2].toString());
+            }
+        }
+        scheduler = new FulfilmentScheduler(concurrency);
+        System.out.println(String.format("[SUPPLIER] Lead time %d ms, %d concurrent restocks, unit price %.2f",
+                leadTimeMs, concurrency, unitPrice));
         
         // Register with DF (Directory Facilitator)
         DFAgentDescription dfd = new DFAgentDescription();
@@ -27,55 +77,182 @@ public class SupplierAgent extends Agent {
             fe.printStackTrace();
         }
         
-        // Add behaviour to handle restock requests
+        // Add behaviours to accept restock requests and to deliver them when their lead time is up
+        fulfilment = new FulfilmentBehaviour();
         addBehaviour(new RestockRequestServer());
+        addBehaviour(fulfilment);
+        addBehaviour(new DirectoryWatch.ReadinessServer(this));
+
+        metrics.gauge("restock.active", scheduler::getActiveCount);
+        metrics.gauge("restock.waiting", scheduler::getWaitingCount);
+        metrics.gauge("restock.completed", scheduler::getCompleted);
+        metrics.gauge("log.eventsDropped", EventLog::getDropped);
+        metrics.gauge("log.eventsFailed", EventLog::getFailed);
+        addBehaviour(new AgentMetrics.QueryServer(this, metrics));
+        metrics.register();
+    }
+
+    private long leadTimeFor(String productId) {
+        return Long.getLong("supplier.leadTimeMs." + productId, leadTimeMs);
     }
     
     /**
-     * Behaviour to handle restock requests from inventory
+     * Behaviour to handle restock requests from inventory. Restocks come
+     * either as a direct REQUEST or through Contract-Net: a CFP is answered
+     * with a bid (PROPOSE) or a REFUSE when the backlog is full, and an
+     * ACCEPT_PROPOSAL carries the batch to fulfil. Accepted restocks are
+     * handed to the scheduler right away, so intake never waits for
+     * fulfilment; a CANCEL withdraws them.
      */
     private class RestockRequestServer extends CyclicBehaviour {
         public void action() {
-            MessageTemplate mt = MessageTemplate.and(
-                MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
-                MessageTemplate.MatchConversationId("restock-request")
-            );
+            MessageTemplate mt = MessageTemplate.MatchConversationId("restock-request");
             ACLMessage msg = myAgent.receive(mt);
             
             if (msg != null) {
-                String content = msg.getContent();
-                System.out.println("[SUPPLIER] Received restock request: " + content);
-                
-                // Parse request: RESTOCK:productId:quantity
-                String[] parts = content.split(":");
-                if (parts[0].equals("RESTOCK") && parts.length == 3) {
-                    String productId = parts[1];
-                    int quantity = Integer.parseInt(parts[2]);
-                    
-                    // Simulate processing time
-                    doWait(1000);
-                    
-                    // Send confirmation back to inventory
-                    ACLMessage reply = msg.createReply();
+                restockMessages.inc();
+                switch (msg.getPerformative()) {
+                    case ACLMessage.CFP:
+                        bid(msg);
+                        break;
+                    case ACLMessage.REQUEST:
+                    case ACLMessage.ACCEPT_PROPOSAL:
+                        accept(msg);
+                        break;
+                    case ACLMessage.CANCEL:
+                        int cancelled = scheduler.cancel(msg.getInReplyTo());
+                        linesCancelled.add(cancelled);
+                        EventLog.Event e = cancelLog.begin(EventLog.INFO);
+                        if (e != null) {
+                            e.str("request", msg.getInReplyTo()).str("from", msg.getSender().getLocalName())
+                                    .num("lines", cancelled).commit();
+                        }
+                        break;
+                    default:
+                        // REJECT_PROPOSAL: bids are not reserved, nothing to undo
+                        break;
+                }
+            } else {
+                block();
+            }
+        }
+
+        /**
+         * Bids the total price, the time until the last line would be done
+         * given the current backlog, and the number of free slots.
+         */
+        private void bid(ACLMessage cfp) {
+            if (!InventoryCodec.readLines(cfp, reader, InventoryCodec.RESTOCK_BATCH, lines)) {
+                return;
+            }
+            ACLMessage reply = cfp.createReply();
+            int backlog = scheduler.getActiveCount() + scheduler.getWaitingCount();
+            if (scheduler.getWaitingCount() + lines.size > MAX_WAITING) {
+                reply.setPerformative(ACLMessage.REFUSE);
+                reply.setContent("BUSY");
+                myAgent.send(reply);
+                refusals.inc();
+                return;
+            }
+
+            long units = 0;
+            long longestLeadTime = 0;
+            for (int i = 0; i < lines.size; i++) {
+                units += lines.quantities[i];
+                longestLeadTime = Math.max(longestLeadTime, leadTimeFor(lines.productIds[i]));
+            }
+            // Every `concurrency` lines ahead of the last one add one lead time
+            long leadTime = longestLeadTime * ((backlog + lines.size - 1) / concurrency + 1);
+            reply.setPerformative(ACLMessage.PROPOSE);
+            reply.setContent(SupplierPool.formatBid(units * unitPrice, leadTime, Math.max(0, concurrency - backlog)));
+            myAgent.send(reply);
+            bids.inc();
+        }
+
+        // Accepts RESTOCK_BATCH:id1:qty1;id2:qty2;... , RESTOCK:productId:quantity or their binary forms
+        private void accept(ACLMessage msg) {
+            int accepted;
+            if (InventoryCodec.readLines(msg, reader, InventoryCodec.RESTOCK_BATCH, lines)) {
+                for (int i = 0; i < lines.size; i++) {
+                    scheduler.submit(msg, true, lines.productIds[i], lines.quantities[i],
+                            leadTimeFor(lines.productIds[i]));
+                }
+                accepted = lines.size;
+            } else if (InventoryCodec.readItem(msg, reader, item) && item.type == InventoryCodec.RESTOCK) {
+                scheduler.submit(msg, false, item.productId, item.quantity, leadTimeFor(item.productId));
+                accepted = 1;
+            } else {
+                return;
+            }
+
+            linesAccepted.add(accepted);
+            EventLog.Event e = acceptLog.begin(EventLog.INFO);
+            if (e != null) {
+                e.str("request", msg.getReplyWith()).str("from", msg.getSender().getLocalName()).num("lines", accepted)
+                        .num("active", scheduler.getActiveCount()).num("waiting", scheduler.getWaitingCount()).commit();
+            }
+            // The new jobs may finish before the time the fulfilment behaviour is blocked for
+            fulfilment.restart();
+        }
+    }
+
+    /**
+     * Confirms finished restocks. Lines of one request that finish together
+     * go back as one RESTOCKED_BATCH (RESTOCKED for a single RESTOCK), in
+     * the encoding of the request. Sleeps until the next job is due.
+     */
+    private class FulfilmentBehaviour extends CyclicBehaviour {
+        public void action() {
+            if (scheduler.poll(done) > 0) {
+                long now = System.nanoTime();
+                for (FulfilmentScheduler.Job job : done) {
+                    fulfilmentTime.record(now - job.getSubmittedAt());
+                    ACLMessage request = job.getRequest();
+                    if (!job.isBatch()) {
+                        ACLMessage reply = request.createReply();
+                        reply.setPerformative(ACLMessage.INFORM);
+                        codec.writeItem(reply, InventoryCodec.RESTOCKED, job.getProductId(), job.getQuantity(),
+                                InventoryCodec.isBinary(request));
+                        myAgent.send(reply);
+                    } else {
+                        deliveries.computeIfAbsent(request, r -> new LinkedHashMap<>())
+                                .merge(job.getProductId(), job.getQuantity(), Integer::sum);
+                    }
+                    EventLog.Event e = completeLog.begin(EventLog.INFO);
+                    if (e != null) {
+                        e.str("product", job.getProductId()).num("quantity", job.getQuantity())
+                                .num("ms", (now - job.getSubmittedAt()) / 1_000_000L).commit();
+                    }
+                }
+                for (Map.Entry<ACLMessage, Map<String, Integer>> delivery : deliveries.entrySet()) {
+                    ACLMessage reply = delivery.getKey().createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent("RESTOCKED:" + productId + ":" + quantity);
+                    codec.writeLines(reply, InventoryCodec.RESTOCKED_BATCH, delivery.getValue(),
+                            InventoryCodec.isBinary(delivery.getKey()));
                     myAgent.send(reply);
-                    
-                    System.out.println(String.format("[SUPPLIER] Restock completed: %d units of %s",
-                            quantity, productId));
                 }
-            } else {
+                done.clear();
+                deliveries.clear();
+            }
+
+            long wait = scheduler.millisToNextDue();
+            if (wait < 0) {
                 block();
+            } else if (wait > 0) {
+                block(wait);
             }
         }
     }
     
     protected void takeDown() {
+        metrics.unregister();
         try {
             DFService.deregister(this);
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
+        System.out.println("[SUPPLIER] Restocks completed: " + scheduler.getCompleted()
+                + ", unfinished: " + (scheduler.getActiveCount() + scheduler.getWaitingCount()));
         System.out.println("SupplierAgent " + getAID().getName() + " terminating.");
     }
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+import jade.core.AID;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The suppliers an InventoryAgent sources restocks from, with a rolling
+ * record of how each one performs.
+ *
+ * Restocks are sourced by Contract-Net: every supplier gets a CFP and bids
+ * "BID:price:leadTimeMs:capacity" (PROPOSE) or declines (REFUSE). choose()
+ * picks the winner by the configured policy:
+ *   lead-time  shortest expected time to fill (default)
+ *   price      lowest price, then shortest expected time to fill
+ *   capacity   most free capacity, then shortest expected time to fill
+ * The expected time to fill is the promised lead time plus the supplier's
+ * average lateness, so suppliers that deliver later than they bid, or time
+ * out, lose to the others without any manual tuning.
+ */
+public class SupplierPool {
+    public static final String POLICY_LEAD_TIME = "lead-time";
+    public static final String POLICY_PRICE = "price";
+    public static final String POLICY_CAPACITY = "capacity";
+
+    // Weight of the newest sample in the rolling averages
+    private static final double ALPHA = 0.2;
+
+    public static class Bid {
+        public final AID supplier;
+        public final double price;
+        public final long leadTimeMs;
+        public final int capacity;
+
+        public Bid(AID supplier, double price, long leadTimeMs, int capacity) {
+            this.supplier = supplier;
+            this.price = price;
+            this.leadTimeMs = leadTimeMs;
+            this.capacity = capacity;
+        }
+    }
+
+    private static class Stats {
+        double latencyMs = -1;
+        double latenessMs;
+        long filled;
+        long timeouts;
+    }
+
+    private final List<AID> suppliers = new ArrayList<>();
+    private final Map<AID, Stats> stats = new HashMap<>();
+    private final String policy;
+
+    public SupplierPool(String policy) {
+        this.policy = policy;
+    }
+
+    public static String formatBid(double price, long leadTimeMs, int capacity) {
+        return "BID:" + price + ":" + leadTimeMs + ":" + capacity;
+    }
+
+    /**
+     * Parses a PROPOSE, or returns null if it is not a well-formed bid.
+     */
+    public static Bid parseBid(ACLMessage propose) {
+        String content = propose.getContent();
+        if (content == null || !content.startsWith("BID:")) {
+            return null;
+        }
+        String[] parts = content.split(":");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            return new Bid(propose.getSender(), Double.parseDouble(parts[1]),
+                    Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the known suppliers with a DF search result. Statistics of
+     * suppliers that are still registered are kept.
+     */
+    public void update(DFAgentDescription[] result) {
+        suppliers.clear();
+        for (DFAgentDescription dfd : result) {
+            suppliers.add(dfd.getName());
+            stats.computeIfAbsent(dfd.getName(), s -> new Stats());
+        }
+        stats.keySet().retainAll(suppliers);
+    }
+
+    public List<AID> getSuppliers() {
+        return suppliers;
+    }
+
+    public boolean isEmpty() {
+        return suppliers.isEmpty();
+    }
+
+    /**
+     * Promised lead time plus the supplier's average lateness.
+     */
+    public long expectedLeadTime(Bid bid) {
+        Stats s = stats.get(bid.supplier);
+        return bid.leadTimeMs + (s == null ? 0 : (long) s.latenessMs);
+    }
+
+    /**
+     * The winning bid under the configured policy, or null if there are none.
+     */
+    public Bid choose(List<Bid> bids) {
+        Bid best = null;
+        for (Bid bid : bids) {
+            if (best == null || compare(bid, best) < 0) {
+                best = bid;
+            }
+        }
+        return best;
+    }
+
+    private int compare(Bid a, Bid b) {
+        int c = 0;
+        if (POLICY_PRICE.equals(policy)) {
+            c = Double.compare(a.price, b.price);
+        } else if (POLICY_CAPACITY.equals(policy)) {
+            c = Integer.compare(b.capacity, a.capacity);
+        }
+        return c != 0 ? c : Long.compare(expectedLeadTime(a), expectedLeadTime(b));
+    }
+
+    /**
+     * Records a delivery that took latencyMs against a promised lead time.
+     */
+    public void filled(AID supplier, long latencyMs, long promisedMs) {
+        Stats s = observe(supplier, latencyMs, promisedMs);
+        if (s != null) {
+            s.filled++;
+        }
+    }
+
+    /**
+     * Records a supplier that had not delivered after waitedMs. Counts as a
+     * delivery at the time we gave up.
+     */
+    public void timedOut(AID supplier, long waitedMs, long promisedMs) {
+        Stats s = observe(supplier, waitedMs, promisedMs);
+        if (s != null) {
+            s.timeouts++;
+        }
+    }
+
+    private Stats observe(AID supplier, long latencyMs, long promisedMs) {
+        Stats s = stats.get(supplier);
+        if (s != null) {
+            s.latencyMs = s.latencyMs < 0 ? latencyMs : s.latencyMs + ALPHA * (latencyMs - s.latencyMs);
+            s.latenessMs += ALPHA * (Math.max(0, latencyMs - promisedMs) - s.latenessMs);
+        }
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (AID supplier : suppliers) {
+            Stats s = stats.get(supplier);
+            sb.append(supplier.getLocalName())
+                    .append(String.format("[filled=%d timeouts=%d latency=%.0fms lateness=%.0fms] ",
+                            s.filled, s.timeouts, Math.max(0, s.latencyMs), s.latenessMs));
+        }
+        return sb.toString().trim();
+    }
+}
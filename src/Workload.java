@@ -0,0 +1,117 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * What the simulated buyers of a load run do: how often they buy, which
+ * products and how many units.
+ *
+ * Arrivals are either open-loop (a Poisson process at a fixed total rate,
+ * independent of how fast the inventory answers) or closed-loop (each
+ * buyer waits for its reply, then thinks, then buys again). Product
+ * popularity is uniform or Zipf, and the quantity is "n" (fixed), "a-b"
+ * (uniform) or "geo:m" (geometric with mean m).
+ *
+ * Shared by all buyers of a run; every buyer samples with its own Random.
+ */
+public class Workload {
+    public static final String MODE_OPEN = "open";
+    public static final String MODE_CLOSED = "closed";
+
+    private final String[] productIds;
+    private final boolean openLoop;
+    private final double ratePerBuyer;
+    private final long thinkTimeMs;
+    // Cumulative Zipf weights, null for uniform popularity
+    private final double[] zipfCdf;
+    private final int minQuantity;
+    private final int maxQuantity;
+    private final double geometricMean;
+
+    public Workload(List<String> productIds, String mode, double totalRate, int buyers, long thinkTimeMs,
+                    String popularity, double zipfExponent, String quantity) {
+        this.productIds = productIds.toArray(new String[0]);
+        Arrays.sort(this.productIds);
+        this.openLoop = MODE_OPEN.equals(mode);
+        this.ratePerBuyer = totalRate / Math.max(1, buyers);
+        this.thinkTimeMs = thinkTimeMs;
+
+        if ("zipf".equals(popularity)) {
+            // Rank order is a fixed shuffle of the ids, so the hot products are spread over the shards
+            shuffle(this.productIds, new Random(0));
+            zipfCdf = new double[this.productIds.length];
+            double total = 0;
+            for (int i = 0; i < zipfCdf.length; i++) {
+                total += 1.0 / Math.pow(i + 1, zipfExponent);
+                zipfCdf[i] = total;
+            }
+            for (int i = 0; i < zipfCdf.length; i++) {
+                zipfCdf[i] /= total;
+            }
+        } else {
+            zipfCdf = null;
+        }
+
+        if (quantity.startsWith("geo:")) {
+            geometricMean = Double.parseDouble(quantity.substring(4));
+            minQuantity = 1;
+            maxQuantity = Integer.MAX_VALUE;
+        } else if (quantity.indexOf('-') > 0) {
+            geometricMean = 0;
+            minQuantity = Integer.parseInt(quantity.substring(0, quantity.indexOf('-')));
+            maxQuantity = Integer.parseInt(quantity.substring(quantity.indexOf('-') + 1));
+        } else {
+            geometricMean = 0;
+            minQuantity = Integer.parseInt(quantity);
+            maxQuantity = minQuantity;
+        }
+        if (minQuantity < 1 || maxQuantity < minQuantity) {
+            throw new IllegalArgumentException("Bad quantity distribution: " + quantity);
+        }
+    }
+
+    public boolean isOpenLoop() {
+        return openLoop;
+    }
+
+    public long getThinkTimeMs() {
+        return thinkTimeMs;
+    }
+
+    public int getProductCount() {
+        return productIds.length;
+    }
+
+    /**
+     * Time to the next arrival of one buyer in an open-loop run, in nanos.
+     */
+    public long nextInterarrivalNanos(Random random) {
+        return (long) (-Math.log(1.0 - random.nextDouble()) / ratePerBuyer * 1e9);
+    }
+
+    public String nextProduct(Random random) {
+        if (zipfCdf == null) {
+            return productIds[random.nextInt(productIds.length)];
+        }
+        int i = Arrays.binarySearch(zipfCdf, random.nextDouble());
+        return productIds[Math.min(i < 0 ? -i - 1 : i, productIds.length - 1)];
+    }
+
+    public int nextQuantity(Random random) {
+        if (geometricMean > 0) {
+            // Number of trials up to the first success with p = 1/mean
+            double p = 1.0 / Math.max(1.0, geometricMean);
+            return p >= 1.0 ? 1 : 1 + (int) (Math.log(1.0 - random.nextDouble()) / Math.log(1.0 - p));
+        }
+        return minQuantity + (maxQuantity == minQuantity ? 0 : random.nextInt(maxQuantity - minQuantity + 1));
+    }
+
+    private static void shuffle(String[] a, Random random) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            String t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+}